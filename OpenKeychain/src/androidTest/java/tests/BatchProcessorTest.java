@@ -0,0 +1,245 @@
+package tests;
+
+import android.content.Intent;
+import android.os.Parcelable;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openintents.openpgp.util.OpenPgpApi;
+import org.robolectric.RobolectricTestRunner;
+import org.sufficientlysecure.keychain.remote.BatchProcessor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+@RunWith(RobolectricTestRunner.class)
+public class BatchProcessorTest {
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(2);
+
+    /** Reverses its input, items starting with "fail" or "throw" fail after writing output */
+    private static final BatchProcessor.Operation REVERSE = new BatchProcessor.Operation() {
+        @Override
+        public Intent process(byte[] input, OutputStream output) {
+            try {
+                if (new String(input, "UTF-8").startsWith("fail")) {
+                    output.write(input);
+                    Intent result = new Intent();
+                    result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+                    return result;
+                }
+                if (new String(input, "UTF-8").startsWith("throw")) {
+                    output.write(input);
+                    throw new IllegalStateException("item failed");
+                }
+                for (int i = input.length - 1; i >= 0; i--) {
+                    output.write(input[i]);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            return result;
+        }
+    };
+
+    @After
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static byte[] frames(String... items) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (String item : items) {
+            byte[] data = item.getBytes("UTF-8");
+            BatchProcessor.writeFrame(out, data, 0, data.length);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static ArrayList<String> readFrames(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        ArrayList<String> items = new ArrayList<String>();
+        byte[] frame;
+        while ((frame = BatchProcessor.readFrame(in)) != null) {
+            items.add(new String(frame, "UTF-8"));
+        }
+        return items;
+    }
+
+    private Intent run(byte[] input, ByteArrayOutputStream output) throws IOException {
+        return BatchProcessor.run(new ByteArrayInputStream(input), output, mExecutor, REVERSE);
+    }
+
+    private static int getResultCode(Parcelable result) {
+        return ((Intent) result).getIntExtra(OpenPgpApi.RESULT_CODE, -1);
+    }
+
+    @Test
+    public void itemsInOrder() throws Exception {
+        String[] items = new String[50];
+        String[] expected = new String[items.length];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = "item " + i;
+            expected[i] = new StringBuilder(items[i]).reverse().toString();
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Intent result = run(frames(items), output);
+
+        Assert.assertEquals(OpenPgpApi.RESULT_CODE_SUCCESS,
+                result.getIntExtra(OpenPgpApi.RESULT_CODE, -1));
+        Assert.assertEquals(items.length,
+                result.getParcelableArrayExtra(BatchProcessor.RESULT_BATCH_RESULTS).length);
+        Assert.assertEquals(Arrays.asList(expected), readFrames(output.toByteArray()));
+    }
+
+    @Test
+    public void emptyInput() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Intent result = run(new byte[0], output);
+
+        Assert.assertEquals(0, output.size());
+        Assert.assertEquals(0,
+                result.getParcelableArrayExtra(BatchProcessor.RESULT_BATCH_RESULTS).length);
+    }
+
+    @Test
+    public void emptyFrame() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Intent result = run(frames("", "ab"), output);
+
+        ArrayList<String> outputs = readFrames(output.toByteArray());
+        Assert.assertEquals(2, outputs.size());
+        Assert.assertEquals("", outputs.get(0));
+        Assert.assertEquals("ba", outputs.get(1));
+        Parcelable[] results = result.getParcelableArrayExtra(BatchProcessor.RESULT_BATCH_RESULTS);
+        Assert.assertEquals(OpenPgpApi.RESULT_CODE_SUCCESS, getResultCode(results[0]));
+    }
+
+    @Test
+    public void failedItemYieldsEmptyFrame() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Intent result = run(frames("ab", "fail", "throw", "cd"), output);
+
+        ArrayList<String> outputs = readFrames(output.toByteArray());
+        Assert.assertEquals(4, outputs.size());
+        Assert.assertEquals("ba", outputs.get(0));
+        Assert.assertEquals("", outputs.get(1));
+        Assert.assertEquals("", outputs.get(2));
+        Assert.assertEquals("dc", outputs.get(3));
+
+        Parcelable[] results = result.getParcelableArrayExtra(BatchProcessor.RESULT_BATCH_RESULTS);
+        Assert.assertEquals(OpenPgpApi.RESULT_CODE_SUCCESS, getResultCode(results[0]));
+        Assert.assertEquals(OpenPgpApi.RESULT_CODE_ERROR, getResultCode(results[1]));
+        Assert.assertEquals(OpenPgpApi.RESULT_CODE_ERROR, getResultCode(results[2]));
+        Assert.assertEquals(OpenPgpApi.RESULT_CODE_SUCCESS, getResultCode(results[3]));
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedFrame() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(BatchProcessor.MAX_FRAME_SIZE + 1);
+        run(bytes.toByteArray(), new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeFrameLength() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(-1);
+        run(bytes.toByteArray(), new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedHeader() throws Exception {
+        run(new byte[]{ 0, 0 }, new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFrame() throws Exception {
+        byte[] input = frames("abcdef");
+        byte[] truncated = new byte[input.length - 2];
+        System.arraycopy(input, 0, truncated, 0, truncated.length);
+        run(truncated, new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void tooManyItems() throws Exception {
+        String[] items = new String[BatchProcessor.MAX_BATCH_ITEMS + 1];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = "x";
+        }
+        run(frames(items), new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void callerRunsItemsOfBusyExecutor() throws Exception {
+        // an executor which never runs anything, items must still complete
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        BatchProcessor.run(new ByteArrayInputStream(frames("ab", "cd")), output,
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        // dropped
+                    }
+                }, REVERSE);
+
+        ArrayList<String> outputs = readFrames(output.toByteArray());
+        Assert.assertEquals(2, outputs.size());
+        Assert.assertEquals("ba", outputs.get(0));
+        Assert.assertEquals("dc", outputs.get(1));
+    }
+
+    @Test
+    public void readAheadIsBoundedByBytes() throws Exception {
+        final int items = 6;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] data = new byte[BatchProcessor.MAX_FRAME_SIZE];
+        for (int i = 0; i < items; i++) {
+            BatchProcessor.writeFrame(out, data, 0, data.length);
+        }
+        out.flush();
+
+        // nothing runs on the executor, so items are only processed once they are written
+        final int[] submitted = { 0 };
+        final int[] maxPending = { 0 };
+        final int[] processed = { 0 };
+        BatchProcessor.run(new ByteArrayInputStream(bytes.toByteArray()),
+                new ByteArrayOutputStream(), new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        submitted[0]++;
+                    }
+                }, new BatchProcessor.Operation() {
+                    @Override
+                    public Intent process(byte[] input, OutputStream output) {
+                        maxPending[0] = Math.max(maxPending[0], submitted[0] - processed[0]);
+                        processed[0]++;
+                        Intent result = new Intent();
+                        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+                        return result;
+                    }
+                });
+
+        Assert.assertEquals(items, processed[0]);
+        // the read ahead items plus the one read last
+        Assert.assertTrue(maxPending[0] <= BatchProcessor.MAX_READ_AHEAD_BYTES
+                / BatchProcessor.MAX_FRAME_SIZE + 1);
+    }
+
+}
@@ -0,0 +1,102 @@
+package tests;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sufficientlysecure.keychain.util.BufferPool;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+public class BufferPoolTest {
+
+    @Before
+    public void emptyPool() {
+        // the pool of this thread may hold buffers released by other tests
+        for (int i = 0; i < 16; i++) {
+            BufferPool.acquire();
+        }
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        byte[] buffer = BufferPool.acquire();
+        Assert.assertEquals(BufferPool.BUFFER_SIZE, buffer.length);
+        BufferPool.release(buffer);
+        Assert.assertSame(buffer, BufferPool.acquire());
+    }
+
+    @Test
+    public void releasedBufferIsCleared() {
+        byte[] buffer = BufferPool.acquire();
+        buffer[0] = 42;
+        buffer[BufferPool.BUFFER_SIZE - 1] = 42;
+        BufferPool.release(buffer);
+
+        byte[] reused = BufferPool.acquire();
+        Assert.assertSame(buffer, reused);
+        Assert.assertEquals(0, reused[0]);
+        Assert.assertEquals(0, reused[BufferPool.BUFFER_SIZE - 1]);
+    }
+
+    @Test
+    public void doubleReleaseHandsOutBufferOnce() {
+        byte[] buffer = BufferPool.acquire();
+        BufferPool.release(buffer);
+        BufferPool.release(buffer);
+
+        byte[] first = BufferPool.acquire();
+        byte[] second = BufferPool.acquire();
+        Assert.assertNotSame(first, second);
+    }
+
+    @Test
+    public void foreignBuffersAreIgnored() {
+        byte[] small = new byte[16];
+        BufferPool.release(small);
+        BufferPool.release(null);
+        Assert.assertNotSame(small, BufferPool.acquire());
+    }
+
+    @Test
+    public void poolIsBounded() {
+        ArrayList<byte[]> buffers = new ArrayList<byte[]>();
+        for (int i = 0; i < 10; i++) {
+            buffers.add(BufferPool.acquire());
+        }
+        for (byte[] buffer : buffers) {
+            BufferPool.release(buffer);
+        }
+
+        // only a few of the released buffers are kept, the rest are new
+        HashSet<byte[]> reused = new HashSet<byte[]>();
+        for (int i = 0; i < 10; i++) {
+            byte[] buffer = BufferPool.acquire();
+            if (buffers.contains(buffer)) {
+                reused.add(buffer);
+            }
+        }
+        Assert.assertTrue(reused.size() > 0);
+        Assert.assertTrue(reused.size() < buffers.size());
+    }
+
+    @Test
+    public void poolIsConfinedToThread() throws Exception {
+        final byte[] buffer = BufferPool.acquire();
+        BufferPool.release(buffer);
+
+        final byte[][] acquired = new byte[1][];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acquired[0] = BufferPool.acquire();
+            }
+        });
+        thread.start();
+        thread.join();
+
+        Assert.assertNotSame(buffer, acquired[0]);
+        Assert.assertSame(buffer, BufferPool.acquire());
+    }
+
+}
@@ -0,0 +1,221 @@
+package tests;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Time to load everything a key detail screen shows from a CachedPublicKeyRing: one query per
+ * getter, as before, against the single query of CachedPublicKeyRing.
+ *
+ * KeychainProvider can't open its database here, as it needs fts3. A stand-in provider answers
+ * unified key ring queries with the same joins over the columns which are used.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CachedPublicKeyRingBenchmarkTest {
+
+    private static final int KEY_RINGS = 1000;
+
+    /** Minimum time spent on each measurement */
+    private static final long MEASURE_MILLIS = 1000;
+
+    // the columns of the getters, with their types for ProviderHelper.getGenericData
+    private static final String[] COLUMNS = {
+            KeyRings.MASTER_KEY_ID, KeyRings.USER_ID, KeyRings.IS_REVOKED, KeyRings.CAN_CERTIFY,
+            KeyRings.HAS_ENCRYPT, KeyRings.HAS_SIGN, KeyRings.VERIFIED, KeyRings.HAS_ANY_SECRET
+    };
+    private static final int[] TYPES = {
+            ProviderHelper.FIELD_TYPE_INTEGER, ProviderHelper.FIELD_TYPE_STRING,
+            ProviderHelper.FIELD_TYPE_INTEGER, ProviderHelper.FIELD_TYPE_INTEGER,
+            ProviderHelper.FIELD_TYPE_INTEGER, ProviderHelper.FIELD_TYPE_INTEGER,
+            ProviderHelper.FIELD_TYPE_INTEGER, ProviderHelper.FIELD_TYPE_INTEGER
+    };
+
+    private static SQLiteDatabase sDb;
+    private static int sQueries;
+
+    private ProviderHelper mProviderHelper;
+    private long[] mMasterKeyIds = new long[KEY_RINGS];
+
+    /** Answers unified key ring queries, like KeychainProvider does for KEY_RING_UNIFIED */
+    public static class StandInProvider extends ContentProvider {
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
+            sQueries += 1;
+            HashMap<String, String> projectionMap = new HashMap<String, String>();
+            projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + KeyRings.MASTER_KEY_ID);
+            projectionMap.put(KeyRings.USER_ID, Tables.USER_IDS + "." + KeyRings.USER_ID);
+            projectionMap.put(KeyRings.IS_REVOKED, Tables.KEYS + "." + KeyRings.IS_REVOKED);
+            projectionMap.put(KeyRings.CAN_CERTIFY, Tables.KEYS + "." + KeyRings.CAN_CERTIFY);
+            for (String column : new String[]{ KeyRings.HAS_ENCRYPT, KeyRings.HAS_SIGN,
+                    KeyRings.VERIFIED, KeyRings.HAS_ANY_SECRET }) {
+                projectionMap.put(column, Tables.KEY_RING_SUMMARY + "." + column);
+            }
+
+            SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+            qb.setProjectionMap(projectionMap);
+            qb.setTables(Tables.KEYS
+                    + " INNER JOIN " + Tables.USER_IDS + " ON ("
+                        + Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
+                            + " = " + Tables.USER_IDS + "." + KeyRings.MASTER_KEY_ID
+                        + " AND " + Tables.USER_IDS + "." + UserIds.RANK + " = 0"
+                    + ") LEFT JOIN " + Tables.KEY_RING_SUMMARY + " ON ("
+                        + Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
+                            + " = " + Tables.KEY_RING_SUMMARY + "." + KeyRings.MASTER_KEY_ID
+                    + ")");
+            qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0 AND "
+                    + Tables.KEYS + "." + KeyRings.MASTER_KEY_ID + " = ");
+            qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+            return qb.query(sDb, projection, selection, selectionArgs, null, null, sortOrder);
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                          String[] selectionArgs) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Before
+    public void createProvider() {
+        sDb = SQLiteDatabase.create(null);
+        sDb.execSQL("CREATE TABLE " + Tables.KEYS + " (" + KeyRings.MASTER_KEY_ID + " INTEGER, "
+                + Keys.RANK + " INTEGER, " + Keys.IS_REVOKED + " BOOLEAN, "
+                + Keys.CAN_CERTIFY + " BOOLEAN, "
+                + "PRIMARY KEY(" + Keys.MASTER_KEY_ID + ", " + Keys.RANK + "))");
+        sDb.execSQL("CREATE TABLE " + Tables.USER_IDS + " (" + KeyRings.MASTER_KEY_ID + " INTEGER, "
+                + UserIds.USER_ID + " TEXT, " + UserIds.RANK + " INTEGER, "
+                + "PRIMARY KEY(" + UserIds.MASTER_KEY_ID + ", " + UserIds.USER_ID + "))");
+        sDb.execSQL("CREATE TABLE " + Tables.KEY_RING_SUMMARY + " ("
+                + KeyRings.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+                + KeyRings.HAS_ENCRYPT + " INTEGER, " + KeyRings.HAS_SIGN + " INTEGER, "
+                + KeyRings.HAS_ANY_SECRET + " BOOLEAN, " + KeyRings.VERIFIED + " INTEGER)");
+
+        Random random = new Random(42);
+        sDb.beginTransaction();
+        try {
+            for (int i = 0; i < KEY_RINGS; i++) {
+                long masterKeyId = random.nextLong();
+                mMasterKeyIds[i] = masterKeyId;
+                for (int rank = 0; rank < 3; rank++) {
+                    sDb.execSQL("INSERT INTO " + Tables.KEYS + " VALUES (?, ?, ?, ?)",
+                            new Object[]{ masterKeyId, rank, 0, rank == 0 ? 1 : 0 });
+                    sDb.execSQL("INSERT INTO " + Tables.USER_IDS + " VALUES (?, ?, ?)",
+                            new Object[]{ masterKeyId, "User " + i + "." + rank, rank });
+                }
+                sDb.execSQL("INSERT INTO " + Tables.KEY_RING_SUMMARY + " VALUES (?, ?, ?, ?, ?)",
+                        new Object[]{ masterKeyId, random.nextLong(), random.nextLong(),
+                                i % 2, i % 3 });
+            }
+            sDb.setTransactionSuccessful();
+        } finally {
+            sDb.endTransaction();
+        }
+
+        StandInProvider provider = new StandInProvider();
+        provider.onCreate();
+        ShadowContentResolver.registerProvider(KeychainContract.CONTENT_AUTHORITY, provider);
+        mProviderHelper = new ProviderHelper(Robolectric.application);
+        sQueries = 0;
+    }
+
+    @After
+    public void closeDb() {
+        sDb.close();
+    }
+
+    /** Loads all values with one query per getter, like CachedPublicKeyRing used to. */
+    private long loadPerGetter(Uri uri) throws Exception {
+        long sum = 0;
+        for (int i = 0; i < COLUMNS.length; i++) {
+            Object value = mProviderHelper.getGenericData(uri, COLUMNS[i], TYPES[i]);
+            sum += value instanceof Long ? (Long) value : 1;
+        }
+        return sum;
+    }
+
+    /** Loads all values through the getters of a new CachedPublicKeyRing. */
+    private long loadCached(Uri uri) throws Exception {
+        CachedPublicKeyRing ring = mProviderHelper.getCachedPublicKeyRing(uri);
+        long sum = ring.getMasterKeyId() + (ring.getPrimaryUserId() != null ? 1 : 0)
+                + (ring.isRevoked() ? 1 : 0) + (ring.canCertify() ? 1 : 0)
+                + ring.getVerified() + (ring.hasAnySecret() ? 1 : 0);
+        if (ring.hasEncrypt()) {
+            sum += ring.getEncryptId();
+        }
+        if (ring.hasSign()) {
+            sum += ring.getSignId();
+        }
+        return sum;
+    }
+
+    @Test
+    public void keyDetails() throws Exception {
+        Uri uri = KeyRings.buildUnifiedKeyRingUri(mMasterKeyIds[0]);
+        Assert.assertEquals(loadPerGetter(uri), loadCached(uri));
+
+        for (boolean cached : new boolean[]{ false, true }) {
+            Random random = new Random(7);
+            int queries = sQueries;
+            long loads = 0;
+            long start = System.nanoTime();
+            do {
+                uri = KeyRings.buildUnifiedKeyRingUri(mMasterKeyIds[random.nextInt(KEY_RINGS)]);
+                if (cached) {
+                    loadCached(uri);
+                } else {
+                    loadPerGetter(uri);
+                }
+                loads += 1;
+            } while (System.nanoTime() - start < MEASURE_MILLIS * 1000000);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%-25s %10.1f loads/s %10.3f ms/load %4.1f queries/load",
+                    cached ? "single query" : "query per getter", loads / seconds,
+                    seconds * 1000 / loads, (sQueries - queries) / (double) loads));
+        }
+    }
+
+}
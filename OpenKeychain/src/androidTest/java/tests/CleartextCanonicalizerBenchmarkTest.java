@@ -0,0 +1,133 @@
+package tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sufficientlysecure.keychain.pgp.CleartextCanonicalizer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+/**
+ * Lines/sec of CleartextCanonicalizer, against the BufferedReader and processLine path of
+ * PgpSignEncrypt it replaced, which is copied here. Both write to outputs which discard the
+ * data, in place of the armored output and the signature generator.
+ */
+public class CleartextCanonicalizerBenchmarkTest {
+
+    /** Minimum time spent on each measurement */
+    private static final long MEASURE_MILLIS = 2000;
+
+    private static final int LINES = 100000;
+
+    private static final byte[] NEW_LINE = { '\r', '\n' };
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private interface Canonicalizer {
+        void process(InputStream in, OutputStream textOut, OutputStream signatureOut)
+                throws IOException;
+    }
+
+    private static final Canonicalizer OLD = new Canonicalizer() {
+        @Override
+        public void process(InputStream in, OutputStream textOut, OutputStream signatureOut)
+                throws IOException {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+
+            processLine(reader.readLine(), textOut, signatureOut);
+            while (true) {
+                String line = reader.readLine();
+                if (line == null) {
+                    textOut.write(NEW_LINE);
+                    break;
+                }
+                textOut.write(NEW_LINE);
+                signatureOut.write(NEW_LINE);
+                processLine(line, textOut, signatureOut);
+            }
+        }
+
+        private void processLine(final String pLine, final OutputStream pArmoredOutput,
+                                 final OutputStream pSignatureGenerator) throws IOException {
+            if (pLine == null) {
+                return;
+            }
+
+            final char[] chars = pLine.toCharArray();
+            int len = chars.length;
+
+            while (len > 0) {
+                if (!Character.isWhitespace(chars[len - 1])) {
+                    break;
+                }
+                len--;
+            }
+
+            final byte[] data = pLine.substring(0, len).getBytes("UTF-8");
+
+            pArmoredOutput.write(data);
+            pSignatureGenerator.write(data);
+        }
+    };
+
+    private static final Canonicalizer NEW = new Canonicalizer() {
+        private final byte[] mBuffer = new byte[1 << 16];
+
+        @Override
+        public void process(InputStream in, OutputStream textOut, OutputStream signatureOut)
+                throws IOException {
+            new CleartextCanonicalizer(textOut, signatureOut).process(in, mBuffer);
+        }
+    };
+
+    private static byte[] text() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            text.append("line ").append(i).append(" of the quick brown fox jumps over the lazy dog");
+            text.append(i % 3 == 0 ? " \t" : "").append(i % 2 == 0 ? "\r\n" : "\n");
+        }
+        return text.toString().getBytes("UTF-8");
+    }
+
+    @Test
+    public void linesPerSecond() throws Exception {
+        byte[] text = text();
+
+        // both sign the same bytes for ascii text
+        ByteArrayOutputStream oldSigned = new ByteArrayOutputStream();
+        ByteArrayOutputStream newSigned = new ByteArrayOutputStream();
+        OLD.process(new ByteArrayInputStream(text), DISCARD, oldSigned);
+        NEW.process(new ByteArrayInputStream(text), DISCARD, newSigned);
+        Assert.assertArrayEquals(oldSigned.toByteArray(), newSigned.toByteArray());
+
+        measure("BufferedReader/processLine", OLD, text);
+        measure("CleartextCanonicalizer", NEW, text);
+    }
+
+    private static void measure(String name, Canonicalizer canonicalizer, byte[] text)
+            throws Exception {
+        long runs = 0;
+        long start = System.nanoTime();
+        do {
+            canonicalizer.process(new ByteArrayInputStream(text), DISCARD, DISCARD);
+            runs += 1;
+        } while (System.nanoTime() - start < MEASURE_MILLIS * 1000000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%-30s %14.0f lines/s %14.0f bytes/s",
+                name, runs * LINES / seconds, runs * (double) text.length / seconds));
+    }
+
+}
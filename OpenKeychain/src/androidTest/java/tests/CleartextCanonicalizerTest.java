@@ -0,0 +1,79 @@
+package tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sufficientlysecure.keychain.pgp.CleartextCanonicalizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+public class CleartextCanonicalizerTest {
+
+    private ByteArrayOutputStream mText;
+    private ByteArrayOutputStream mSigned;
+
+    private void process(String input, int bufferSize) throws Exception {
+        mText = new ByteArrayOutputStream();
+        mSigned = new ByteArrayOutputStream();
+        new CleartextCanonicalizer(mText, mSigned).process(
+                new ByteArrayInputStream(input.getBytes("ISO-8859-1")), new byte[bufferSize]);
+    }
+
+    private void assertCanonical(String input, String signed) throws Exception {
+        process(input, 64);
+        Assert.assertEquals(signed, mSigned.toString("ISO-8859-1"));
+        Assert.assertEquals(signed + "\r\n", mText.toString("ISO-8859-1"));
+    }
+
+    @Test
+    public void lineEndings() throws Exception {
+        assertCanonical("one\ntwo", "one\r\ntwo");
+        assertCanonical("one\rtwo", "one\r\ntwo");
+        assertCanonical("one\r\ntwo", "one\r\ntwo");
+        assertCanonical("one\r\ntwo\nthree\rfour", "one\r\ntwo\r\nthree\r\nfour");
+    }
+
+    @Test
+    public void emptyLines() throws Exception {
+        assertCanonical("one\n\ntwo", "one\r\n\r\ntwo");
+        assertCanonical("one\r\r\ntwo", "one\r\n\r\ntwo");
+        assertCanonical("one\n\r\ntwo", "one\r\n\r\ntwo");
+    }
+
+    @Test
+    public void finalLineEnding() throws Exception {
+        // the line ending before the signature is not part of the signed text
+        assertCanonical("one\ntwo\n", "one\r\ntwo");
+        assertCanonical("one\ntwo\r\n", "one\r\ntwo");
+    }
+
+    @Test
+    public void trailingWhitespace() throws Exception {
+        assertCanonical("one \t \ntwo\t", "one\r\ntwo");
+        assertCanonical("  indented", "  indented");
+        assertCanonical("inner  space ", "inner  space");
+        // only space and tab are stripped, as RFC 4880 says
+        assertCanonical("vertical tab\u000b", "vertical tab\u000b");
+    }
+
+    @Test
+    public void lineEndingAcrossReads() throws Exception {
+        process("one\r\ntwo\r\nthree", 1);
+        Assert.assertEquals("one\r\ntwo\r\nthree", mSigned.toString("ISO-8859-1"));
+    }
+
+    @Test
+    public void longLine() throws Exception {
+        char[] line = new char[10000];
+        Arrays.fill(line, 'x');
+        String input = new String(line);
+        assertCanonical(input + " \n" + input, input + "\r\n" + input);
+    }
+
+    @Test
+    public void emptyInput() throws Exception {
+        assertCanonical("", "");
+    }
+
+}
@@ -0,0 +1,124 @@
+package tests;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openintents.openpgp.OpenPgpSignatureResult;
+import org.robolectric.RobolectricTestRunner;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyResult;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncrypt;
+import org.sufficientlysecure.keychain.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.security.Security;
+
+/**
+ * Verification of cleartext signed messages, whose canonical text is spilled to a temp file
+ * once it doesn't fit in memory.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CleartextVerifyTest {
+
+    private static final String PASSPHRASE = "cleartext";
+
+    private static MemoryKeyRingLookup sLookup;
+    private static long sMasterKeyId;
+
+    private File mTempDir;
+
+    @BeforeClass
+    public static void createKeyRing() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        sLookup = new MemoryKeyRingLookup();
+        sMasterKeyId = sLookup.createKeyRing(Constants.choice.algorithm.rsa, 2048,
+                Constants.choice.algorithm.rsa, 2048, PASSPHRASE);
+    }
+
+    @Before
+    public void createTempDir() throws Exception {
+        mTempDir = File.createTempFile("cleartext", "dir");
+        Assert.assertTrue(mTempDir.delete() && mTempDir.mkdir());
+    }
+
+    @After
+    public void deleteTempDir() {
+        // everything in it must have been deleted by the verification
+        Assert.assertEquals(0, mTempDir.list().length);
+        Assert.assertTrue(mTempDir.delete());
+    }
+
+    private static String text(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("line ").append(i).append(" of the quick brown fox");
+            // trailing whitespace and mixed line endings are canonicalized
+            text.append(i % 3 == 0 ? " \t" : "").append(i % 2 == 0 ? "\r\n" : "\n");
+        }
+        return text.toString();
+    }
+
+    private static byte[] sign(String text) throws Exception {
+        byte[] data = text.getBytes("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PgpSignEncrypt.Builder(sLookup, "cleartext",
+                new InputData(new ByteArrayInputStream(data), data.length), out)
+                .setEnableAsciiArmorOutput(true)
+                .setCleartextInput(true)
+                .setSignatureHashAlgorithm(HashAlgorithmTags.SHA256)
+                .setSignatureMasterKeyId(sMasterKeyId)
+                .setSignaturePassphrase(PASSPHRASE)
+                .build()
+                .execute();
+        return out.toByteArray();
+    }
+
+    private int verify(byte[] signed) throws Exception {
+        PgpDecryptVerifyResult result = new PgpDecryptVerify.Builder(sLookup,
+                new PgpDecryptVerify.PassphraseCache() {
+                    @Override
+                    public String getCachedPassphrase(long masterKeyId) {
+                        return PASSPHRASE;
+                    }
+                },
+                new InputData(new ByteArrayInputStream(signed), signed.length),
+                new ByteArrayOutputStream())
+                .setTempDir(mTempDir)
+                .build()
+                .execute();
+        return result.getSignatureResult().getStatus();
+    }
+
+    @Test
+    public void smallText() throws Exception {
+        Assert.assertEquals(OpenPgpSignatureResult.SIGNATURE_SUCCESS_UNCERTIFIED,
+                verify(sign(text(10))));
+    }
+
+    @Test
+    public void largeText() throws Exception {
+        // a few MiB, well past what is kept in memory
+        Assert.assertEquals(OpenPgpSignatureResult.SIGNATURE_SUCCESS_UNCERTIFIED,
+                verify(sign(text(100000))));
+    }
+
+    @Test
+    public void largeTextModifiedAtEnd() throws Exception {
+        byte[] signed = sign(text(100000));
+        String armored = new String(signed, "UTF-8");
+        // change the text close to its end, which is the part spilled to the file
+        int index = armored.lastIndexOf("fox", armored.indexOf("-----BEGIN PGP SIGNATURE"));
+        signed[index] = 'b';
+        Assert.assertEquals(OpenPgpSignatureResult.SIGNATURE_ERROR, verify(signed));
+    }
+
+}
@@ -0,0 +1,278 @@
+package tests;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests/sec and latency of HkpKeyserver against a local stand-in server, as a baseline for
+ * changes to its connection handling.
+ *
+ * The stub answers every request with the same index, keeping connections alive, and counts
+ * the connections it accepts. A second address which never answers is used to exercise the
+ * race between the addresses of a host.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class HkpKeyserverBenchmarkTest {
+
+    /** Minimum time spent on each measurement */
+    private static final long MEASURE_MILLIS = 2000;
+
+    private static final int THREADS = 4;
+
+    /** Number of fresh connections whose first request is measured */
+    private static final int COLD_ROUNDS = 10;
+
+    // TEST-NET-1, which is never routed, so connections to it time out or fail
+    private static final byte[] DEAD_ADDRESS = { (byte) 192, 0, 2, 1 };
+
+    private static final String INDEX = "info:1:1\n"
+            + "pub:0123456789ABCDEF0123456789ABCDEF01234567:1:2048:1400000000::\n"
+            + "uid:Test <test@example.com>:1400000000::\n";
+
+    private StubServer mServer;
+    private InetAddress mLiveAddress;
+    private InetAddress mDeadAddress;
+
+    @Before
+    public void startServer() throws Exception {
+        // requests go to the stub, not to robolectric's fake http layer
+        Robolectric.getFakeHttpLayer().interceptHttpRequests(false);
+
+        mLiveAddress = InetAddress.getByName("127.0.0.1");
+        mDeadAddress = InetAddress.getByAddress(DEAD_ADDRESS);
+        mServer = new StubServer(mLiveAddress);
+        new Thread(mServer).start();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        mServer.close();
+    }
+
+    private HkpKeyserver keyserver(InetAddress... addresses) {
+        return new HkpKeyserver("localhost", mServer.getPort(), addresses);
+    }
+
+    @Test
+    public void sequential() throws Exception {
+        HkpKeyserver keyserver = keyserver(mLiveAddress);
+        Assert.assertEquals(1, keyserver.search("test@example.com").size());
+
+        int connections = mServer.getConnections();
+        Latencies latencies = new Latencies();
+        long start = System.nanoTime();
+        do {
+            long requestStart = System.nanoTime();
+            keyserver.search("test@example.com");
+            latencies.add(System.nanoTime() - requestStart);
+        } while (System.nanoTime() - start < MEASURE_MILLIS * 1000000);
+        latencies.report("sequential", System.nanoTime() - start,
+                mServer.getConnections() - connections);
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        final HkpKeyserver keyserver = keyserver(mLiveAddress);
+        Assert.assertEquals(1, keyserver.search("test@example.com").size());
+
+        int connections = mServer.getConnections();
+        final Latencies latencies = new Latencies();
+        final long start = System.nanoTime();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        do {
+                            long requestStart = System.nanoTime();
+                            keyserver.search("test@example.com");
+                            latencies.add(System.nanoTime() - requestStart);
+                        } while (System.nanoTime() - start < MEASURE_MILLIS * 1000000);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, failures.get());
+        latencies.report("concurrent x" + THREADS, System.nanoTime() - start,
+                mServer.getConnections() - connections);
+    }
+
+    @Test
+    public void raceLiveFirst() throws Exception {
+        measureCold("race live first", mLiveAddress, mDeadAddress);
+    }
+
+    @Test
+    public void raceDeadFirst() throws Exception {
+        // the live address is tried after the head start of the dead one
+        measureCold("race dead first", mDeadAddress, mLiveAddress);
+    }
+
+    /** Measures the first request of fresh connections, which includes the race. */
+    private void measureCold(String name, InetAddress... addresses) throws Exception {
+        int connections = mServer.getConnections();
+        Latencies latencies = new Latencies();
+        long start = System.nanoTime();
+        for (int i = 0; i < COLD_ROUNDS; i++) {
+            long requestStart = System.nanoTime();
+            Assert.assertEquals(1, keyserver(addresses).search("test@example.com").size());
+            latencies.add(System.nanoTime() - requestStart);
+        }
+        // each includes the handshake of the probe socket
+        latencies.report(name, System.nanoTime() - start,
+                mServer.getConnections() - connections);
+    }
+
+    private static class Latencies {
+        private final List<Long> mNanos = new ArrayList<Long>();
+
+        synchronized void add(long nanos) {
+            mNanos.add(nanos);
+        }
+
+        synchronized void report(String name, long nanos, int connections) {
+            long[] sorted = new long[mNanos.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = mNanos.get(i);
+            }
+            Arrays.sort(sorted);
+            System.out.println(String.format(
+                    "%-20s %8d requests %10.1f requests/s  p50 %8.3f ms  p99 %8.3f ms"
+                            + "  max %8.3f ms %5d connections",
+                    name, sorted.length, sorted.length / (nanos / 1e9),
+                    percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6,
+                    sorted[sorted.length - 1] / 1e6, connections));
+        }
+
+        private static long percentile(long[] sorted, double p) {
+            return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+        }
+    }
+
+    /** Answers every request with INDEX, on keep-alive connections. */
+    private static class StubServer implements Runnable {
+        private final ServerSocket mServerSocket;
+        private final AtomicInteger mConnections = new AtomicInteger();
+
+        StubServer(InetAddress address) throws IOException {
+            // the port of HkpKeyserver is a short, so ephemeral ports may not fit
+            ServerSocket serverSocket = null;
+            for (int port = 11371; serverSocket == null; port++) {
+                try {
+                    serverSocket = new ServerSocket(port, 50, address);
+                } catch (IOException e) {
+                    if (port >= 11471) {
+                        throw e;
+                    }
+                }
+            }
+            mServerSocket = serverSocket;
+        }
+
+        short getPort() {
+            return (short) mServerSocket.getLocalPort();
+        }
+
+        int getConnections() {
+            return mConnections.get();
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mServerSocket.accept();
+                    mConnections.incrementAndGet();
+                    Thread thread = new Thread() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    };
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private static void serve(Socket socket) {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                // a single write, so the response doesn't wait for the ack of its header
+                byte[] response = ("HTTP/1.1 200 OK\r\n"
+                        + "Content-Type: text/plain; charset=UTF-8\r\n"
+                        + "Content-Length: " + INDEX.getBytes("UTF-8").length + "\r\n"
+                        + "\r\n" + INDEX).getBytes("UTF-8");
+                while (readLine(in) != null) {
+                    // skip the headers, requests are all answered the same
+                    int contentLength = 0;
+                    String line;
+                    while ((line = readLine(in)) != null && line.length() > 0) {
+                        if (line.toLowerCase().startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(line.substring(15).trim());
+                        }
+                    }
+                    for (int i = 0; i < contentLength && in.read() != -1; i++) {
+                        // skip the body of a post
+                    }
+                    out.write(response);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // connection closed by the client
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    return line.toString().trim();
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+    }
+
+}
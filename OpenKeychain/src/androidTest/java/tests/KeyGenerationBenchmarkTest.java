@@ -0,0 +1,49 @@
+package tests;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+
+import java.security.Security;
+import java.util.ArrayList;
+
+/**
+ * Keys per minute of generating the default RSA keys, against the number of threads.
+ *
+ * Generates the master key and two subkeys of ACTION_GENERATE_DEFAULT_RSA_KEYS once for
+ * every thread count from one up to the number of processors, and prints the rate of each.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class KeyGenerationBenchmarkTest {
+
+    private static final int KEY_SIZE = 4096;
+
+    private static final boolean[] IS_MASTER_KEY = { true, false, false };
+
+    @BeforeClass
+    public static void addProvider() {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+    }
+
+    @Test
+    public void keysPerMinute() throws Exception {
+        PgpKeyOperation keyOperations = new PgpKeyOperation(null);
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= processors; threads++) {
+            long start = System.nanoTime();
+            ArrayList<byte[]> keys = keyOperations.createKeys(Constants.choice.algorithm.rsa,
+                    KEY_SIZE, "benchmark", IS_MASTER_KEY, threads, null);
+            double minutes = (System.nanoTime() - start) / 60e9;
+
+            Assert.assertEquals(IS_MASTER_KEY.length, keys.size());
+            System.out.println(String.format("RSA %d, %d threads: %.1f keys/min",
+                    KEY_SIZE, threads, keys.size() / minutes));
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package tests;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import java.util.Random;
+
+/**
+ * Latency of find by subkey and find by email over 50k keyrings, with the correlated EXISTS
+ * queries of database version 2 and with the IN subqueries over the indices of version 3.
+ *
+ * Only the columns the lookups touch are created, the queries have the shape of those of
+ * KeychainProvider for KEY_RINGS_FIND_BY_SUBKEY and KEY_RINGS_FIND_BY_EMAIL.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class KeyLookupBenchmarkTest {
+
+    private static final int KEY_RINGS = 50000;
+
+    /** Minimum time spent on each query */
+    private static final long MEASURE_MILLIS = 1000;
+
+    private static final String KEY_ID_INDEX = "CREATE INDEX IF NOT EXISTS keys_key_id_index ON "
+            + Tables.KEYS + "(" + Keys.KEY_ID + ")";
+    private static final String EMAIL_INDEX = "CREATE INDEX IF NOT EXISTS user_ids_email_index ON "
+            + Tables.USER_IDS + "(" + UserIds.EMAIL + ")";
+
+    // the master key with its primary user id, like the unified key ring query
+    private static final String QUERY = "SELECT "
+            + Tables.KEYS + "." + Keys.MASTER_KEY_ID + ", " + Tables.USER_IDS + "." + UserIds.USER_ID
+            + " FROM " + Tables.KEYS + " INNER JOIN " + Tables.USER_IDS + " ON ("
+                + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                    + " = " + Tables.USER_IDS + "." + UserIds.MASTER_KEY_ID
+                + " AND " + Tables.USER_IDS + "." + UserIds.RANK + " = 0"
+            + ") WHERE " + Tables.KEYS + "." + Keys.RANK + " = 0 AND ";
+
+    private SQLiteDatabase mDb;
+    private long[] mSubKeyIds = new long[KEY_RINGS];
+    private String[] mEmails = new String[KEY_RINGS];
+
+    @Before
+    public void createTables() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE " + Tables.KEYS + " ("
+                + Keys.MASTER_KEY_ID + " INTEGER, "
+                + Keys.RANK + " INTEGER, "
+                + Keys.KEY_ID + " INTEGER, "
+                + "PRIMARY KEY(" + Keys.MASTER_KEY_ID + ", " + Keys.RANK + "))");
+        mDb.execSQL("CREATE TABLE " + Tables.USER_IDS + " ("
+                + UserIds.MASTER_KEY_ID + " INTEGER, "
+                + UserIds.USER_ID + " TEXT, "
+                + UserIds.RANK + " INTEGER, "
+                + UserIds.EMAIL + " TEXT, "
+                + "PRIMARY KEY(" + UserIds.MASTER_KEY_ID + ", " + UserIds.USER_ID + "), "
+                + "UNIQUE (" + UserIds.MASTER_KEY_ID + ", " + UserIds.RANK + "))");
+
+        // a master key and an encryption subkey each
+        Random random = new Random(42);
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < KEY_RINGS; i++) {
+                long masterKeyId = random.nextLong();
+                mSubKeyIds[i] = random.nextLong();
+                mEmails[i] = "user" + i + "@example.com";
+                mDb.execSQL("INSERT INTO " + Tables.KEYS + " VALUES (?, ?, ?)",
+                        new Object[]{ masterKeyId, 0, masterKeyId });
+                mDb.execSQL("INSERT INTO " + Tables.KEYS + " VALUES (?, ?, ?)",
+                        new Object[]{ masterKeyId, 1, mSubKeyIds[i] });
+                mDb.execSQL("INSERT INTO " + Tables.USER_IDS + " VALUES (?, ?, ?, ?)",
+                        new Object[]{ masterKeyId, "User " + i + " <" + mEmails[i] + ">", 0,
+                                UserIds.extractEmail("User " + i + " <" + mEmails[i] + ">") });
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @After
+    public void closeDb() {
+        mDb.close();
+    }
+
+    @Test
+    public void findBySubkey() {
+        measure("find by subkey, v2 exists", new Lookup() {
+            @Override
+            public String getWhere(int i) {
+                return "EXISTS (SELECT 1 FROM " + Tables.KEYS + " AS tmp"
+                        + " WHERE tmp." + Keys.MASTER_KEY_ID
+                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                        + " AND tmp." + Keys.KEY_ID + " = " + mSubKeyIds[i] + ")";
+            }
+        });
+        Lookup lookup = new Lookup() {
+            @Override
+            public String getWhere(int i) {
+                return Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                        + " SELECT tmp." + Keys.MASTER_KEY_ID + " FROM " + Tables.KEYS + " AS tmp"
+                        + " WHERE tmp." + Keys.KEY_ID + " = " + mSubKeyIds[i] + ")";
+            }
+        };
+        measure("find by subkey, v3 in, no index", lookup);
+        mDb.execSQL(KEY_ID_INDEX);
+        measure("find by subkey, v3 in, index", lookup);
+    }
+
+    @Test
+    public void findByEmail() {
+        measure("find by email, v2 exists like", new Lookup() {
+            @Override
+            public String getWhere(int i) {
+                return "EXISTS (SELECT 1 FROM " + Tables.USER_IDS + " AS tmp"
+                        + " WHERE tmp." + UserIds.MASTER_KEY_ID
+                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                        + " AND (tmp." + UserIds.USER_ID + " LIKE "
+                            + DatabaseUtils.sqlEscapeString("%<" + mEmails[i] + ">") + "))";
+            }
+        });
+        Lookup lookup = new Lookup() {
+            @Override
+            public String getWhere(int i) {
+                return Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                        + " SELECT tmp." + UserIds.MASTER_KEY_ID + " FROM " + Tables.USER_IDS + " AS tmp"
+                        + " WHERE tmp." + UserIds.EMAIL + " IN ("
+                            + DatabaseUtils.sqlEscapeString(UserIds.normalizeEmail(mEmails[i]))
+                        + "))";
+            }
+        };
+        measure("find by email, v3 in, no index", lookup);
+        mDb.execSQL(EMAIL_INDEX);
+        measure("find by email, v3 in, index", lookup);
+    }
+
+    private interface Lookup {
+        /** Returns the condition which finds the keyring with the given index */
+        String getWhere(int i);
+    }
+
+    private void measure(String name, Lookup lookup) {
+        Random random = new Random(7);
+        long lookups = 0;
+        long start = System.nanoTime();
+        do {
+            Cursor cursor = mDb.rawQuery(QUERY + lookup.getWhere(random.nextInt(KEY_RINGS)), null);
+            try {
+                Assert.assertEquals(1, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+            lookups += 1;
+        } while (System.nanoTime() - start < MEASURE_MILLIS * 1000000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%-35s %10.1f lookups/s %10.3f ms/lookup",
+                name, lookups / seconds, seconds * 1000 / lookups));
+    }
+
+}
@@ -0,0 +1,63 @@
+package tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearch;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+@RunWith(RobolectricTestRunner.class)
+public class KeyRingsSearchTest {
+
+    @Test
+    public void words() {
+        Assert.assertEquals("\"alice*\"", KeyRingsSearch.buildMatchQuery("alice"));
+        Assert.assertEquals("\"Alice*\" \"Smith*\"", KeyRingsSearch.buildMatchQuery("Alice Smith"));
+        Assert.assertEquals("\"bob*\"", KeyRingsSearch.buildMatchQuery("  bob  "));
+    }
+
+    @Test
+    public void splitsLikeTokenizer() {
+        Assert.assertEquals("\"alice*\" \"example*\" \"com*\"",
+                KeyRingsSearch.buildMatchQuery("alice@example.com"));
+        Assert.assertEquals("\"Jürgen*\" \"Müller*\"",
+                KeyRingsSearch.buildMatchQuery("Jürgen Müller"));
+    }
+
+    @Test
+    public void keyIdPrefix() {
+        Assert.assertEquals("\"1234ABCD*\"", KeyRingsSearch.buildMatchQuery("0x1234ABCD"));
+        Assert.assertEquals("\"1234abcd*\"", KeyRingsSearch.buildMatchQuery("0X1234abcd"));
+        Assert.assertEquals("\"0x*\"", KeyRingsSearch.buildMatchQuery("0x"));
+    }
+
+    @Test
+    public void operatorsAndSyntaxAreQuoted() {
+        Assert.assertEquals("\"a*\" \"OR*\" \"b*\"", KeyRingsSearch.buildMatchQuery("a OR b"));
+        Assert.assertEquals("\"NEAR*\"", KeyRingsSearch.buildMatchQuery("NEAR"));
+        Assert.assertEquals("\"quoted*\" \"not*\"",
+                KeyRingsSearch.buildMatchQuery("\"quoted\" -not"));
+        Assert.assertEquals("\"ab*\"", KeyRingsSearch.buildMatchQuery("ab*"));
+    }
+
+    @Test
+    public void noWords() {
+        Assert.assertNull(KeyRingsSearch.buildMatchQuery(""));
+        Assert.assertNull(KeyRingsSearch.buildMatchQuery("  @.-"));
+    }
+
+    @Test
+    public void content() {
+        String content = KeyRingsSearch.buildContent(
+                Arrays.asList("Alice <alice@example.com>"),
+                Arrays.asList(0x0123456789abcdefL),
+                Collections.singletonList(new byte[]{ 0x01, (byte) 0xab, (byte) 0xff }));
+        Assert.assertEquals("Alice <alice@example.com>\n"
+                + "0123456789abcdef 89abcdef\n"
+                + "01abff\n", content);
+    }
+
+}
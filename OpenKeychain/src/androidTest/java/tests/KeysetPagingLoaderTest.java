@@ -0,0 +1,110 @@
+package tests;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.sufficientlysecure.keychain.ui.adapter.KeysetPagingLoader;
+import org.sufficientlysecure.keychain.ui.adapter.KeysetPagingLoader.SortKey;
+
+import java.util.ArrayList;
+
+@RunWith(RobolectricTestRunner.class)
+public class KeysetPagingLoaderTest {
+
+    // same shape as the order of the key list: secret keys first, then by user id
+    private static final SortKey[] ORDER = new SortKey[]{
+            new SortKey("secret", "secret", true, true),
+            new SortKey("name", "name", false, false),
+            new SortKey("id", "id", true, false)
+    };
+
+    private static final String ORDER_BY = "secret DESC, name ASC, id ASC";
+
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void createTable() {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE keys (id INTEGER PRIMARY KEY, secret INTEGER, name TEXT)");
+        String[] names = { "alice", "bob", "o'brien", "bob", "carol", "alice", "dave" };
+        for (int i = 0; i < 20; i++) {
+            ContentValues values = new ContentValues();
+            values.put("id", 1000 - i * 7);
+            values.put("secret", i % 3 == 0 ? 1 : 0);
+            values.put("name", names[i % names.length]);
+            mDb.insert("keys", null, values);
+        }
+    }
+
+    @After
+    public void closeDb() {
+        mDb.close();
+    }
+
+    private Cursor query(String selection, String limit) {
+        return mDb.query("keys", new String[]{ "id", "secret", "name" }, selection, null,
+                null, null, ORDER_BY, limit);
+    }
+
+    private static ArrayList<Long> getIds(Cursor cursor) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+        }
+        return ids;
+    }
+
+    @Test
+    public void selection() {
+        Cursor cursor = query("id = 1000", null);
+        Assert.assertTrue(cursor.moveToFirst());
+        Assert.assertEquals("secret < 1 OR (secret = 1 AND (name > 'alice'"
+                + " OR (name = 'alice' AND (id > 1000))))",
+                KeysetPagingLoader.buildSeekSelection(ORDER, cursor));
+        cursor.close();
+    }
+
+    @Test
+    public void selectionEscapesStrings() {
+        Cursor cursor = query("name = 'o''brien'", "1");
+        Assert.assertTrue(cursor.moveToFirst());
+        String selection = KeysetPagingLoader.buildSeekSelection(
+                new SortKey[]{ ORDER[1] }, cursor);
+        Assert.assertEquals("name > 'o''brien'", selection);
+        cursor.close();
+    }
+
+    @Test
+    public void pagesCoverAllRowsInOrder() {
+        Cursor all = query(null, null);
+        ArrayList<Long> expected = getIds(all);
+        all.close();
+
+        // pages smaller than the groups of equal sort values
+        for (int pageSize = 1; pageSize <= 4; pageSize++) {
+            ArrayList<Long> paged = new ArrayList<Long>();
+            String next = null;
+            while (true) {
+                Cursor page = query(next, Integer.toString(pageSize));
+                int count = page.getCount();
+                paged.addAll(getIds(page));
+                if (page.moveToLast()) {
+                    next = KeysetPagingLoader.buildSeekSelection(ORDER, page);
+                }
+                page.close();
+                if (count < pageSize) {
+                    break;
+                }
+            }
+            Assert.assertEquals("page size " + pageSize, expected, paged);
+        }
+    }
+
+}
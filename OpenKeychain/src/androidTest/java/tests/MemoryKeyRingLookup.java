@@ -0,0 +1,120 @@
+package tests;
+
+import org.sufficientlysecure.keychain.pgp.KeyRingLookup;
+import org.sufficientlysecure.keychain.pgp.PgpConversionHelper;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedSecretKey;
+import org.sufficientlysecure.keychain.pgp.WrappedPublicKey;
+import org.sufficientlysecure.keychain.pgp.WrappedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.WrappedSecretKeyRing;
+import org.sufficientlysecure.keychain.service.OldSaveKeyringParcel;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+
+/** Keeps generated keyrings in memory, by master key and subkey ids */
+class MemoryKeyRingLookup implements KeyRingLookup {
+    private final HashMap<Long, WrappedPublicKeyRing> mPublic =
+            new HashMap<Long, WrappedPublicKeyRing>();
+    private final HashMap<Long, WrappedSecretKeyRing> mSecret =
+            new HashMap<Long, WrappedSecretKeyRing>();
+    private final HashMap<Long, Long> mMasterKeyIds = new HashMap<Long, Long>();
+
+    /**
+     * Generates a keyring with a signing master key and an encryption subkey, and adds it.
+     *
+     * @return the master key id of the new keyring
+     */
+    long createKeyRing(int masterAlgorithm, int masterSize, int subAlgorithm, int subSize,
+                       String passphrase) throws Exception {
+        PgpKeyOperation keyOperations = new PgpKeyOperation(null);
+
+        OldSaveKeyringParcel parcel = new OldSaveKeyringParcel();
+        parcel.keys = new ArrayList<UncachedSecretKey>();
+        parcel.keys.add(PgpConversionHelper.BytesToPGPSecretKey(
+                keyOperations.createKey(masterAlgorithm, masterSize, passphrase, true)));
+        parcel.keys.add(PgpConversionHelper.BytesToPGPSecretKey(
+                keyOperations.createKey(subAlgorithm, subSize, passphrase, false)));
+        parcel.keysUsages = new ArrayList<Integer>();
+        parcel.keysUsages.add(UncachedSecretKey.CERTIFY_OTHER | UncachedSecretKey.SIGN_DATA);
+        parcel.keysUsages.add(UncachedSecretKey.ENCRYPT_COMMS | UncachedSecretKey.ENCRYPT_STORAGE);
+        parcel.keysExpiryDates = new ArrayList<Calendar>();
+        parcel.keysExpiryDates.add(null);
+        parcel.keysExpiryDates.add(null);
+        parcel.userIds = new ArrayList<String>();
+        parcel.userIds.add("Test <test@example.com>");
+        parcel.oldPassphrase = passphrase;
+        parcel.newPassphrase = passphrase;
+
+        PgpKeyOperation.Pair<UncachedKeyRing, UncachedKeyRing> pair =
+                keyOperations.buildNewSecretKey(parcel);
+        return add(pair.first, pair.second);
+    }
+
+    long add(UncachedKeyRing secretRing, UncachedKeyRing publicRing) throws Exception {
+        long masterKeyId = publicRing.getMasterKeyId();
+        mPublic.put(masterKeyId, new WrappedPublicKeyRing(publicRing.getEncoded(), true, 0));
+        mSecret.put(masterKeyId, new WrappedSecretKeyRing(secretRing.getEncoded(), false, 0));
+        for (long subKeyId : secretRing.getAvailableSubkeys()) {
+            mMasterKeyIds.put(subKeyId, masterKeyId);
+        }
+        mMasterKeyIds.put(masterKeyId, masterKeyId);
+        return masterKeyId;
+    }
+
+    private long getMasterKeyId(long subKeyId) throws NotFoundException {
+        Long masterKeyId = mMasterKeyIds.get(subKeyId);
+        if (masterKeyId == null) {
+            throw new NotFoundException();
+        }
+        return masterKeyId;
+    }
+
+    @Override
+    public WrappedPublicKeyRing getPublicKeyRing(long masterKeyId) throws NotFoundException {
+        WrappedPublicKeyRing ring = mPublic.get(masterKeyId);
+        if (ring == null) {
+            throw new NotFoundException();
+        }
+        return ring;
+    }
+
+    @Override
+    public WrappedPublicKeyRing getPublicKeyRingBySubkey(long subKeyId)
+            throws NotFoundException {
+        return getPublicKeyRing(getMasterKeyId(subKeyId));
+    }
+
+    @Override
+    public WrappedSecretKeyRing getSecretKeyRing(long masterKeyId) throws NotFoundException {
+        WrappedSecretKeyRing ring = mSecret.get(masterKeyId);
+        if (ring == null) {
+            throw new NotFoundException();
+        }
+        return ring;
+    }
+
+    @Override
+    public WrappedSecretKeyRing getSecretKeyRingBySubkey(long subKeyId)
+            throws NotFoundException {
+        return getSecretKeyRing(getMasterKeyId(subKeyId));
+    }
+
+    @Override
+    public ArrayList<WrappedPublicKey> getEncryptionSubKeys(long[] masterKeyIds) {
+        ArrayList<WrappedPublicKey> keys = new ArrayList<WrappedPublicKey>();
+        for (long masterKeyId : masterKeyIds) {
+            WrappedPublicKeyRing ring = mPublic.get(masterKeyId);
+            try {
+                if (ring != null && ring.hasEncrypt()) {
+                    keys.add(ring.getSubkey(ring.getEncryptId()));
+                }
+            } catch (Exception e) {
+                // no usable encryption subkey, skip as the interface says
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,201 @@
+package tests;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Messenger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpConversionHelper;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedSecretKey;
+import org.sufficientlysecure.keychain.pgp.WrappedSecretKeyRing;
+import org.sufficientlysecure.keychain.service.IPassphraseCacheService;
+import org.sufficientlysecure.keychain.service.OldSaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Calendar;
+
+/**
+ * Lookups per second of the passphrase cache.
+ *
+ * Measures cache hits through the binder interface of PassphraseCacheService, called in
+ * process so only the lookup itself is measured, against the intent and Messenger round trip
+ * lookups used before the binding: a HandlerThread and Messenger per lookup, the intent
+ * handled by onStartCommand and the reply awaited on a mutex. The intent is passed to
+ * onStartCommand directly, so the hop through startService and the main thread of a real
+ * device comes on top of the measured time of the old path.
+ *
+ * For comparison it also measures what every lookup of a key without passphrase used to
+ * cost before this was memoized: loading and parsing the secret keyring to ask it
+ * hasPassphrase().
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PassphraseCacheBenchmarkTest {
+
+    private static final long MEASURE_MILLIS = 1000;
+
+    private static final long KEY_ID = 0x1234567890abcdefL;
+
+    private static final String PASSPHRASE = "benchmark";
+
+    @BeforeClass
+    public static void addProvider() {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+    }
+
+    /** Creates the service, with the passphrase of KEY_ID cached. */
+    private static PassphraseCacheService createService() {
+        PassphraseCacheService service = new PassphraseCacheService();
+        service.onCreate();
+
+        Intent intent = new Intent(Robolectric.application, PassphraseCacheService.class);
+        intent.setAction(PassphraseCacheService.ACTION_PASSPHRASE_CACHE_ADD);
+        intent.putExtra(PassphraseCacheService.EXTRA_TTL, 0L);
+        intent.putExtra(PassphraseCacheService.EXTRA_KEY_ID, KEY_ID);
+        intent.putExtra(PassphraseCacheService.EXTRA_PASSPHRASE, PASSPHRASE);
+        service.onStartCommand(intent, 0, 1);
+        return service;
+    }
+
+    @Test
+    public void cacheHits() throws Exception {
+        PassphraseCacheService service = createService();
+        Intent intent = new Intent(Robolectric.application, PassphraseCacheService.class);
+        IPassphraseCacheService cache = (IPassphraseCacheService) service.onBind(intent);
+        Assert.assertEquals(PASSPHRASE, cache.getCachedPassphrase(KEY_ID));
+
+        long lookups = 0;
+        long start = System.nanoTime();
+        do {
+            cache.getCachedPassphrase(KEY_ID);
+            lookups += 1;
+        } while (System.nanoTime() - start < MEASURE_MILLIS * 1000000);
+        report("cache hit through binder interface", lookups, System.nanoTime() - start);
+
+        service.onDestroy();
+    }
+
+    @Test
+    public void cacheHitsByIntent() throws Exception {
+        PassphraseCacheService service = createService();
+        Assert.assertEquals(PASSPHRASE, getCachedPassphraseByIntent(service, KEY_ID));
+
+        long lookups = 0;
+        long start = System.nanoTime();
+        do {
+            getCachedPassphraseByIntent(service, KEY_ID);
+            lookups += 1;
+        } while (System.nanoTime() - start < MEASURE_MILLIS * 1000000);
+        report("cache hit through intent and Messenger (old)", lookups, System.nanoTime() - start);
+
+        service.onDestroy();
+    }
+
+    /**
+     * The lookup of PassphraseCacheService before the binding, with the intent handed to the
+     * service directly instead of through startService.
+     */
+    private static String getCachedPassphraseByIntent(PassphraseCacheService service,
+                                                      long keyId) {
+        Intent intent = new Intent(Robolectric.application, PassphraseCacheService.class);
+        intent.setAction(PassphraseCacheService.ACTION_PASSPHRASE_CACHE_GET);
+
+        final Object mutex = new Object();
+        final Bundle returnBundle = new Bundle();
+        final boolean[] returned = { false };
+
+        HandlerThread handlerThread = new HandlerThread("getPassphraseThread");
+        handlerThread.start();
+        Handler returnHandler = new Handler(handlerThread.getLooper()) {
+            @Override
+            public void handleMessage(Message message) {
+                if (message.obj != null) {
+                    String passphrase = ((Bundle) message.obj)
+                            .getString(PassphraseCacheService.EXTRA_PASSPHRASE);
+                    returnBundle.putString(PassphraseCacheService.EXTRA_PASSPHRASE, passphrase);
+                }
+                synchronized (mutex) {
+                    returned[0] = true;
+                    mutex.notify();
+                }
+                getLooper().quit();
+            }
+        };
+
+        Messenger messenger = new Messenger(returnHandler);
+        intent.putExtra(PassphraseCacheService.EXTRA_KEY_ID, keyId);
+        intent.putExtra(PassphraseCacheService.EXTRA_MESSENGER, messenger);
+        service.onStartCommand(intent, 0, 1);
+
+        // the reply may already be there, if the looper runs messages on the sending thread
+        synchronized (mutex) {
+            try {
+                if (!returned[0]) {
+                    mutex.wait(3000);
+                }
+            } catch (InterruptedException e) {
+            }
+        }
+
+        return returnBundle.getString(PassphraseCacheService.EXTRA_PASSPHRASE);
+    }
+
+    @Test
+    public void keyRingParsing() throws Exception {
+        byte[] blob = createSecretKeyRing();
+        Assert.assertTrue(new WrappedSecretKeyRing(blob, false, 0).hasPassphrase());
+
+        long lookups = 0;
+        long start = System.nanoTime();
+        do {
+            new WrappedSecretKeyRing(blob, false, 0).hasPassphrase();
+            lookups += 1;
+        } while (System.nanoTime() - start < MEASURE_MILLIS * 1000000);
+        report("parsing secret keyring per lookup (without memo)", lookups,
+                System.nanoTime() - start);
+    }
+
+    private static byte[] createSecretKeyRing() throws Exception {
+        PgpKeyOperation keyOperations = new PgpKeyOperation(null);
+
+        OldSaveKeyringParcel parcel = new OldSaveKeyringParcel();
+        parcel.keys = new ArrayList<UncachedSecretKey>();
+        parcel.keys.add(PgpConversionHelper.BytesToPGPSecretKey(keyOperations.createKey(
+                Constants.choice.algorithm.rsa, 2048, PASSPHRASE, true)));
+        parcel.keys.add(PgpConversionHelper.BytesToPGPSecretKey(keyOperations.createKey(
+                Constants.choice.algorithm.rsa, 2048, PASSPHRASE, false)));
+        parcel.keysUsages = new ArrayList<Integer>();
+        parcel.keysUsages.add(UncachedSecretKey.CERTIFY_OTHER | UncachedSecretKey.SIGN_DATA);
+        parcel.keysUsages.add(UncachedSecretKey.ENCRYPT_COMMS | UncachedSecretKey.ENCRYPT_STORAGE);
+        parcel.keysExpiryDates = new ArrayList<Calendar>();
+        parcel.keysExpiryDates.add(null);
+        parcel.keysExpiryDates.add(null);
+        parcel.userIds = new ArrayList<String>();
+        parcel.userIds.add("Benchmark <benchmark@example.com>");
+        parcel.oldPassphrase = PASSPHRASE;
+        parcel.newPassphrase = PASSPHRASE;
+
+        PgpKeyOperation.Pair<UncachedKeyRing, UncachedKeyRing> pair =
+                keyOperations.buildNewSecretKey(parcel);
+        return pair.first.getEncoded();
+    }
+
+    private static void report(String name, long lookups, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.println(String.format("%-50s %12.0f lookups/s", name, lookups / seconds));
+    }
+
+}
@@ -0,0 +1,141 @@
+package tests;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncrypt;
+import org.sufficientlysecure.keychain.util.BufferPool;
+import org.sufficientlysecure.keychain.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.security.Security;
+import java.util.Random;
+
+/**
+ * Bytes allocated per sign/encrypt and decrypt/verify, with the buffers of BufferPool reused
+ * and with every operation allocating fresh ones, as before the pool.
+ *
+ * Counts the allocations of the calling thread, as reported by the JVM the tests run on. The
+ * streams holding input and output are allocated beforehand and not counted.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PgpAllocationBenchmarkTest {
+
+    private static final String PASSPHRASE = "allocation";
+
+    private static final int[] PAYLOAD_SIZES = { 1024, 64 * 1024, 10 * 1024 * 1024 };
+
+    /** Number of measured operations for each payload size */
+    private static final int[] ROUNDS = { 50, 20, 3 };
+
+    private static MemoryKeyRingLookup sLookup;
+    private static long sMasterKeyId;
+    private static com.sun.management.ThreadMXBean sThreads;
+
+    @BeforeClass
+    public static void createKeyRing() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        sLookup = new MemoryKeyRingLookup();
+        sMasterKeyId = sLookup.createKeyRing(Constants.choice.algorithm.rsa, 2048,
+                Constants.choice.algorithm.rsa, 2048, PASSPHRASE);
+
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            sThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        return sThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Drops all pooled buffers of this thread, so the next operation allocates its own. */
+    private static void emptyPool() {
+        for (int i = 0; i < 16; i++) {
+            BufferPool.acquire();
+        }
+    }
+
+    @Test
+    public void allocatedBytes() throws Exception {
+        Assume.assumeTrue(sThreads != null && sThreads.isThreadAllocatedMemorySupported());
+        sThreads.setThreadAllocatedMemoryEnabled(true);
+
+        for (int i = 0; i < PAYLOAD_SIZES.length; i++) {
+            int size = PAYLOAD_SIZES[i];
+            byte[] payload = new byte[size];
+            new Random(size).nextBytes(payload);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(size + 4096);
+            signEncrypt(payload, out);
+            byte[] ciphertext = out.toByteArray();
+            out = new ByteArrayOutputStream(size);
+            decryptVerify(ciphertext, out);
+            Assert.assertArrayEquals(payload, out.toByteArray());
+
+            for (boolean pooled : new boolean[]{ false, true }) {
+                long signEncryptBytes = 0;
+                long decryptVerifyBytes = 0;
+                for (int round = 0; round < ROUNDS[i]; round++) {
+                    if (!pooled) {
+                        emptyPool();
+                    }
+                    out = new ByteArrayOutputStream(size + 4096);
+                    long start = getAllocatedBytes();
+                    signEncrypt(payload, out);
+                    signEncryptBytes += getAllocatedBytes() - start;
+
+                    if (!pooled) {
+                        emptyPool();
+                    }
+                    out = new ByteArrayOutputStream(size);
+                    start = getAllocatedBytes();
+                    decryptVerify(ciphertext, out);
+                    decryptVerifyBytes += getAllocatedBytes() - start;
+                }
+                String name = "size=" + size + (pooled ? " pooled" : " fresh buffers");
+                System.out.println(String.format("%-30s sign+encrypt %12d bytes/op"
+                                + "   decrypt+verify %12d bytes/op", name,
+                        signEncryptBytes / ROUNDS[i], decryptVerifyBytes / ROUNDS[i]));
+            }
+        }
+    }
+
+    private static void signEncrypt(byte[] payload, ByteArrayOutputStream out) throws Exception {
+        new PgpSignEncrypt.Builder(sLookup, "allocation",
+                new InputData(new ByteArrayInputStream(payload), payload.length), out)
+                .setCompressionId(Constants.choice.compression.none)
+                .setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_256)
+                .setSignatureHashAlgorithm(HashAlgorithmTags.SHA256)
+                .setEncryptionMasterKeyIds(new long[]{ sMasterKeyId })
+                .setSignatureMasterKeyId(sMasterKeyId)
+                .setSignaturePassphrase(PASSPHRASE)
+                .build()
+                .execute();
+    }
+
+    private static void decryptVerify(byte[] ciphertext, ByteArrayOutputStream out)
+            throws Exception {
+        new PgpDecryptVerify.Builder(sLookup,
+                new PgpDecryptVerify.PassphraseCache() {
+                    @Override
+                    public String getCachedPassphrase(long masterKeyId) {
+                        return PASSPHRASE;
+                    }
+                },
+                new InputData(new ByteArrayInputStream(ciphertext), ciphertext.length), out)
+                .setPassphrase(PASSPHRASE)
+                .build()
+                .execute();
+    }
+
+}
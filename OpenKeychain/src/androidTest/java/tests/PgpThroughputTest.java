@@ -0,0 +1,144 @@
+package tests;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyResult;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncrypt;
+import org.sufficientlysecure.keychain.util.InputData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.Security;
+import java.util.Random;
+
+/**
+ * Throughput of sign/encrypt and decrypt/verify, as a baseline for changes to the crypto path.
+ *
+ * Runs every combination of key algorithm, compression, armor and payload size, and prints
+ * ops/sec and bytes/sec of each. Keyrings are generated once and looked up from memory, so
+ * only the crypto operations themselves are measured.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PgpThroughputTest {
+
+    private static final String PASSPHRASE = "throughput";
+
+    /** Minimum time spent on each combination */
+    private static final long MEASURE_MILLIS = 500;
+
+    private static final int[] PAYLOAD_SIZES = { 1024, 64 * 1024, 1024 * 1024 };
+
+    private static final int[] COMPRESSIONS = {
+            Constants.choice.compression.none,
+            Constants.choice.compression.zlib,
+            Constants.choice.compression.bzip2
+    };
+
+    private static MemoryKeyRingLookup sLookup;
+    private static long sRsaKeyId;
+    private static long sDsaElGamalKeyId;
+
+    @BeforeClass
+    public static void createKeyRings() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        sLookup = new MemoryKeyRingLookup();
+        sRsaKeyId = sLookup.createKeyRing(Constants.choice.algorithm.rsa, 2048,
+                Constants.choice.algorithm.rsa, 2048, PASSPHRASE);
+        sDsaElGamalKeyId = sLookup.createKeyRing(Constants.choice.algorithm.dsa, 1024,
+                Constants.choice.algorithm.elgamal, 2048, PASSPHRASE);
+    }
+
+    @Test
+    public void rsa() throws Exception {
+        measure("RSA", sRsaKeyId);
+    }
+
+    @Test
+    public void dsaElGamal() throws Exception {
+        measure("DSA/ElGamal", sDsaElGamalKeyId);
+    }
+
+    private void measure(String algorithm, long masterKeyId) throws Exception {
+        for (int size : PAYLOAD_SIZES) {
+            byte[] payload = new byte[size];
+            new Random(size).nextBytes(payload);
+            for (int compression : COMPRESSIONS) {
+                for (boolean armor : new boolean[]{ false, true }) {
+                    String name = algorithm + " compression=" + compression
+                            + " armor=" + armor + " size=" + size;
+
+                    byte[] ciphertext = signEncrypt(masterKeyId, payload, compression, armor);
+                    Assert.assertArrayEquals(payload, decryptVerify(ciphertext));
+
+                    long ops = 0;
+                    long start = System.nanoTime();
+                    do {
+                        signEncrypt(masterKeyId, payload, compression, armor);
+                        ops += 1;
+                    } while (System.nanoTime() - start < MEASURE_MILLIS * 1000000);
+                    report("sign+encrypt   " + name, ops, size, System.nanoTime() - start);
+
+                    ops = 0;
+                    start = System.nanoTime();
+                    do {
+                        decryptVerify(ciphertext);
+                        ops += 1;
+                    } while (System.nanoTime() - start < MEASURE_MILLIS * 1000000);
+                    report("decrypt+verify " + name, ops, size, System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    private static void report(String name, long ops, int size, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.println(String.format("%-70s %10.1f ops/s %14.0f bytes/s",
+                name, ops / seconds, ops * (double) size / seconds));
+    }
+
+    private static byte[] signEncrypt(long masterKeyId, byte[] payload, int compression,
+                                      boolean armor) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PgpSignEncrypt.Builder(sLookup, "throughput",
+                new InputData(
+                        new ByteArrayInputStream(payload), payload.length), out)
+                .setCompressionId(compression)
+                .setEnableAsciiArmorOutput(armor)
+                .setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_256)
+                .setSignatureHashAlgorithm(HashAlgorithmTags.SHA256)
+                .setEncryptionMasterKeyIds(new long[]{ masterKeyId })
+                .setSignatureMasterKeyId(masterKeyId)
+                .setSignaturePassphrase(PASSPHRASE)
+                .build()
+                .execute();
+        return out.toByteArray();
+    }
+
+    private static byte[] decryptVerify(byte[] ciphertext) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpDecryptVerifyResult result = new PgpDecryptVerify.Builder(sLookup,
+                new PgpDecryptVerify.PassphraseCache() {
+                    @Override
+                    public String getCachedPassphrase(long masterKeyId) {
+                        return PASSPHRASE;
+                    }
+                },
+                new InputData(
+                        new ByteArrayInputStream(ciphertext), ciphertext.length), out)
+                .setPassphrase(PASSPHRASE)
+                .build()
+                .execute();
+        Assert.assertNotNull(result.getSignatureResult());
+        return out.toByteArray();
+    }
+
+}
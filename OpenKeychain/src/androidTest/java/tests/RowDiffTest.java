@@ -0,0 +1,236 @@
+package tests;
+
+import android.content.ContentValues;
+import android.database.MatrixCursor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.sufficientlysecure.keychain.provider.RowDiff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Saving a keyring by diff must store exactly what deleting and inserting it again did, see
+ * ProviderHelper.savePublicKeyRing. Stored rows are modeled as a map by key, as the tables
+ * have a unique key per keyring.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RowDiffTest {
+
+    private static final String[] KEY_COLUMNS = { "rank", "certifier" };
+    // flag is maintained separately, so it is not compared
+    private static final String[] COLUMNS = { "rank", "certifier", "creation", "data" };
+    private static final String[] STORED_COLUMNS = { "rank", "certifier", "creation", "data", "flag" };
+
+    private static ContentValues row(int rank, long certifier, Long creation, byte[] data) {
+        ContentValues values = new ContentValues();
+        values.put("rank", rank);
+        values.put("certifier", certifier);
+        values.put("creation", creation);
+        values.put("data", data);
+        values.put("flag", 0);
+        return values;
+    }
+
+    private static String getKey(ContentValues values) {
+        return values.getAsString("rank") + "/" + values.getAsString("certifier");
+    }
+
+    private static LinkedHashMap<String, ContentValues> table(List<ContentValues> rows) {
+        LinkedHashMap<String, ContentValues> table = new LinkedHashMap<String, ContentValues>();
+        for (ContentValues values : rows) {
+            table.put(getKey(values), values);
+        }
+        return table;
+    }
+
+    private static MatrixCursor cursor(List<ContentValues> rows) {
+        MatrixCursor cursor = new MatrixCursor(STORED_COLUMNS);
+        for (ContentValues values : rows) {
+            Object[] row = new Object[STORED_COLUMNS.length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = values.get(STORED_COLUMNS[i]);
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static RowDiff diff(List<ContentValues> stored, List<ContentValues> rows) {
+        RowDiff diff = new RowDiff(KEY_COLUMNS, COLUMNS);
+        for (ContentValues values : rows) {
+            diff.addRow(values);
+        }
+        diff.compare(cursor(stored));
+        return diff;
+    }
+
+    /** Applies the diff to the stored rows, like the operations built from it would. */
+    private static LinkedHashMap<String, ContentValues> apply(
+            List<ContentValues> stored, RowDiff diff, boolean deleteChanged) {
+        LinkedHashMap<String, ContentValues> table = table(stored);
+        ArrayList<String[]> deleted = new ArrayList<String[]>(diff.getRemoved());
+        if (deleteChanged) {
+            deleted.addAll(diff.getChanged());
+        }
+        for (String[] key : deleted) {
+            Assert.assertNotNull(table.remove(key[0] + "/" + key[1]));
+        }
+        for (ContentValues values : diff.getInserted()) {
+            // inserts replace, like certs are stored
+            table.put(getKey(values), values);
+        }
+        return table;
+    }
+
+    private static void assertSameTable(LinkedHashMap<String, ContentValues> expected,
+                                        LinkedHashMap<String, ContentValues> actual) {
+        Assert.assertEquals(expected.keySet(), actual.keySet());
+        for (String key : expected.keySet()) {
+            for (String column : COLUMNS) {
+                Object expectedValue = expected.get(key).get(column);
+                Object actualValue = actual.get(key).get(column);
+                if (expectedValue instanceof byte[]) {
+                    Assert.assertArrayEquals((byte[]) expectedValue, (byte[]) actualValue);
+                } else {
+                    Assert.assertEquals(expectedValue, actualValue);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unchangedRowsAreLeftAlone() {
+        List<ContentValues> stored = Arrays.asList(
+                row(0, 1, 100L, new byte[]{ 1 }), row(1, 1, 100L, new byte[]{ 2 }));
+        List<ContentValues> rows = Arrays.asList(
+                row(0, 1, 100L, new byte[]{ 1 }), row(1, 1, 100L, new byte[]{ 2 }));
+        RowDiff diff = diff(stored, rows);
+
+        Assert.assertTrue(diff.getRemoved().isEmpty());
+        Assert.assertTrue(diff.getChanged().isEmpty());
+        Assert.assertTrue(diff.getInserted().isEmpty());
+        Assert.assertTrue(diff.isUnchanged(rows.get(0)));
+    }
+
+    @Test
+    public void addedRowIsOnlyInsert() {
+        List<ContentValues> stored = Arrays.asList(row(0, 1, 100L, new byte[]{ 1 }));
+        ContentValues added = row(0, 2, 200L, new byte[]{ 2 });
+        RowDiff diff = diff(stored, Arrays.asList(row(0, 1, 100L, new byte[]{ 1 }), added));
+
+        Assert.assertTrue(diff.getRemoved().isEmpty());
+        Assert.assertTrue(diff.getChanged().isEmpty());
+        Assert.assertEquals(1, diff.getInserted().size());
+        Assert.assertSame(added, diff.getInserted().iterator().next());
+    }
+
+    @Test
+    public void removedRow() {
+        List<ContentValues> stored = Arrays.asList(
+                row(0, 1, 100L, new byte[]{ 1 }), row(0, 2, 100L, new byte[]{ 2 }));
+        RowDiff diff = diff(stored, Arrays.asList(row(0, 1, 100L, new byte[]{ 1 })));
+
+        Assert.assertEquals(1, diff.getRemoved().size());
+        Assert.assertArrayEquals(new String[]{ "0", "2" }, diff.getRemoved().get(0));
+        Assert.assertTrue(diff.getInserted().isEmpty());
+        Assert.assertEquals("rank = ? AND certifier = ?", diff.getKeySelection());
+    }
+
+    @Test
+    public void changedColumns() {
+        ContentValues stored = row(0, 1, 100L, new byte[]{ 1, 2 });
+        ContentValues[] changed = {
+                row(0, 1, 101L, new byte[]{ 1, 2 }),
+                row(0, 1, 100L, new byte[]{ 1, 3 }),
+                row(0, 1, 100L, new byte[]{ 1 }),
+                row(0, 1, null, new byte[]{ 1, 2 }),
+        };
+        for (ContentValues values : changed) {
+            RowDiff diff = diff(Arrays.asList(stored), Arrays.asList(values));
+            Assert.assertEquals(1, diff.getChanged().size());
+            Assert.assertFalse(diff.isUnchanged(values));
+            Assert.assertEquals(1, diff.getInserted().size());
+        }
+    }
+
+    @Test
+    public void nullsAndBooleans() {
+        ContentValues stored = row(0, 1, null, null);
+        stored.put("flag", 1);
+        ContentValues values = row(0, 1, null, null);
+        values.put("flag", 0);
+        // flag is not compared
+        Assert.assertTrue(diff(Arrays.asList(stored), Arrays.asList(values)).isUnchanged(values));
+
+        RowDiff diff = new RowDiff(new String[]{ "rank" }, new String[]{ "rank", "flag" });
+        ContentValues flagged = new ContentValues();
+        flagged.put("rank", 0);
+        flagged.put("flag", true);
+        diff.addRow(flagged);
+        diff.compare(cursor(Arrays.asList(stored)));
+        Assert.assertTrue(diff.isUnchanged(flagged));
+    }
+
+    @Test
+    public void laterRowReplacesEarlier() {
+        ContentValues later = row(0, 1, 200L, new byte[]{ 2 });
+        RowDiff diff = diff(new ArrayList<ContentValues>(),
+                Arrays.asList(row(0, 1, 100L, new byte[]{ 1 }), later));
+        Assert.assertEquals(1, diff.getInserted().size());
+        Assert.assertSame(later, diff.getInserted().iterator().next());
+    }
+
+    @Test
+    public void sameResultAsDeleteAndReinsert() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            ArrayList<ContentValues> stored = randomRows(random);
+            ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+            // mostly the stored rows, with some changed, removed and added
+            for (ContentValues values : stored) {
+                int change = random.nextInt(8);
+                if (change == 0) {
+                    continue;
+                }
+                ContentValues copy = new ContentValues(values);
+                if (change == 1) {
+                    copy.put("creation", random.nextInt(3) == 0 ? null : (long) random.nextInt(4));
+                } else if (change == 2) {
+                    copy.put("data", new byte[]{ (byte) random.nextInt(4) });
+                } else if (change == 3) {
+                    copy.put("flag", 1);
+                }
+                rows.add(copy);
+            }
+            rows.addAll(randomRows(random));
+
+            // deleting and inserting all rows, later ones replacing earlier ones
+            LinkedHashMap<String, ContentValues> expected = table(rows);
+
+            boolean deleteChanged = random.nextBoolean();
+            LinkedHashMap<String, ContentValues> actual =
+                    apply(stored, diff(stored, rows), deleteChanged);
+            assertSameTable(expected, actual);
+        }
+    }
+
+    private static ArrayList<ContentValues> randomRows(Random random) {
+        LinkedHashMap<String, ContentValues> rows = new LinkedHashMap<String, ContentValues>();
+        int count = random.nextInt(6);
+        for (int i = 0; i < count; i++) {
+            ContentValues values = row(random.nextInt(3), random.nextInt(3),
+                    random.nextBoolean() ? null : (long) random.nextInt(4),
+                    new byte[]{ (byte) random.nextInt(4) });
+            rows.put(getKey(values), values);
+        }
+        return new ArrayList<ContentValues>(rows.values());
+    }
+
+}
@@ -46,6 +46,9 @@ public final class Constants {
 
     public static final String INTENT_PREFIX = PACKAGE_NAME + ".action.";
 
+    // signature permission protecting broadcasts between our own processes
+    public static final String PERMISSION_INTERNAL = PACKAGE_NAME + ".permission.INTERNAL";
+
     public static final class Path {
         public static final String APP_DIR = Environment.getExternalStorageDirectory()
                 + "/OpenKeychain";
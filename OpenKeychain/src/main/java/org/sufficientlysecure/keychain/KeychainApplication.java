@@ -24,6 +24,8 @@ import android.graphics.drawable.Drawable;
 import android.os.Environment;
 
 import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.pgp.PrivateKeyCache;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PRNGFixes;
 
@@ -57,6 +59,10 @@ public class KeychainApplication extends Application {
         PRNGFixes.apply();
         Log.d(Constants.TAG, "Bouncy Castle set and PRNG Fixes applied!");
 
+        // unlocked keys are cached in every process for as long as their passphrase
+        PrivateKeyCache.getInstance().setTtl(Preferences.getPreferences(this).getPassphraseCacheTtl());
+        PrivateKeyCache.getInstance().register(this);
+
         if (Constants.DEBUG) {
             Provider[] providers = Security.getProviders();
             Log.d(Constants.TAG, "Installed Security Providers:");
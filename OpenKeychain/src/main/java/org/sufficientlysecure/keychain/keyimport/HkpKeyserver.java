@@ -18,16 +18,26 @@
 
 package org.sufficientlysecure.keychain.keyimport;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.util.EntityUtils;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
@@ -36,19 +46,31 @@ import org.sufficientlysecure.keychain.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
+import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -75,6 +97,9 @@ public class HkpKeyserver extends Keyserver {
 
     private String mHost;
     private short mPort;
+    // fixed addresses of the host, with a connection of their own. null to resolve the host.
+    private InetAddress[] mAddresses;
+    private ServerConnection mConnection;
 
     /**
      * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
@@ -142,6 +167,15 @@ public class HkpKeyserver extends Keyserver {
 
     private static final short PORT_DEFAULT = 11371;
 
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 25000;
+    private static final int MAX_CONNECTIONS = 4;
+    // head start of each connection attempt before the next address is tried
+    private static final int RACE_DELAY = 250;
+
+    private static final HashMap<String, ServerConnection> sConnections =
+            new HashMap<String, ServerConnection>();
+
     /**
      * @param hostAndPort may be just
      *                    "<code>hostname</code>" (eg. "<code>pool.sks-keyservers.net</code>"), then it will
@@ -166,37 +200,72 @@ public class HkpKeyserver extends Keyserver {
         mPort = port;
     }
 
+    /**
+     * Connects to the given addresses of the host instead of resolving it, e.g. for a local
+     * server. Unlike with the other constructors, the connection is not shared with other
+     * instances.
+     */
+    public HkpKeyserver(String host, short port, InetAddress[] addresses) {
+        mHost = host;
+        mPort = port;
+        mAddresses = addresses;
+    }
+
+    /** Returns the connection shared by all instances for this keyserver. */
+    private ServerConnection getConnection() {
+        if (mAddresses != null) {
+            synchronized (this) {
+                if (mConnection == null) {
+                    mConnection = new ServerConnection(mHost, mPort, mAddresses);
+                }
+                return mConnection;
+            }
+        }
+
+        String key = mHost + ":" + mPort;
+        synchronized (sConnections) {
+            ServerConnection connection = sConnections.get(key);
+            if (connection == null) {
+                connection = new ServerConnection(mHost, mPort, null);
+                sConnections.put(key, connection);
+            }
+            return connection;
+        }
+    }
+
     private String query(String request) throws QueryFailedException, HttpError {
-        InetAddress ips[];
         try {
-            ips = InetAddress.getAllByName(mHost);
+            Log.d(Constants.TAG, "hkp keyserver query: " + request);
+            HttpResponse response = getConnection().execute(new HttpGet(), request);
+            int code = response.getStatusLine().getStatusCode();
+            String data = readResponse(response);
+            if (code >= 200 && code < 300) {
+                return data;
+            }
+            throw new HttpError(code, data);
         } catch (UnknownHostException e) {
             throw new QueryFailedException(e.toString());
+        } catch (IOException e) {
+            throw new QueryFailedException("querying server(s) for '" + mHost + "' failed");
         }
-        for (int i = 0; i < ips.length; ++i) {
-            try {
-                String url = "http://" + ips[i].getHostAddress() + ":" + mPort + request;
-                Log.d(Constants.TAG, "hkp keyserver query: " + url);
-                URL realUrl = new URL(url);
-                HttpURLConnection conn = (HttpURLConnection) realUrl.openConnection();
-                conn.setConnectTimeout(5000);
-                conn.setReadTimeout(25000);
-                conn.connect();
-                int response = conn.getResponseCode();
-                if (response >= 200 && response < 300) {
-                    return readAll(conn.getInputStream(), conn.getContentEncoding());
-                } else {
-                    String data = readAll(conn.getErrorStream(), conn.getContentEncoding());
-                    throw new HttpError(response, data);
-                }
-            } catch (MalformedURLException e) {
-                // nothing to do, try next IP
-            } catch (IOException e) {
-                // nothing to do, try next IP
+    }
+
+    /** Reads the whole response body, which also releases its connection to the pool. */
+    private static String readResponse(HttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return "";
+        }
+        InputStream is = entity.getContent();
+        try {
+            Header encoding = entity.getContentEncoding();
+            if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+                is = new GZIPInputStream(is);
             }
+            return readAll(is, EntityUtils.getContentCharSet(entity));
+        } finally {
+            is.close();
         }
-
-        throw new QueryFailedException("querying server(s) for '" + mHost + "' failed");
     }
 
     @Override
@@ -288,28 +357,21 @@ public class HkpKeyserver extends Keyserver {
 
     @Override
     public String get(String keyIdHex) throws QueryFailedException {
-        HttpClient client = new DefaultHttpClient();
         try {
-            String query = "http://" + mHost + ":" + mPort +
-                    "/pks/lookup?op=get&options=mr&search=" + keyIdHex;
-            Log.d(Constants.TAG, "hkp keyserver get: " + query);
-            HttpGet get = new HttpGet(query);
-            HttpResponse response = client.execute(get);
+            String request = "/pks/lookup?op=get&options=mr&search=" + keyIdHex;
+            Log.d(Constants.TAG, "hkp keyserver get: " + request);
+            HttpResponse response = getConnection().execute(new HttpGet(), request);
+            String data = readResponse(response);
             if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
                 throw new QueryFailedException("not found");
             }
 
-            HttpEntity entity = response.getEntity();
-            InputStream is = entity.getContent();
-            String data = readAll(is, EntityUtils.getContentCharSet(entity));
             Matcher matcher = PgpHelper.PGP_PUBLIC_KEY.matcher(data);
             if (matcher.find()) {
                 return matcher.group(1);
             }
         } catch (IOException e) {
             // nothing to do, better luck on the next keyserver
-        } finally {
-            client.getConnectionManager().shutdown();
         }
 
         return null;
@@ -317,23 +379,174 @@ public class HkpKeyserver extends Keyserver {
 
     @Override
     public void add(String armoredKey) throws AddKeyException {
-        HttpClient client = new DefaultHttpClient();
         try {
-            String query = "http://" + mHost + ":" + mPort + "/pks/add";
-            HttpPost post = new HttpPost(query);
-            Log.d(Constants.TAG, "hkp keyserver add: " + query);
+            HttpPost post = new HttpPost();
+            Log.d(Constants.TAG, "hkp keyserver add: /pks/add");
             List<NameValuePair> nameValuePairs = new ArrayList<NameValuePair>(2);
             nameValuePairs.add(new BasicNameValuePair("keytext", armoredKey));
             post.setEntity(new UrlEncodedFormEntity(nameValuePairs));
 
-            HttpResponse response = client.execute(post);
+            HttpResponse response = getConnection().execute(post, "/pks/add");
+            readResponse(response);
             if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
                 throw new AddKeyException();
             }
         } catch (IOException e) {
             // nothing to do, better luck on the next keyserver
-        } finally {
-            client.getConnectionManager().shutdown();
+        }
+    }
+
+    /**
+     * The connection to a single keyserver, shared by all HkpKeyserver instances for it.
+     *
+     * Requests go through one pooled client, so connections are kept alive and reused
+     * across requests. Requests are sent to an address of the host directly. When no
+     * address is known to work, connections to all of them are attempted, each starting
+     * RACE_DELAY after the previous one unless that one already failed, and the first one
+     * to connect is remembered until a request to it fails.
+     *
+     * The race connects plain sockets which are closed again right away, as the pooled client
+     * can't adopt them. The winning address thus costs one more TCP handshake when the client
+     * connects to it, which is only paid when no address is known to work.
+     */
+    private static class ServerConnection {
+        private final String mHost;
+        private final short mPort;
+        // null to resolve the host for every race
+        private final InetAddress[] mAddresses;
+        private final DefaultHttpClient mClient;
+
+        // guarded by this
+        private InetAddress mHealthyAddress;
+
+        ServerConnection(String host, short port, InetAddress[] addresses) {
+            mHost = host;
+            mPort = port;
+            mAddresses = addresses;
+
+            HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+            HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params,
+                    new ConnPerRouteBean(MAX_CONNECTIONS));
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            mClient = new DefaultHttpClient(
+                    new ThreadSafeClientConnManager(params, registry), params);
+        }
+
+        /**
+         * Sends a request for the given path, to the remembered address if there is one.
+         * If that fails, the address is forgotten and the request is sent once more, to
+         * the address which wins the race. The caller must read the response body.
+         */
+        HttpResponse execute(HttpRequestBase request, String path) throws IOException {
+            InetAddress address;
+            synchronized (this) {
+                address = mHealthyAddress;
+            }
+            if (address != null) {
+                try {
+                    return execute(request, path, address);
+                } catch (IOException e) {
+                    Log.d(Constants.TAG, "hkp keyserver " + address + " failed, racing again");
+                    synchronized (this) {
+                        if (mHealthyAddress == address) {
+                            mHealthyAddress = null;
+                        }
+                    }
+                }
+            }
+
+            address = race(mAddresses != null ? mAddresses : InetAddress.getAllByName(mHost));
+            synchronized (this) {
+                mHealthyAddress = address;
+            }
+            try {
+                return execute(request, path, address);
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (mHealthyAddress == address) {
+                        mHealthyAddress = null;
+                    }
+                }
+                throw e;
+            }
+        }
+
+        private HttpResponse execute(HttpRequestBase request, String path, InetAddress address)
+                throws IOException {
+            String hostAddress = address.getHostAddress();
+            if (address instanceof Inet6Address) {
+                hostAddress = "[" + hostAddress + "]";
+            }
+            request.setURI(URI.create("http://" + hostAddress + ":" + mPort + path));
+            // the server may host more than this keyserver
+            request.setHeader("Host", mHost + ":" + mPort);
+            request.setHeader("Accept-Encoding", "gzip");
+            return mClient.execute(request);
+        }
+
+        /** Returns the first of the addresses a connection could be established to. */
+        private InetAddress race(InetAddress[] addresses) throws IOException {
+            if (addresses.length == 1) {
+                return addresses[0];
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(addresses.length);
+            CompletionService<InetAddress> attempts =
+                    new ExecutorCompletionService<InetAddress>(executor);
+            int failed = 0;
+            try {
+                for (final InetAddress address : addresses) {
+                    attempts.submit(new Callable<InetAddress>() {
+                        @Override
+                        public InetAddress call() throws IOException {
+                            Socket socket = new Socket();
+                            try {
+                                socket.connect(new InetSocketAddress(address, mPort),
+                                        CONNECT_TIMEOUT);
+                            } finally {
+                                socket.close();
+                            }
+                            return address;
+                        }
+                    });
+
+                    // give this attempt a head start, unless it already failed
+                    Future<InetAddress> done = attempts.poll(RACE_DELAY, TimeUnit.MILLISECONDS);
+                    if (done != null) {
+                        try {
+                            return done.get();
+                        } catch (ExecutionException e) {
+                            Log.d(Constants.TAG, "hkp keyserver connect failed: " + e.getCause());
+                            failed++;
+                        }
+                    }
+                }
+
+                // all attempts are started, wait for the first one to succeed
+                while (failed < addresses.length) {
+                    Future<InetAddress> done = attempts.poll(CONNECT_TIMEOUT,
+                            TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        break;
+                    }
+                    try {
+                        return done.get();
+                    } catch (ExecutionException e) {
+                        Log.d(Constants.TAG, "hkp keyserver connect failed: " + e.getCause());
+                        failed++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("connecting to '" + mHost + "' interrupted");
+            } finally {
+                executor.shutdownNow();
+            }
+
+            throw new IOException("connecting to server(s) for '" + mHost + "' failed");
         }
     }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads the keyrings of a list of entries from a keyserver, several at a time.
+ *
+ * Entries with the same fingerprint, or key id if there is none, are downloaded only once.
+ * The keyrings are returned in the order of the entries, each one as soon as it arrived,
+ * so they can be imported while the following ones are still downloading. Only a limited
+ * number of downloads is started ahead of the keyring returned last, so memory use does
+ * not depend on the number of entries. A keyring which could not be downloaded is
+ * returned as null.
+ *
+ * Blocks in next() until the keyring is available. Must be closed when it is not
+ * iterated to the end.
+ */
+public class KeyDownloader implements Iterator<ParcelableKeyRing> {
+
+    /** Number of concurrent downloads */
+    public static final int PARALLEL_DOWNLOADS = 4;
+
+    /** Number of downloads started ahead of the keyring returned last */
+    private static final int LOOKAHEAD = 32;
+
+    private final HkpKeyserver mServer;
+    private final ExecutorService mExecutor;
+
+    // distinct queries with the fingerprint to expect, in order
+    private final ArrayList<String> mQueries = new ArrayList<String>();
+    private final ArrayList<String> mFingerprints = new ArrayList<String>();
+    private final ArrayList<Future<String>> mDownloads = new ArrayList<Future<String>>();
+    private int mPosition = 0;
+
+    public KeyDownloader(HkpKeyserver server, List<ImportKeysListEntry> entries) {
+        mServer = server;
+
+        LinkedHashMap<String, String> queries = new LinkedHashMap<String, String>();
+        for (ImportKeysListEntry entry : entries) {
+            // if available use complete fingerprint for get request
+            String fingerprint = entry.getFingerprintHex();
+            String query = fingerprint != null ? "0x" + fingerprint : entry.getKeyIdHex();
+            if (!queries.containsKey(query)) {
+                queries.put(query, fingerprint);
+            }
+        }
+        mQueries.addAll(queries.keySet());
+        mFingerprints.addAll(queries.values());
+
+        mExecutor = Executors.newFixedThreadPool(PARALLEL_DOWNLOADS);
+        startDownloads();
+    }
+
+    /** Returns the number of keyrings which will be returned, i.e. of distinct entries. */
+    public int size() {
+        return mQueries.size();
+    }
+
+    private void startDownloads() {
+        while (mDownloads.size() < mQueries.size()
+                && mDownloads.size() < mPosition + LOOKAHEAD) {
+            final String query = mQueries.get(mDownloads.size());
+            mDownloads.add(mExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return mServer.get(query);
+                }
+            }));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return mPosition < mQueries.size();
+    }
+
+    @Override
+    public ParcelableKeyRing next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Future<String> download = mDownloads.get(mPosition);
+        // the result is handed on, don't keep it around
+        mDownloads.set(mPosition, null);
+        String fingerprint = mFingerprints.get(mPosition);
+        mPosition += 1;
+        startDownloads();
+
+        String armoredKey;
+        try {
+            armoredKey = download.get();
+        } catch (ExecutionException e) {
+            Log.e(Constants.TAG, "Downloading key failed!", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Download was interrupted!", e);
+        }
+        if (armoredKey == null) {
+            Log.e(Constants.TAG, "Key " + mQueries.get(mPosition - 1) + " not found on keyserver");
+            return null;
+        }
+        return new ParcelableKeyRing(armoredKey.getBytes(), fingerprint);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /** Cancels all remaining downloads. */
+    public void close() {
+        mExecutor.shutdownNow();
+    }
+
+}
@@ -18,6 +18,8 @@
 
 package org.sufficientlysecure.keychain.keyimport;
 
+import org.sufficientlysecure.keychain.util.BufferPool;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -58,11 +60,12 @@ public abstract class Keyserver {
     public static String readAll(InputStream in, String encoding) throws IOException {
         ByteArrayOutputStream raw = new ByteArrayOutputStream();
 
-        byte buffer[] = new byte[1 << 16];
+        byte buffer[] = BufferPool.acquire();
         int n = 0;
         while ((n = in.read(buffer)) != -1) {
             raw.write(buffer, 0, n);
         }
+        BufferPool.release(buffer);
 
         if (encoding == null) {
             encoding = "utf8";
@@ -1,5 +1,7 @@
 package org.sufficientlysecure.keychain.keyimport;
 
+import android.content.Context;
+import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
 
@@ -7,32 +9,58 @@ import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 /** This is a trivial wrapper around UncachedKeyRing which implements Parcelable. It exists
  * for the sole purpose of keeping spongycastle and android imports in separate packages.
+ *
+ * Instead of the encoded keyring, an instance may also hold a reference to the keyring at
+ * a position in a source Uri, which is only read when the keyring is actually needed. This
+ * way, listing the contents of a huge file does not require holding all of it in memory.
  */
 public class ParcelableKeyRing implements Parcelable {
 
     final byte[] mBytes;
     final String mExpectedFingerprint;
+    final Uri mSourceUri;
+    final int mSourceIndex;
 
     public ParcelableKeyRing(byte[] bytes) {
-        mBytes = bytes;
-        mExpectedFingerprint = null;
+        this(bytes, null);
     }
     public ParcelableKeyRing(byte[] bytes, String expectedFingerprint) {
         mBytes = bytes;
         mExpectedFingerprint = expectedFingerprint;
+        mSourceUri = null;
+        mSourceIndex = -1;
+    }
+    /** Creates a reference to the keyring at position sourceIndex in sourceUri.
+     * @see org.sufficientlysecure.keychain.pgp.UncachedKeyRing.KeyRingReader
+     */
+    public ParcelableKeyRing(Uri sourceUri, int sourceIndex) {
+        mBytes = null;
+        mExpectedFingerprint = null;
+        mSourceUri = sourceUri;
+        mSourceIndex = sourceIndex;
+    }
+
+    private ParcelableKeyRing(Parcel source) {
+        mBytes = source.createByteArray();
+        mExpectedFingerprint = source.readString();
+        mSourceUri = source.readParcelable(Uri.class.getClassLoader());
+        mSourceIndex = source.readInt();
     }
 
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeByteArray(mBytes);
         dest.writeString(mExpectedFingerprint);
+        dest.writeParcelable(mSourceUri, flags);
+        dest.writeInt(mSourceIndex);
     }
 
     public static final Creator<ParcelableKeyRing> CREATOR = new Creator<ParcelableKeyRing>() {
         public ParcelableKeyRing createFromParcel(final Parcel source) {
-            return new ParcelableKeyRing(source.createByteArray());
+            return new ParcelableKeyRing(source);
         }
 
         public ParcelableKeyRing[] newArray(final int size) {
@@ -45,7 +73,69 @@ public class ParcelableKeyRing implements Parcelable {
         return 0;
     }
 
+    /** Returns true if this is a reference into a source Uri, which must be read using
+     * a SourceReader rather than getUncachedKeyRing.
+     */
+    public boolean isReference() {
+        return mBytes == null;
+    }
+
     public UncachedKeyRing getUncachedKeyRing() throws PgpGeneralException, IOException {
+        if (isReference()) {
+            throw new PgpGeneralException("Keyring references must be read with a SourceReader!");
+        }
         return UncachedKeyRing.decodeFromData(mBytes);
     }
+
+    /** Reads referenced keyrings from their source Uris.
+     *
+     * The current source stream is kept open between calls, so reading references in
+     * ascending order of their position reads each source only once. Going backwards
+     * or switching to a different Uri reopens the source.
+     */
+    public static class SourceReader {
+        private final Context mContext;
+        private Uri mUri;
+        private InputStream mStream;
+        private UncachedKeyRing.KeyRingReader mReader;
+
+        public SourceReader(Context context) {
+            mContext = context;
+        }
+
+        public UncachedKeyRing read(ParcelableKeyRing ring)
+                throws PgpGeneralException, IOException {
+            if (!ring.isReference()) {
+                return ring.getUncachedKeyRing();
+            }
+
+            if (mReader == null || !ring.mSourceUri.equals(mUri)
+                    || mReader.getPosition() > ring.mSourceIndex) {
+                close();
+                mUri = ring.mSourceUri;
+                mStream = mContext.getContentResolver().openInputStream(mUri);
+                mReader = UncachedKeyRing.fromStream(mStream);
+            }
+
+            mReader.skipTo(ring.mSourceIndex);
+            UncachedKeyRing result = mReader.next();
+            if (result == null) {
+                throw new IOException("Keyring at position " + ring.mSourceIndex + " not found!");
+            }
+            return result;
+        }
+
+        public void close() {
+            if (mStream != null) {
+                try {
+                    mStream.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+            mStream = null;
+            mReader = null;
+            mUri = null;
+        }
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** A KeyRingLookup which remembers everything it looked up.
+ *
+ * Meant to be shared by a batch of operations with the same parameters, which would
+ * otherwise look up the same few keyrings once per item. Keyrings which were not found
+ * are looked up again, so a batch never caches a negative result. Since it never sees
+ * changes to the underlying keyrings, an instance should not outlive its batch.
+ *
+ */
+public class BatchKeyRingLookup implements KeyRingLookup {
+
+    private final KeyRingLookup mLookup;
+
+    private final HashMap<Long, WrappedPublicKeyRing> mPublicRings =
+            new HashMap<Long, WrappedPublicKeyRing>();
+    private final HashMap<Long, WrappedPublicKeyRing> mPublicRingsBySubkey =
+            new HashMap<Long, WrappedPublicKeyRing>();
+    private final HashMap<Long, WrappedSecretKeyRing> mSecretRings =
+            new HashMap<Long, WrappedSecretKeyRing>();
+    private final HashMap<Long, WrappedSecretKeyRing> mSecretRingsBySubkey =
+            new HashMap<Long, WrappedSecretKeyRing>();
+
+    private long[] mEncryptionMasterKeyIds;
+    private ArrayList<WrappedPublicKey> mEncryptionSubKeys;
+
+    public BatchKeyRingLookup(KeyRingLookup lookup) {
+        mLookup = lookup;
+    }
+
+    @Override
+    public synchronized WrappedPublicKeyRing getPublicKeyRing(long masterKeyId)
+            throws NotFoundException {
+        WrappedPublicKeyRing ring = mPublicRings.get(masterKeyId);
+        if (ring == null) {
+            ring = mLookup.getPublicKeyRing(masterKeyId);
+            mPublicRings.put(masterKeyId, ring);
+        }
+        return ring;
+    }
+
+    @Override
+    public synchronized WrappedPublicKeyRing getPublicKeyRingBySubkey(long subKeyId)
+            throws NotFoundException {
+        WrappedPublicKeyRing ring = mPublicRingsBySubkey.get(subKeyId);
+        if (ring == null) {
+            ring = mLookup.getPublicKeyRingBySubkey(subKeyId);
+            mPublicRingsBySubkey.put(subKeyId, ring);
+        }
+        return ring;
+    }
+
+    @Override
+    public synchronized WrappedSecretKeyRing getSecretKeyRing(long masterKeyId)
+            throws NotFoundException {
+        WrappedSecretKeyRing ring = mSecretRings.get(masterKeyId);
+        if (ring == null) {
+            ring = mLookup.getSecretKeyRing(masterKeyId);
+            mSecretRings.put(masterKeyId, ring);
+        }
+        return ring;
+    }
+
+    @Override
+    public synchronized WrappedSecretKeyRing getSecretKeyRingBySubkey(long subKeyId)
+            throws NotFoundException {
+        WrappedSecretKeyRing ring = mSecretRingsBySubkey.get(subKeyId);
+        if (ring == null) {
+            ring = mLookup.getSecretKeyRingBySubkey(subKeyId);
+            mSecretRingsBySubkey.put(subKeyId, ring);
+        }
+        return ring;
+    }
+
+    @Override
+    public synchronized ArrayList<WrappedPublicKey> getEncryptionSubKeys(long[] masterKeyIds) {
+        // a batch encrypts to the same recipients every time, so remembering the last set will do
+        if (mEncryptionSubKeys == null || !Arrays.equals(masterKeyIds, mEncryptionMasterKeyIds)) {
+            mEncryptionMasterKeyIds = masterKeyIds == null ? null : masterKeyIds.clone();
+            mEncryptionSubKeys = mLookup.getEncryptionSubKeys(masterKeyIds);
+        }
+        return new ArrayList<WrappedPublicKey>(mEncryptionSubKeys);
+    }
+
+}
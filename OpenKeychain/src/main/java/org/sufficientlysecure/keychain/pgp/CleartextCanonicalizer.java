@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Canonicalizes cleartext for signing, as defined in
+ * http://tools.ietf.org/html/rfc4880#section-7.1
+ *
+ * Input is processed as bytes, line by line. Trailing spaces and tabs are stripped, and
+ * lines are separated by CRLF, regardless of their original line endings. Each line is
+ * written to the text output and to the signature output from the same reusable line
+ * buffer. The text output ends with an additional CRLF, which is not signed. Dash-escaping
+ * is left to the ArmoredOutputStream the text is usually written to.
+ */
+public class CleartextCanonicalizer {
+
+    private static final byte[] NEW_LINE = { '\r', '\n' };
+
+    private final OutputStream mTextOut;
+    private final OutputStream mSignatureOut;
+
+    private byte[] mLine = new byte[256];
+    private int mLineLength = 0;
+    private boolean mFirstLine = true;
+
+    public CleartextCanonicalizer(OutputStream textOut, OutputStream signatureOut) {
+        mTextOut = textOut;
+        mSignatureOut = signatureOut;
+    }
+
+    /** Processes all of the input, using the given buffer for reading it. */
+    public void process(InputStream in, byte[] buffer) throws IOException {
+        boolean skipLineFeed = false;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            for (int i = 0; i < n; i++) {
+                byte b = buffer[i];
+                if (b == '\n' && skipLineFeed) {
+                    // second half of a CRLF line ending
+                    skipLineFeed = false;
+                    continue;
+                }
+                skipLineFeed = b == '\r';
+                if (b == '\r' || b == '\n') {
+                    endLine();
+                } else {
+                    append(b);
+                }
+            }
+        }
+        // last line without line ending
+        if (mLineLength > 0) {
+            endLine();
+        }
+
+        // end cleartext signature with newline, see http://tools.ietf.org/html/rfc4880#section-7
+        mTextOut.write(NEW_LINE);
+    }
+
+    private void append(byte b) {
+        if (mLineLength == mLine.length) {
+            byte[] line = new byte[mLine.length * 2];
+            System.arraycopy(mLine, 0, line, 0, mLineLength);
+            mLine = line;
+        }
+        mLine[mLineLength++] = b;
+    }
+
+    private void endLine() throws IOException {
+        if (!mFirstLine) {
+            mTextOut.write(NEW_LINE);
+            mSignatureOut.write(NEW_LINE);
+        }
+        mFirstLine = false;
+
+        int length = mLineLength;
+        while (length > 0 && (mLine[length - 1] == ' ' || mLine[length - 1] == '\t')) {
+            length--;
+        }
+        mTextOut.write(mLine, 0, length);
+        mSignatureOut.write(mLine, 0, length);
+
+        mLineLength = 0;
+    }
+
+}
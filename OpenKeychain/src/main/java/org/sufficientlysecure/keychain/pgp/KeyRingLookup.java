@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import java.util.ArrayList;
+
+/** Looks up keyrings for crypto operations.
+ *
+ * PgpSignEncrypt and PgpDecryptVerify only need to find keyrings by master key id or
+ * by the id of one of their subkeys, which is what this interface provides. It keeps
+ * these classes independent of the database, so they can be used with any source of
+ * keyrings.
+ *
+ * @see org.sufficientlysecure.keychain.provider.ProviderHelper
+ *
+ */
+public interface KeyRingLookup {
+
+    public static class NotFoundException extends Exception {
+        public NotFoundException() {
+        }
+
+        public NotFoundException(String name) {
+            super(name);
+        }
+    }
+
+    public WrappedPublicKeyRing getPublicKeyRing(long masterKeyId) throws NotFoundException;
+
+    public WrappedPublicKeyRing getPublicKeyRingBySubkey(long subKeyId) throws NotFoundException;
+
+    public WrappedSecretKeyRing getSecretKeyRing(long masterKeyId) throws NotFoundException;
+
+    public WrappedSecretKeyRing getSecretKeyRingBySubkey(long subKeyId) throws NotFoundException;
+
+    /** Returns the encryption subkeys of a number of keyrings at once, which should be
+     * considerably cheaper than looking up the keyrings one by one. Keyrings which are not
+     * available or have no usable encryption subkey are skipped.
+     */
+    public ArrayList<WrappedPublicKey> getEncryptionSubKeys(long[] masterKeyIds);
+
+}
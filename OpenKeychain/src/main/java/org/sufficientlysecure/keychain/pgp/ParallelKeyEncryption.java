@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.bcpg.ContainedPacket;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/** Encrypts the session key for a number of recipients in parallel.
+ *
+ * PGPEncryptedDataGenerator asks each of its key encryption methods in turn to wrap the
+ * session key, which is a public key operation per recipient. The methods wrapped by this
+ * class instead all start their work as soon as the first one is asked, on the given
+ * executor, and the generator then merely collects the results in order. A method whose
+ * work the executor has not started yet when it is asked does it on the calling thread,
+ * so a busy executor, or one shared with the caller, never holds up encryption.
+ *
+ * A method which is asked with different parameters than the first one, which the
+ * generator never does, simply does its work on the calling thread.
+ *
+ */
+class ParallelKeyEncryption {
+
+    private final Executor mExecutor;
+    private final ArrayList<Method> mMethods = new ArrayList<Method>();
+
+    private boolean mStarted = false;
+    private int mEncAlgorithm;
+    private byte[] mSessionInfo;
+
+    private class Method extends PGPKeyEncryptionMethodGenerator {
+        final PGPKeyEncryptionMethodGenerator mDelegate;
+        FutureTask<ContainedPacket> mResult;
+
+        Method(PGPKeyEncryptionMethodGenerator delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public ContainedPacket generate(int encAlgorithm, byte[] sessionInfo) throws PGPException {
+            FutureTask<ContainedPacket> result = start(this, encAlgorithm, sessionInfo);
+            if (result == null) {
+                return mDelegate.generate(encAlgorithm, sessionInfo);
+            }
+            // does nothing if the executor already started it
+            result.run();
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                result.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new PGPException("interrupted while encrypting session key", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof PGPException) {
+                    throw (PGPException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw (Error) cause;
+            }
+        }
+    }
+
+    ParallelKeyEncryption(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /** Returns a method which runs the given one in parallel with all others of this object.
+     * All methods must be wrapped before the first one is used.
+     */
+    PGPKeyEncryptionMethodGenerator wrap(PGPKeyEncryptionMethodGenerator generator) {
+        Method method = new Method(generator);
+        synchronized (this) {
+            mMethods.add(method);
+        }
+        return method;
+    }
+
+    /** Starts all methods on first use, and returns the result of the given one, or null
+     * if it has to be run directly.
+     */
+    private synchronized FutureTask<ContainedPacket> start(Method method, final int encAlgorithm,
+                                                           final byte[] sessionInfo) {
+        if (!mStarted) {
+            mStarted = true;
+            mEncAlgorithm = encAlgorithm;
+            mSessionInfo = sessionInfo;
+
+            for (final Method m : mMethods) {
+                m.mResult = new FutureTask<ContainedPacket>(new Callable<ContainedPacket>() {
+                    @Override
+                    public ContainedPacket call() throws PGPException {
+                        return m.mDelegate.generate(encAlgorithm, sessionInfo);
+                    }
+                });
+                try {
+                    mExecutor.execute(m.mResult);
+                } catch (RejectedExecutionException e) {
+                    // executor is shutting down, the method runs on the calling thread
+                }
+            }
+        }
+        if (encAlgorithm != mEncAlgorithm || sessionInfo != mSessionInfo) {
+            return null;
+        }
+        return method.mResult;
+    }
+
+}
@@ -39,16 +39,17 @@ import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProv
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
 import org.sufficientlysecure.keychain.Constants;
-import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.pgp.Progressable.Step;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -60,7 +61,11 @@ import java.util.Set;
  * This class uses a Builder pattern!
  */
 public class PgpDecryptVerify {
-    private ProviderHelper mProviderHelper;
+
+    /** Size of cleartext signed text kept in memory, the rest is spilled to a file */
+    private static final int CLEARTEXT_MEMORY_SIZE = 256 * 1024;
+
+    private KeyRingLookup mKeyRingLookup;
     private PassphraseCache mPassphraseCache;
     private InputData mData;
     private OutputStream mOutStream;
@@ -69,10 +74,11 @@ public class PgpDecryptVerify {
     private boolean mAllowSymmetricDecryption;
     private String mPassphrase;
     private Set<Long> mAllowedKeyIds;
+    private File mTempDir;
 
     private PgpDecryptVerify(Builder builder) {
         // private Constructor can only be called from Builder
-        this.mProviderHelper = builder.mProviderHelper;
+        this.mKeyRingLookup = builder.mKeyRingLookup;
         this.mPassphraseCache = builder.mPassphraseCache;
         this.mData = builder.mData;
         this.mOutStream = builder.mOutStream;
@@ -81,11 +87,12 @@ public class PgpDecryptVerify {
         this.mAllowSymmetricDecryption = builder.mAllowSymmetricDecryption;
         this.mPassphrase = builder.mPassphrase;
         this.mAllowedKeyIds = builder.mAllowedKeyIds;
+        this.mTempDir = builder.mTempDir;
     }
 
     public static class Builder {
         // mandatory parameter
-        private ProviderHelper mProviderHelper;
+        private KeyRingLookup mKeyRingLookup;
         private PassphraseCache mPassphraseCache;
         private InputData mData;
         private OutputStream mOutStream;
@@ -95,10 +102,11 @@ public class PgpDecryptVerify {
         private boolean mAllowSymmetricDecryption = true;
         private String mPassphrase = null;
         private Set<Long> mAllowedKeyIds = null;
+        private File mTempDir = null;
 
-        public Builder(ProviderHelper providerHelper, PassphraseCache passphraseCache,
+        public Builder(KeyRingLookup keyRingLookup, PassphraseCache passphraseCache,
                        InputData data, OutputStream outStream) {
-            this.mProviderHelper = providerHelper;
+            this.mKeyRingLookup = keyRingLookup;
             this.mPassphraseCache = passphraseCache;
             this.mData = data;
             this.mOutStream = outStream;
@@ -131,14 +139,23 @@ public class PgpDecryptVerify {
             return this;
         }
 
+        /**
+         * Directory for temporary files, usually the cache dir of the app. Defaults to the
+         * temporary directory of the system.
+         */
+        public Builder setTempDir(File tempDir) {
+            mTempDir = tempDir;
+            return this;
+        }
+
         public PgpDecryptVerify build() {
             return new PgpDecryptVerify(this);
         }
     }
 
-    public void updateProgress(int message, int current, int total) {
+    public void updateProgress(Step step, int current, int total) {
         if (mProgressable != null) {
-            mProgressable.setProgress(message, current, total);
+            mProgressable.setProgress(step, current, total);
         }
     }
 
@@ -215,7 +232,7 @@ public class PgpDecryptVerify {
         Object o = pgpF.nextObject();
 
         int currentProgress = 0;
-        updateProgress(R.string.progress_reading_data, currentProgress, 100);
+        updateProgress(Step.READING_DATA, currentProgress, 100);
 
         if (o instanceof PGPEncryptedDataList) {
             enc = (PGPEncryptedDataList) o;
@@ -242,17 +259,15 @@ public class PgpDecryptVerify {
         while (it.hasNext()) {
             Object obj = it.next();
             if (obj instanceof PGPPublicKeyEncryptedData) {
-                updateProgress(R.string.progress_finding_key, currentProgress, 100);
+                updateProgress(Step.FINDING_KEY, currentProgress, 100);
 
                 PGPPublicKeyEncryptedData encData = (PGPPublicKeyEncryptedData) obj;
 
                 WrappedSecretKeyRing secretKeyRing;
                 try {
                     // get actual keyring object based on master key id
-                    secretKeyRing = mProviderHelper.getWrappedSecretKeyRing(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(encData.getKeyID())
-                    );
-                } catch (ProviderHelper.NotFoundException e) {
+                    secretKeyRing = mKeyRingLookup.getSecretKeyRingBySubkey(encData.getKeyID());
+                } catch (KeyRingLookup.NotFoundException e) {
                     // continue with the next packet in the while loop
                     continue;
                 }
@@ -328,7 +343,7 @@ public class PgpDecryptVerify {
         }
 
         if (symmetricPacketFound) {
-            updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
+            updateProgress(Step.PREPARING_STREAMS, currentProgress, 100);
 
             PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
                     .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
@@ -342,7 +357,7 @@ public class PgpDecryptVerify {
             currentProgress += 5;
         } else if (asymmetricPacketFound) {
             currentProgress += 5;
-            updateProgress(R.string.progress_extracting_key, currentProgress, 100);
+            updateProgress(Step.EXTRACTING_KEY, currentProgress, 100);
             try {
                 if (!secretEncryptionKey.unlock(mPassphrase)) {
                     throw new WrongPassphraseException();
@@ -351,7 +366,7 @@ public class PgpDecryptVerify {
                 throw new KeyExtractionException();
             }
             currentProgress += 5;
-            updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
+            updateProgress(Step.PREPARING_STREAMS, currentProgress, 100);
 
             PublicKeyDataDecryptorFactory decryptorFactory = secretEncryptionKey.getDecryptorFactory();
 
@@ -372,7 +387,7 @@ public class PgpDecryptVerify {
         WrappedPublicKey signingKey = null;
 
         if (dataChunk instanceof PGPCompressedData) {
-            updateProgress(R.string.progress_decompressing_data, currentProgress, 100);
+            updateProgress(Step.DECOMPRESSING_DATA, currentProgress, 100);
 
             PGPObjectFactory fact = new PGPObjectFactory(
                     ((PGPCompressedData) dataChunk).getDataStream());
@@ -384,7 +399,7 @@ public class PgpDecryptVerify {
         PGPOnePassSignature signature = null;
 
         if (dataChunk instanceof PGPOnePassSignatureList) {
-            updateProgress(R.string.progress_processing_signature, currentProgress, 100);
+            updateProgress(Step.PROCESSING_SIGNATURE, currentProgress, 100);
 
             PGPOnePassSignatureList sigList = (PGPOnePassSignatureList) dataChunk;
 
@@ -393,12 +408,10 @@ public class PgpDecryptVerify {
             for (int i = 0; i < sigList.size(); ++i) {
                 try {
                     long sigKeyId = sigList.get(i).getKeyID();
-                    signingRing = mProviderHelper.getWrappedPublicKeyRing(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                    );
+                    signingRing = mKeyRingLookup.getPublicKeyRingBySubkey(sigKeyId);
                     signingKey = signingRing.getSubkey(sigKeyId);
                     signatureIndex = i;
-                } catch (ProviderHelper.NotFoundException e) {
+                } catch (KeyRingLookup.NotFoundException e) {
                     Log.d(Constants.TAG, "key not found!");
                     // try next one...
                 }
@@ -440,11 +453,11 @@ public class PgpDecryptVerify {
         }
 
         if (dataChunk instanceof PGPLiteralData) {
-            updateProgress(R.string.progress_decrypting, currentProgress, 100);
+            updateProgress(Step.DECRYPTING, currentProgress, 100);
 
             PGPLiteralData literalData = (PGPLiteralData) dataChunk;
 
-            byte[] buffer = new byte[1 << 16];
+            byte[] buffer = BufferPool.acquire();
             InputStream dataIn = literalData.getInputStream();
 
             int startProgress = currentProgress;
@@ -456,12 +469,9 @@ public class PgpDecryptVerify {
             }
 
             int n;
-            // TODO: progress calculation is broken here! Try to rework it based on commented code!
-//            int progress = 0;
             long startPos = mData.getStreamPosition();
             while ((n = dataIn.read(buffer)) > 0) {
                 mOutStream.write(buffer, 0, n);
-//                progress += n;
                 if (signature != null) {
                     try {
                         signature.update(buffer, 0, n);
@@ -471,21 +481,21 @@ public class PgpDecryptVerify {
                         signature = null;
                     }
                 }
-                // TODO: dead code?!
-                // unknown size, but try to at least have a moving, slowing down progress bar
-//                currentProgress = startProgress + (endProgress - startProgress) * progress
-//                        / (progress + 100000);
-                if (mData.getSize() - startPos == 0) {
-                    currentProgress = endProgress;
+                long progress = mData.getStreamPosition() - startPos;
+                if (mData.isSizeKnown() && mData.getSize() > startPos) {
+                    currentProgress = (int) (startProgress + (endProgress - startProgress)
+                            * progress / (mData.getSize() - startPos));
                 } else {
+                    // unknown size, but try to at least have a moving, slowing down progress bar
                     currentProgress = (int) (startProgress + (endProgress - startProgress)
-                            * (mData.getStreamPosition() - startPos) / (mData.getSize() - startPos));
+                            * progress / (progress + 100000));
                 }
                 updateProgress(currentProgress, 100);
             }
+            BufferPool.release(buffer);
 
             if (signature != null) {
-                updateProgress(R.string.progress_verifying_signature, 90, 100);
+                updateProgress(Step.VERIFYING_SIGNATURE, 90, 100);
 
                 PGPSignatureList signatureList = (PGPSignatureList) plainFact.nextObject();
                 PGPSignature messageSignature = signatureList.get(signatureIndex);
@@ -504,7 +514,7 @@ public class PgpDecryptVerify {
         }
 
         if (encryptedData.isIntegrityProtected()) {
-            updateProgress(R.string.progress_verifying_integrity, 95, 100);
+            updateProgress(Step.VERIFYING_INTEGRITY, 95, 100);
 
             if (encryptedData.verify()) {
                 // passed
@@ -520,7 +530,7 @@ public class PgpDecryptVerify {
             // TODO: inform user?
         }
 
-        updateProgress(R.string.progress_done, 100, 100);
+        updateProgress(Step.DONE, 100, 100);
 
         result.setSignatureResult(signatureResultBuilder.build());
         return result;
@@ -535,14 +545,30 @@ public class PgpDecryptVerify {
      */
     private PgpDecryptVerifyResult verifyCleartextSignature(ArmoredInputStream aIn)
             throws IOException, PGPException, SignatureException, InvalidDataException {
+        // the canonical text may be spilled to a temp file, which is deleted on close
+        CanonicalTextBuffer canonical = new CanonicalTextBuffer(mTempDir);
+        try {
+            return verifyCleartextSignature(aIn, canonical);
+        } finally {
+            canonical.close();
+        }
+    }
+
+    private PgpDecryptVerifyResult verifyCleartextSignature(ArmoredInputStream aIn,
+                                                            CanonicalTextBuffer canonical)
+            throws IOException, PGPException, SignatureException, InvalidDataException {
         PgpDecryptVerifyResult result = new PgpDecryptVerifyResult();
         OpenPgpSignatureResultBuilder signatureResultBuilder = new OpenPgpSignatureResultBuilder();
         // cleartext signatures are never encrypted ;)
         signatureResultBuilder.signatureOnly(true);
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        updateProgress(Step.DONE, 0, 100);
 
-        updateProgress(R.string.progress_done, 0, 100);
+        // The cleartext is written to the output as it is read. At the same time, its
+        // canonical form is collected, which is what the signature is calculated over. Since
+        // the signature packet follows the text, this can only be fed to it afterwards. Only
+        // the start of the canonical text is kept in memory, the rest goes to a temp file.
+        OutputStream out = new BufferedOutputStream(mOutStream);
 
         ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
         int lookAhead = readInputLine(lineOut, aIn);
@@ -551,20 +577,20 @@ public class PgpDecryptVerify {
         byte[] line = lineOut.toByteArray();
         out.write(line, 0, getLengthWithoutSeparator(line));
         out.write(lineSep);
+        canonical.writeLine(line);
 
         while (lookAhead != -1 && aIn.isClearText()) {
             lookAhead = readInputLine(lineOut, lookAhead, aIn);
             line = lineOut.toByteArray();
             out.write(line, 0, getLengthWithoutSeparator(line));
             out.write(lineSep);
+            canonical.write(CRLF);
+            canonical.writeLine(line);
         }
 
-        out.close();
-
-        byte[] clearText = out.toByteArray();
-        mOutStream.write(clearText);
+        out.flush();
 
-        updateProgress(R.string.progress_processing_signature, 60, 100);
+        updateProgress(Step.PROCESSING_SIGNATURE, 60, 100);
         PGPObjectFactory pgpFact = new PGPObjectFactory(aIn);
 
         PGPSignatureList sigList = (PGPSignatureList) pgpFact.nextObject();
@@ -581,12 +607,10 @@ public class PgpDecryptVerify {
         for (int i = 0; i < sigList.size(); ++i) {
             try {
                 long sigKeyId = sigList.get(i).getKeyID();
-                signingRing = mProviderHelper.getWrappedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
+                signingRing = mKeyRingLookup.getPublicKeyRingBySubkey(sigKeyId);
                 signingKey = signingRing.getSubkey(sigKeyId);
                 signatureIndex = i;
-            } catch (ProviderHelper.NotFoundException e) {
+            } catch (KeyRingLookup.NotFoundException e) {
                 Log.d(Constants.TAG, "key not found!");
                 // try next one...
             }
@@ -622,24 +646,9 @@ public class PgpDecryptVerify {
         }
 
         if (signature != null) {
-            updateProgress(R.string.progress_verifying_signature, 90, 100);
-
-            InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
-
-            lookAhead = readInputLine(lineOut, sigIn);
-
-            processLine(signature, lineOut.toByteArray());
+            updateProgress(Step.VERIFYING_SIGNATURE, 90, 100);
 
-            if (lookAhead != -1) {
-                do {
-                    lookAhead = readInputLine(lineOut, lookAhead, sigIn);
-
-                    signature.update((byte) '\r');
-                    signature.update((byte) '\n');
-
-                    processLine(signature, lineOut.toByteArray());
-                } while (lookAhead != -1);
-            }
+            canonical.updateSignature(signature);
 
             // Verify signature and check binding signatures
             boolean validSignature = signature.verify();
@@ -651,22 +660,89 @@ public class PgpDecryptVerify {
 
         result.setSignatureResult(signatureResultBuilder.build());
 
-        updateProgress(R.string.progress_done, 100, 100);
+        updateProgress(Step.DONE, 100, 100);
         return result;
     }
 
+    private static final byte[] CRLF = { '\r', '\n' };
+
     /**
-     * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
+     * Collects the canonical form of cleartext, lines without trailing whitespace, separated
+     * by CRLF, as defined in http://tools.ietf.org/html/rfc4880#section-7.1
      *
-     * @param sig
-     * @param line
-     * @throws SignatureException
+     * The first CLEARTEXT_MEMORY_SIZE bytes are kept in memory, everything after them is
+     * written to a temporary file, which is deleted on close.
      */
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
+    private static class CanonicalTextBuffer extends OutputStream {
+        private final File mTempDir;
+        private final ByteArrayOutputStream mMemory = new ByteArrayOutputStream();
+        private File mSpillFile;
+        private OutputStream mSpill;
+
+        CanonicalTextBuffer(File tempDir) {
+            mTempDir = tempDir;
+        }
+
+        /** Mostly taken from processLine in ClearSignedFileProcessor in Bouncy Castle */
+        void writeLine(byte[] line) throws IOException {
+            int length = getLengthWithoutWhiteSpace(line);
+            if (length > 0) {
+                write(line, 0, length);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mSpill == null && mMemory.size() + len <= CLEARTEXT_MEMORY_SIZE) {
+                mMemory.write(b, off, len);
+                return;
+            }
+            if (mSpill == null) {
+                Log.d(Constants.TAG, "Cleartext is larger than " + CLEARTEXT_MEMORY_SIZE
+                        + " bytes, spilling to file");
+                mSpillFile = File.createTempFile("cleartext", null, mTempDir);
+                mSpill = new BufferedOutputStream(new FileOutputStream(mSpillFile));
+            }
+            mSpill.write(b, off, len);
+        }
+
+        /** Feeds the collected text to the signature, reading back what was spilled */
+        void updateSignature(PGPSignature sig) throws IOException, SignatureException {
+            sig.update(mMemory.toByteArray());
+            if (mSpill == null) {
+                return;
+            }
+            mSpill.flush();
+            InputStream in = new FileInputStream(mSpillFile);
+            byte[] buffer = BufferPool.acquire();
+            try {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    sig.update(buffer, 0, n);
+                }
+            } finally {
+                BufferPool.release(buffer);
+                in.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mSpill != null) {
+                try {
+                    mSpill.close();
+                } finally {
+                    if (!mSpillFile.delete()) {
+                        Log.e(Constants.TAG, "Could not delete " + mSpillFile);
+                    }
+                    mSpill = null;
+                }
+            }
         }
     }
 
@@ -18,9 +18,12 @@
 
 package org.sufficientlysecure.keychain.pgp;
 
+import android.content.ContentProviderOperation;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Environment;
+import android.support.v4.util.LongSparseArray;
+import android.util.Pair;
 
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.openpgp.PGPException;
@@ -39,7 +42,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class PgpImportExport {
 
@@ -59,6 +69,9 @@ public class PgpImportExport {
     public static final int RETURN_BAD = -2;
     public static final int RETURN_UPDATED = 1;
 
+    /** Number of keyrings which are prepared in parallel, then written in one transaction */
+    private static final int IMPORT_BATCH_SIZE = 100;
+
     public PgpImportExport(Context context, Progressable progressable) {
         super();
         this.mContext = context;
@@ -128,37 +141,129 @@ public class PgpImportExport {
      */
     public Bundle importKeyRings(List<ParcelableKeyRing> entries)
             throws PgpGeneralException, PGPException, IOException {
+        return importKeyRings(entries.iterator(), entries.size());
+    }
+
+    /**
+     * Imports the keyrings returned by an iterator, which may block until the next one is
+     * available, e.g. while it is downloaded. A null entry is counted as a bad key.
+     *
+     * Keyrings are parsed and verified on a pool of worker threads as they come in, and
+     * written to the database in batches of IMPORT_BATCH_SIZE, each within a single
+     * transaction. Progress is updated for every keyring.
+     *
+     * @param total number of keyrings the iterator returns, for progress
+     */
+    public Bundle importKeyRings(Iterator<ParcelableKeyRing> entries, int total)
+            throws PgpGeneralException, PGPException, IOException {
         Bundle returnData = new Bundle();
 
         updateProgress(R.string.progress_importing, 0, 100);
 
+        long startTime = System.currentTimeMillis();
+
+        // these are the same for all keyrings, so only load them once
+        final LongSparseArray<UncachedPublicKey> trustedKeys =
+                mProviderHelper.getTrustedMasterKeys();
+        HashSet<Long> existingKeys = mProviderHelper.getMasterKeyIds();
+
         int newKeys = 0;
         int oldKeys = 0;
         int badKeys = 0;
 
+        // keyrings referenced by position in a file are read here, one batch at a time
+        ParcelableKeyRing.SourceReader sourceReader = new ParcelableKeyRing.SourceReader(mContext);
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
         int position = 0;
-        for (ParcelableKeyRing entry : entries) {
-            try {
-                UncachedKeyRing key = entry.getUncachedKeyRing();
-
-                mProviderHelper.savePublicKeyRing(key);
-                /*switch(status) {
-                    case RETURN_UPDATED: oldKeys++; break;
-                    case RETURN_OK: newKeys++; break;
-                    case RETURN_BAD: badKeys++; break;
-                }*/
-                // TODO proper import feedback
-                newKeys += 1;
-
-            } catch (PgpGeneralException e) {
-                Log.e(Constants.TAG, "Encountered bad key on import!", e);
-                ++badKeys;
+        try {
+            while (entries.hasNext()) {
+                // parse and verify all keyrings of this batch in parallel
+                ArrayList<Future<Pair<Long, ArrayList<ContentProviderOperation>>>> prepared =
+                        new ArrayList<Future<Pair<Long, ArrayList<ContentProviderOperation>>>>();
+                for (int i = 0; i < IMPORT_BATCH_SIZE && entries.hasNext(); i++) {
+                    final ParcelableKeyRing entry = entries.next();
+                    position += 1;
+                    updateProgress(position * 100 / Math.max(total, position), 100);
+                    if (entry == null) {
+                        ++badKeys;
+                        continue;
+                    }
+
+                    // references need to be read sequentially, but verification is done in parallel
+                    final UncachedKeyRing resolved;
+                    try {
+                        resolved = entry.isReference() ? sourceReader.read(entry) : null;
+                    } catch (Exception e) {
+                        Log.e(Constants.TAG, "Encountered bad key on import!", e);
+                        ++badKeys;
+                        continue;
+                    }
+                    prepared.add(executor.submit(
+                            new Callable<Pair<Long, ArrayList<ContentProviderOperation>>>() {
+                        @Override
+                        public Pair<Long, ArrayList<ContentProviderOperation>> call()
+                                throws Exception {
+                            return prepareKeyRing(resolved != null
+                                    ? resolved : entry.getUncachedKeyRing(), trustedKeys);
+                        }
+                    }));
+                }
+
+                // collect them in order, so later duplicates still overwrite earlier ones
+                ArrayList<Pair<Long, ArrayList<ContentProviderOperation>>> rings =
+                        new ArrayList<Pair<Long, ArrayList<ContentProviderOperation>>>();
+                ArrayList<ContentProviderOperation> operations =
+                        new ArrayList<ContentProviderOperation>();
+                for (Future<Pair<Long, ArrayList<ContentProviderOperation>>> future : prepared) {
+                    try {
+                        Pair<Long, ArrayList<ContentProviderOperation>> result = future.get();
+                        rings.add(result);
+                        operations.addAll(result.second);
+                    } catch (ExecutionException e) {
+                        Log.e(Constants.TAG, "Encountered bad key on import!", e.getCause());
+                        ++badKeys;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new PgpGeneralException("Import was interrupted!", e);
+                    }
+                }
+
+                // and write the whole batch in a single transaction
+                if (mProviderHelper.applyBatch(operations)) {
+                    for (Pair<Long, ArrayList<ContentProviderOperation>> ring : rings) {
+                        if (existingKeys.add(ring.first)) {
+                            ++newKeys;
+                        } else {
+                            ++oldKeys;
+                        }
+                    }
+                    continue;
+                }
+
+                // a single bad keyring fails the whole batch, so retry them one by one
+                Log.d(Constants.TAG, "Batch failed, saving its " + rings.size()
+                        + " keyrings one by one");
+                for (Pair<Long, ArrayList<ContentProviderOperation>> ring : rings) {
+                    if (!mProviderHelper.applyBatch(ring.second)) {
+                        ++badKeys;
+                    } else if (existingKeys.add(ring.first)) {
+                        ++newKeys;
+                    } else {
+                        ++oldKeys;
+                    }
+                }
             }
-            // update progress
-            position++;
-            updateProgress(position / entries.size() * 100, 100);
+        } finally {
+            executor.shutdownNow();
+            sourceReader.close();
         }
 
+        long time = Math.max(1, System.currentTimeMillis() - startTime);
+        Log.d(Constants.TAG, "Imported " + position + " keyrings in " + time + "ms, "
+                + (position * 1000L / time) + " keys/sec");
+
         returnData.putInt(KeychainIntentService.RESULT_IMPORT_ADDED, newKeys);
         returnData.putInt(KeychainIntentService.RESULT_IMPORT_UPDATED, oldKeys);
         returnData.putInt(KeychainIntentService.RESULT_IMPORT_BAD, badKeys);
@@ -166,6 +271,22 @@ public class PgpImportExport {
         return returnData;
     }
 
+    /**
+     * Parses and verifies a single keyring for import. Runs on a worker thread.
+     *
+     * @return master key id of the keyring, and the operations to save it
+     */
+    private Pair<Long, ArrayList<ContentProviderOperation>> prepareKeyRing(
+            UncachedKeyRing key, LongSparseArray<UncachedPublicKey> trustedKeys)
+            throws PgpGeneralException, IOException {
+        if (key.isSecret()) {
+            throw new PgpGeneralException("Secret keyrings can't be imported here!");
+        }
+
+        return new Pair<Long, ArrayList<ContentProviderOperation>>(key.getMasterKeyId(),
+                mProviderHelper.buildSavePublicKeyRingOperations(key, trustedKeys));
+    }
+
     public Bundle exportKeyRings(ArrayList<Long> publicKeyRingMasterIds,
                                  ArrayList<Long> secretKeyRingMasterIds,
                                  OutputStream outStream) throws PgpGeneralException,
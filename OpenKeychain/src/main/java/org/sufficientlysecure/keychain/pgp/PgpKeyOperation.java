@@ -47,8 +47,9 @@ import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
 import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
 import org.sufficientlysecure.keychain.Constants;
-import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.pgp.Progressable.Step;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralMsgIdException;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralMsgIdException.Reason;
 import org.sufficientlysecure.keychain.service.OldSaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.util.IterableIterator;
@@ -69,6 +70,13 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * This class is the single place where ALL operations that actually modify a PGP public or secret
@@ -97,9 +105,9 @@ public class PgpKeyOperation {
         this.mProgress = progress;
     }
 
-    void updateProgress(int message, int current, int total) {
+    void updateProgress(Step step, int current, int total) {
         if (mProgress != null) {
-            mProgress.setProgress(message, current, total);
+            mProgress.setProgress(step, current, total);
         }
     }
 
@@ -116,7 +124,7 @@ public class PgpKeyOperation {
      * @param keySize
      * @param passphrase
      * @param isMasterKey
-     * @return A newly created PGPSecretKey
+     * @return A newly created PGPSecretKey, encoded
      * @throws NoSuchAlgorithmException
      * @throws PGPException
      * @throws NoSuchProviderException
@@ -125,13 +133,13 @@ public class PgpKeyOperation {
      */
 
     // TODO: key flags?
-    public PGPSecretKey createKey(int algorithmChoice, int keySize, String passphrase,
-                                  boolean isMasterKey)
+    public byte[] createKey(int algorithmChoice, int keySize, String passphrase,
+                            boolean isMasterKey)
             throws NoSuchAlgorithmException, PGPException, NoSuchProviderException,
             PgpGeneralMsgIdException, InvalidAlgorithmParameterException {
 
         if (keySize < 512) {
-            throw new PgpGeneralMsgIdException(R.string.error_key_size_minimum512bit);
+            throw new PgpGeneralMsgIdException(Reason.KEY_SIZE_MINIMUM512BIT);
         }
 
         if (passphrase == null) {
@@ -151,7 +159,7 @@ public class PgpKeyOperation {
 
             case Constants.choice.algorithm.elgamal: {
                 if (isMasterKey) {
-                    throw new PgpGeneralMsgIdException(R.string.error_master_key_must_not_be_el_gamal);
+                    throw new PgpGeneralMsgIdException(Reason.MASTER_KEY_MUST_NOT_BE_EL_GAMAL);
                 }
                 keyGen = KeyPairGenerator.getInstance("ElGamal", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
                 BigInteger p = Primes.getBestPrime(keySize);
@@ -173,7 +181,7 @@ public class PgpKeyOperation {
             }
 
             default: {
-                throw new PgpGeneralMsgIdException(R.string.error_unknown_algorithm_choice);
+                throw new PgpGeneralMsgIdException(Reason.UNKNOWN_ALGORITHM_CHOICE);
             }
         }
 
@@ -193,7 +201,109 @@ public class PgpKeyOperation {
             return new PGPSecretKey(keyPair.getPrivateKey(), keyPair.getPublicKey(),
                     sha1Calc, isMasterKey, keyEncryptor).getEncoded();
         } catch(IOException e) {
-            throw new PgpGeneralMsgIdException(R.string.error_encoding);
+            throw new PgpGeneralMsgIdException(Reason.ENCODING);
+        }
+    }
+
+    public static class KeyGenerationCanceledException extends Exception {
+        public KeyGenerationCanceledException() {
+        }
+    }
+
+    /**
+     * Creates several new secret keys concurrently, each on its own thread as far as there
+     * are processors for them. Key generation is mostly the search for large primes, which
+     * parallelizes perfectly between keys.
+     *
+     * Generation can't be interrupted once a key is being computed, so on cancellation the
+     * keys which are still being generated are abandoned, and finish in the background.
+     *
+     * @param isMasterKey one entry per key to create
+     * @param listener    polled for cancellation while waiting for keys, may be null
+     * @return the encoded keys, in the order of isMasterKey
+     */
+    public ArrayList<byte[]> createKeys(int algorithmChoice, int keySize, String passphrase,
+                                        boolean[] isMasterKey,
+                                        PgpImportExport.KeychainServiceListener listener)
+            throws NoSuchAlgorithmException, PGPException, NoSuchProviderException,
+            PgpGeneralMsgIdException, InvalidAlgorithmParameterException,
+            KeyGenerationCanceledException {
+        return createKeys(algorithmChoice, keySize, passphrase, isMasterKey,
+                Runtime.getRuntime().availableProcessors(), listener);
+    }
+
+    /**
+     * Creates several new secret keys concurrently, on at most the given number of threads.
+     *
+     * @see #createKeys(int, int, String, boolean[], PgpImportExport.KeychainServiceListener)
+     */
+    public ArrayList<byte[]> createKeys(final int algorithmChoice, final int keySize,
+                                        final String passphrase, final boolean[] isMasterKey,
+                                        int maxThreads,
+                                        PgpImportExport.KeychainServiceListener listener)
+            throws NoSuchAlgorithmException, PGPException, NoSuchProviderException,
+            PgpGeneralMsgIdException, InvalidAlgorithmParameterException,
+            KeyGenerationCanceledException {
+
+        int threads = Math.min(isMasterKey.length, maxThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        ArrayList<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        try {
+            for (final boolean master : isMasterKey) {
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return createKey(algorithmChoice, keySize, passphrase, master);
+                    }
+                }));
+            }
+            // no more tasks, threads terminate once their keys are done
+            executor.shutdown();
+
+            ArrayList<byte[]> keys = new ArrayList<byte[]>();
+            for (Future<byte[]> future : futures) {
+                keys.add(waitForKey(future, listener));
+                updateProgress(keys.size(), isMasterKey.length);
+            }
+            return keys;
+        } finally {
+            // cancels keys which were not started yet, if we were canceled or failed
+            executor.shutdownNow();
+        }
+    }
+
+    private byte[] waitForKey(Future<byte[]> future,
+                              PgpImportExport.KeychainServiceListener listener)
+            throws NoSuchAlgorithmException, PGPException, NoSuchProviderException,
+            PgpGeneralMsgIdException, InvalidAlgorithmParameterException,
+            KeyGenerationCanceledException {
+        while (true) {
+            if (listener != null && listener.hasServiceStopped()) {
+                throw new KeyGenerationCanceledException();
+            }
+            try {
+                return future.get(200, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // check for cancellation again
+            } catch (InterruptedException e) {
+                throw new KeyGenerationCanceledException();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof NoSuchAlgorithmException) {
+                    throw (NoSuchAlgorithmException) cause;
+                } else if (cause instanceof PGPException) {
+                    throw (PGPException) cause;
+                } else if (cause instanceof NoSuchProviderException) {
+                    throw (NoSuchProviderException) cause;
+                } else if (cause instanceof PgpGeneralMsgIdException) {
+                    throw (PgpGeneralMsgIdException) cause;
+                } else if (cause instanceof InvalidAlgorithmParameterException) {
+                    throw (InvalidAlgorithmParameterException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw (Error) cause;
+            }
         }
     }
 
@@ -214,7 +324,7 @@ public class PgpKeyOperation {
                 Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(saveParcel.oldPassphrase.toCharArray());
         PGPPrivateKey masterPrivateKey = masterKey.extractPrivateKey(keyDecryptor);
 
-        updateProgress(R.string.progress_certifying_master_key, 20, 100);
+        updateProgress(Step.CERTIFYING_MASTER_KEY, 20, 100);
 
         for (String userId : saveParcel.userIds) {
             PGPContentSignerBuilder signerBuilder = new JcaPGPContentSignerBuilder(
@@ -248,7 +358,7 @@ public class PgpKeyOperation {
             long numDays = (expiryDate.getTimeInMillis() / 86400000) -
                     (creationDate.getTimeInMillis() / 86400000);
             if (numDays <= 0) {
-                throw new PgpGeneralMsgIdException(R.string.error_expiry_must_come_after_creation);
+                throw new PgpGeneralMsgIdException(Reason.EXPIRY_MUST_COME_AFTER_CREATION);
             }
             hashedPacketsGen.setKeyExpirationTime(false, numDays * 86400);
         } else {
@@ -257,7 +367,7 @@ public class PgpKeyOperation {
             // this happens anyway
         }
 
-        updateProgress(R.string.progress_building_master_key, 30, 100);
+        updateProgress(Step.BUILDING_MASTER_KEY, 30, 100);
 
         // define hashing and signing algos
         PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(
@@ -275,7 +385,7 @@ public class PgpKeyOperation {
                 masterKeyPair, mainUserId, sha1Calc, hashedPacketsGen.generate(),
                 unhashedPacketsGen.generate(), certificationSignerBuilder, keyEncryptor);
 
-        updateProgress(R.string.progress_adding_sub_keys, 40, 100);
+        updateProgress(Step.ADDING_SUB_KEYS, 40, 100);
 
         for (int i = 1; i < saveParcel.keys.size(); ++i) {
             updateProgress(40 + 40 * (i - 1) / (saveParcel.keys.size() - 1), 100);
@@ -323,7 +433,7 @@ public class PgpKeyOperation {
                 long numDays = (expiryDate.getTimeInMillis() / 86400000) -
                         (creationDate.getTimeInMillis() / 86400000);
                 if (numDays <= 0) {
-                    throw new PgpGeneralMsgIdException(R.string.error_expiry_must_come_after_creation);
+                    throw new PgpGeneralMsgIdException(Reason.EXPIRY_MUST_COME_AFTER_CREATION);
                 }
                 hashedPacketsGen.setKeyExpirationTime(false, numDays * 86400);
             } else {
@@ -350,7 +460,7 @@ public class PgpKeyOperation {
         PGPSecretKeyRing mKR = wmKR.getRing();
         PGPPublicKeyRing pKR = wpKR.getRing();
 
-        updateProgress(R.string.progress_building_key, 0, 100);
+        updateProgress(Step.BUILDING_KEY, 0, 100);
 
         if (saveParcel.oldPassphrase == null) {
             saveParcel.oldPassphrase = "";
@@ -398,7 +508,7 @@ public class PgpKeyOperation {
                 Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(saveParcel.oldPassphrase.toCharArray());
         PGPPrivateKey masterPrivateKey = masterKey.extractPrivateKey(keyDecryptor);
 
-        updateProgress(R.string.progress_certifying_master_key, 20, 100);
+        updateProgress(Step.CERTIFYING_MASTER_KEY, 20, 100);
 
         boolean anyIDChanged = false;
         for (String delID : saveParcel.deletedIDs) {
@@ -426,7 +536,7 @@ public class PgpKeyOperation {
             long numDays = (expiryDate.getTimeInMillis() / 86400000) -
                     (creationDate.getTimeInMillis() / 86400000);
             if (numDays <= 0) {
-                throw new PgpGeneralMsgIdException(R.string.error_expiry_must_come_after_creation);
+                throw new PgpGeneralMsgIdException(Reason.EXPIRY_MUST_COME_AFTER_CREATION);
             }
             hashedPacketsGen.setKeyExpirationTime(false, numDays * 86400);
         } else {
@@ -525,7 +635,7 @@ public class PgpKeyOperation {
 
         PGPKeyPair masterKeyPair = new PGPKeyPair(masterPublicKey, masterPrivateKey);
 
-        updateProgress(R.string.progress_building_master_key, 30, 100);
+        updateProgress(Step.BUILDING_MASTER_KEY, 30, 100);
 
         // define hashing and signing algos
         PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(
@@ -596,7 +706,7 @@ public class PgpKeyOperation {
                     long numDays = (expiryDate.getTimeInMillis() / 86400000) -
                             (creationDate.getTimeInMillis() / 86400000);
                     if (numDays <= 0) {
-                        throw new PgpGeneralMsgIdException(R.string.error_expiry_must_come_after_creation);
+                        throw new PgpGeneralMsgIdException(Reason.EXPIRY_MUST_COME_AFTER_CREATION);
                     }
                     hashedPacketsGen.setKeyExpirationTime(false, numDays * 86400);
                 } else {
@@ -680,7 +790,7 @@ public class PgpKeyOperation {
                                                                    String passphrase)
             throws PgpGeneralMsgIdException, PGPException, SignatureException, IOException {
 
-        updateProgress(R.string.progress_building_key, 0, 100);
+        updateProgress(Step.BUILDING_KEY, 0, 100);
 
         // sort these, so we can use binarySearch later on
         Arrays.sort(saveParcel.revokeSubKeys);
@@ -712,7 +822,7 @@ public class PgpKeyOperation {
          */
 
         // 1. Unlock private key
-        updateProgress(R.string.progress_building_key, 0, 100);
+        updateProgress(Step.BUILDING_KEY, 0, 100);
 
         PGPPublicKey masterPublicKey = sKR.getPublicKey();
         PGPPrivateKey masterPrivateKey; {
@@ -723,7 +833,7 @@ public class PgpKeyOperation {
         }
 
         // 2. Create new secret key ring
-        updateProgress(R.string.progress_certifying_master_key, 20, 100);
+        updateProgress(Step.CERTIFYING_MASTER_KEY, 20, 100);
 
         // Note we do NOT use PGPKeyRingGeneraor, it's just one level too high and does stuff
         // we want to do manually. Instead, we simply use a list of secret keys.
@@ -811,7 +921,7 @@ public class PgpKeyOperation {
         }
 
         // 7. Generate PublicKeyRing from SecretKeyRing
-        updateProgress(R.string.progress_building_master_key, 30, 100);
+        updateProgress(Step.BUILDING_MASTER_KEY, 30, 100);
         PGPSecretKeyRing ring = new PGPSecretKeyRing(secretKeys);
 
         // Copy all non-self uid certificates
@@ -930,7 +1040,7 @@ public class PgpKeyOperation {
             long numDays = (expiry / 86400000) -
                     (creationDate.getTimeInMillis() / 86400000);
             if (numDays <= 0) {
-                throw new PgpGeneralMsgIdException(R.string.error_expiry_must_come_after_creation);
+                throw new PgpGeneralMsgIdException(Reason.EXPIRY_MUST_COME_AFTER_CREATION);
             }
             hashedPacketsGen.setKeyExpirationTime(false, expiry - creationDate.getTimeInMillis());
         } else {
@@ -969,14 +1079,14 @@ public class PgpKeyOperation {
         {
 
             if (certificationKey == null) {
-                throw new PgpGeneralMsgIdException(R.string.error_no_signature_key);
+                throw new PgpGeneralMsgIdException(Reason.NO_SIGNATURE_KEY);
             }
 
             PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
                     Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.toCharArray());
             PGPPrivateKey signaturePrivateKey = certificationKey.extractPrivateKey(keyDecryptor);
             if (signaturePrivateKey == null) {
-                throw new PgpGeneralMsgIdException(R.string.error_could_not_extract_private_key);
+                throw new PgpGeneralMsgIdException(Reason.COULD_NOT_EXTRACT_PRIVATE_KEY);
             }
 
             // TODO: SHA256 fixed?
@@ -1021,14 +1131,14 @@ public class PgpKeyOperation {
         PGPSignatureGenerator signatureGenerator;
 
         if (certificationKey == null) {
-            throw new PgpGeneralMsgIdException(R.string.error_no_signature_key);
+            throw new PgpGeneralMsgIdException(Reason.NO_SIGNATURE_KEY);
         }
 
         PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
                 Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.toCharArray());
         PGPPrivateKey signaturePrivateKey = certificationKey.extractPrivateKey(keyDecryptor);
         if (signaturePrivateKey == null) {
-            throw new PgpGeneralMsgIdException(R.string.error_could_not_extract_private_key);
+            throw new PgpGeneralMsgIdException(Reason.COULD_NOT_EXTRACT_PRIVATE_KEY);
         }
 
         JcaPGPContentSignerBuilder contentSignerBuilder = new JcaPGPContentSignerBuilder(
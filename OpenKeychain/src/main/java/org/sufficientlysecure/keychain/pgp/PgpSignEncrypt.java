@@ -30,30 +30,28 @@ import org.spongycastle.openpgp.PGPV3SignatureGenerator;
 import org.spongycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
 import org.spongycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
 import org.sufficientlysecure.keychain.Constants;
-import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.pgp.Progressable.Step;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.util.BufferPool;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.Executor;
 
 /**
  * This class uses a Builder pattern!
  */
 public class PgpSignEncrypt {
-    private ProviderHelper mProviderHelper;
+    private KeyRingLookup mKeyRingLookup;
     private String mVersionHeader;
     private InputData mData;
     private OutputStream mOutStream;
@@ -70,20 +68,11 @@ public class PgpSignEncrypt {
     private String mSignaturePassphrase;
     private boolean mEncryptToSigner;
     private boolean mCleartextInput;
-
-    private static byte[] NEW_LINE;
-
-    static {
-        try {
-            NEW_LINE = "\r\n".getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.e(Constants.TAG, "UnsupportedEncodingException", e);
-        }
-    }
+    private Executor mExecutor;
 
     private PgpSignEncrypt(Builder builder) {
         // private Constructor can only be called from Builder
-        this.mProviderHelper = builder.mProviderHelper;
+        this.mKeyRingLookup = builder.mKeyRingLookup;
         this.mVersionHeader = builder.mVersionHeader;
         this.mData = builder.mData;
         this.mOutStream = builder.mOutStream;
@@ -100,11 +89,12 @@ public class PgpSignEncrypt {
         this.mSignaturePassphrase = builder.mSignaturePassphrase;
         this.mEncryptToSigner = builder.mEncryptToSigner;
         this.mCleartextInput = builder.mCleartextInput;
+        this.mExecutor = builder.mExecutor;
     }
 
     public static class Builder {
         // mandatory parameter
-        private ProviderHelper mProviderHelper;
+        private KeyRingLookup mKeyRingLookup;
         private String mVersionHeader;
         private InputData mData;
         private OutputStream mOutStream;
@@ -122,9 +112,10 @@ public class PgpSignEncrypt {
         private String mSignaturePassphrase = null;
         private boolean mEncryptToSigner = false;
         private boolean mCleartextInput = false;
+        private Executor mExecutor = null;
 
-        public Builder(ProviderHelper providerHelper, String versionHeader, InputData data, OutputStream outStream) {
-            this.mProviderHelper = providerHelper;
+        public Builder(KeyRingLookup keyRingLookup, String versionHeader, InputData data, OutputStream outStream) {
+            this.mKeyRingLookup = keyRingLookup;
             this.mVersionHeader = versionHeader;
             this.mData = data;
             this.mOutStream = outStream;
@@ -200,14 +191,23 @@ public class PgpSignEncrypt {
             return this;
         }
 
+        /**
+         * Encrypt the session key for several recipients in parallel, on this executor.
+         * Without one, this is done one after another on the calling thread.
+         */
+        public Builder setExecutor(Executor executor) {
+            this.mExecutor = executor;
+            return this;
+        }
+
         public PgpSignEncrypt build() {
             return new PgpSignEncrypt(this);
         }
     }
 
-    public void updateProgress(int message, int current, int total) {
+    public void updateProgress(Step step, int current, int total) {
         if (mProgressable != null) {
-            mProgressable.setProgress(message, current, total);
+            mProgressable.setProgress(step, current, total);
         }
     }
 
@@ -270,8 +270,8 @@ public class PgpSignEncrypt {
         if (enableSignature) {
             WrappedSecretKeyRing signingKeyRing;
             try {
-                signingKeyRing = mProviderHelper.getWrappedSecretKeyRing(mSignatureMasterKeyId);
-            } catch (ProviderHelper.NotFoundException e) {
+                signingKeyRing = mKeyRingLookup.getSecretKeyRing(mSignatureMasterKeyId);
+            } catch (KeyRingLookup.NotFoundException e) {
                 throw new NoSigningKeyException();
             }
             try {
@@ -284,7 +284,7 @@ public class PgpSignEncrypt {
                 throw new NoPassphraseException();
             }
 
-            updateProgress(R.string.progress_extracting_signature_key, 0, 100);
+            updateProgress(Step.EXTRACTING_SIGNATURE_KEY, 0, 100);
 
             try {
                 signingKey.unlock(mSignaturePassphrase);
@@ -292,7 +292,7 @@ public class PgpSignEncrypt {
                 throw new KeyExtractionException();
             }
         }
-        updateProgress(R.string.progress_preparing_streams, 5, 100);
+        updateProgress(Step.PREPARING_STREAMS, 5, 100);
 
         /* Initialize PGPEncryptedDataGenerator for later usage */
         PGPEncryptedDataGenerator cPk = null;
@@ -313,17 +313,17 @@ public class PgpSignEncrypt {
                         new JcePBEKeyEncryptionMethodGenerator(mSymmetricPassphrase.toCharArray());
                 cPk.addMethod(symmetricEncryptionGenerator);
             } else {
-                // Asymmetric encryption
-                for (long id : mEncryptionMasterKeyIds) {
-                    try {
-                        WrappedPublicKeyRing keyRing = mProviderHelper.getWrappedPublicKeyRing(
-                                KeyRings.buildUnifiedKeyRingUri(id));
-                        WrappedPublicKey key = keyRing.getEncryptionSubKey();
+                // Asymmetric encryption, looking up all encryption subkeys at once
+                ArrayList<WrappedPublicKey> keys =
+                        mKeyRingLookup.getEncryptionSubKeys(mEncryptionMasterKeyIds);
+                // with several recipients, encrypt the session key for them in parallel
+                ParallelKeyEncryption parallel = mExecutor != null && keys.size() > 1
+                        ? new ParallelKeyEncryption(mExecutor) : null;
+                for (WrappedPublicKey key : keys) {
+                    if (parallel != null) {
+                        cPk.addMethod(parallel.wrap(key.getPubKeyEncryptionGenerator()));
+                    } else {
                         cPk.addMethod(key.getPubKeyEncryptionGenerator());
-                    } catch (PgpGeneralException e) {
-                        Log.e(Constants.TAG, "key not found!", e);
-                    } catch (ProviderHelper.NotFoundException e) {
-                        Log.e(Constants.TAG, "key not found!", e);
                     }
                 }
             }
@@ -333,7 +333,7 @@ public class PgpSignEncrypt {
         PGPSignatureGenerator signatureGenerator = null;
         PGPV3SignatureGenerator signatureV3Generator = null;
         if (enableSignature) {
-            updateProgress(R.string.progress_preparing_signature, 10, 100);
+            updateProgress(Step.PREPARING_SIGNATURE, 10, 100);
 
             try {
                 boolean cleartext = mCleartextInput && mEnableAsciiArmorOutput && !enableEncryption;
@@ -354,10 +354,15 @@ public class PgpSignEncrypt {
         OutputStream pOut;
         OutputStream encryptionOut = null;
         BCPGOutputStream bcpgOut;
+        // pooled buffers, released after all streams are closed
+        byte[] encryptionBuffer = null;
+        byte[] literalBuffer = null;
+        byte[] buffer = null;
         if (enableEncryption) {
             /* actual encryption */
 
-            encryptionOut = cPk.open(out, new byte[1 << 16]);
+            encryptionBuffer = BufferPool.acquire();
+            encryptionOut = cPk.open(out, encryptionBuffer);
 
             if (enableCompression) {
                 compressGen = new PGPCompressedDataGenerator(mCompressionId);
@@ -376,13 +381,14 @@ public class PgpSignEncrypt {
 
             PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
             // file name not needed, so empty string
+            literalBuffer = BufferPool.acquire();
             pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
-                    new byte[1 << 16]);
-            updateProgress(R.string.progress_encrypting, 20, 100);
+                    literalBuffer);
+            updateProgress(Step.ENCRYPTING, 20, 100);
 
             long progress = 0;
             int n;
-            byte[] buffer = new byte[1 << 16];
+            buffer = BufferPool.acquire();
             InputStream in = mData.getInputStream();
             while ((n = in.read(buffer)) > 0) {
                 pOut.write(buffer, 0, n);
@@ -397,8 +403,11 @@ public class PgpSignEncrypt {
                 }
 
                 progress += n;
-                if (mData.getSize() != 0) {
+                if (mData.isSizeKnown() && mData.getSize() != 0) {
                     updateProgress((int) (20 + (95 - 20) * progress / mData.getSize()), 100);
+                } else {
+                    // unknown size, but try to at least have a moving, slowing down progress bar
+                    updateProgress((int) (20 + (95 - 20) * progress / (progress + 100000)), 100);
                 }
             }
 
@@ -406,41 +415,16 @@ public class PgpSignEncrypt {
         } else if (enableSignature && mCleartextInput && mEnableAsciiArmorOutput) {
             /* cleartext signature: sign-only of ascii text */
 
-            updateProgress(R.string.progress_signing, 40, 100);
+            updateProgress(Step.SIGNING, 40, 100);
 
             // write -----BEGIN PGP SIGNED MESSAGE-----
             armorOut.beginClearText(mSignatureHashAlgorithm);
 
             InputStream in = mData.getInputStream();
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-
-            // update signature buffer with first line
-            if (mSignatureForceV3) {
-                processLineV3(reader.readLine(), armorOut, signatureV3Generator);
-            } else {
-                processLine(reader.readLine(), armorOut, signatureGenerator);
-            }
-
-            while (true) {
-                String line = reader.readLine();
-
-                // end cleartext signature with newline, see http://tools.ietf.org/html/rfc4880#section-7
-                if (line == null) {
-                    armorOut.write(NEW_LINE);
-                    break;
-                }
-
-                armorOut.write(NEW_LINE);
-
-                // update signature buffer with input line
-                if (mSignatureForceV3) {
-                    signatureV3Generator.update(NEW_LINE);
-                    processLineV3(line, armorOut, signatureV3Generator);
-                } else {
-                    signatureGenerator.update(NEW_LINE);
-                    processLine(line, armorOut, signatureGenerator);
-                }
-            }
+            buffer = BufferPool.acquire();
+            new CleartextCanonicalizer(armorOut,
+                    new SignatureOutputStream(signatureGenerator, signatureV3Generator))
+                    .process(in, buffer);
 
             armorOut.endClearText();
 
@@ -448,7 +432,7 @@ public class PgpSignEncrypt {
         } else if (enableSignature && !mCleartextInput) {
             /* sign-only binary (files/data stream) */
 
-            updateProgress(R.string.progress_signing, 40, 100);
+            updateProgress(Step.SIGNING, 40, 100);
 
             InputStream in = mData.getInputStream();
 
@@ -467,10 +451,11 @@ public class PgpSignEncrypt {
 
             PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
             // file name not needed, so empty string
+            literalBuffer = BufferPool.acquire();
             pOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "", new Date(),
-                    new byte[1 << 16]);
+                    literalBuffer);
 
-            byte[] buffer = new byte[1 << 16];
+            buffer = BufferPool.acquire();
             int n;
             while ((n = in.read(buffer)) > 0) {
                 pOut.write(buffer, 0, n);
@@ -489,7 +474,7 @@ public class PgpSignEncrypt {
         }
 
         if (enableSignature) {
-            updateProgress(R.string.progress_generating_signature, 95, 100);
+            updateProgress(Step.GENERATING_SIGNATURE, 95, 100);
             if (mSignatureForceV3) {
                 signatureV3Generator.generate().encode(pOut);
             } else {
@@ -514,59 +499,41 @@ public class PgpSignEncrypt {
         out.close();
         mOutStream.close();
 
-        updateProgress(R.string.progress_done, 100, 100);
-    }
-
-    private static void processLine(final String pLine, final ArmoredOutputStream pArmoredOutput,
-                                    final PGPSignatureGenerator pSignatureGenerator)
-            throws IOException, SignatureException {
-
-        if (pLine == null) {
-            return;
-        }
-
-        final char[] chars = pLine.toCharArray();
-        int len = chars.length;
-
-        while (len > 0) {
-            if (!Character.isWhitespace(chars[len - 1])) {
-                break;
-            }
-            len--;
-        }
-
-        final byte[] data = pLine.substring(0, len).getBytes("UTF-8");
+        BufferPool.release(encryptionBuffer);
+        BufferPool.release(literalBuffer);
+        BufferPool.release(buffer);
 
-        if (pArmoredOutput != null) {
-            pArmoredOutput.write(data);
-        }
-        pSignatureGenerator.update(data);
+        updateProgress(Step.DONE, 100, 100);
     }
 
-    private static void processLineV3(final String pLine, final ArmoredOutputStream pArmoredOutput,
-                                      final PGPV3SignatureGenerator pSignatureGenerator)
-            throws IOException, SignatureException {
+    /** Feeds everything written to it to the signature generator in use */
+    private static class SignatureOutputStream extends OutputStream {
+        private final PGPSignatureGenerator mSignatureGenerator;
+        private final PGPV3SignatureGenerator mSignatureV3Generator;
 
-        if (pLine == null) {
-            return;
+        SignatureOutputStream(PGPSignatureGenerator signatureGenerator,
+                              PGPV3SignatureGenerator signatureV3Generator) {
+            mSignatureGenerator = signatureGenerator;
+            mSignatureV3Generator = signatureV3Generator;
         }
 
-        final char[] chars = pLine.toCharArray();
-        int len = chars.length;
-
-        while (len > 0) {
-            if (!Character.isWhitespace(chars[len - 1])) {
-                break;
-            }
-            len--;
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[]{ (byte) oneByte }, 0, 1);
         }
 
-        final byte[] data = pLine.substring(0, len).getBytes("UTF-8");
-
-        if (pArmoredOutput != null) {
-            pArmoredOutput.write(data);
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            try {
+                if (mSignatureV3Generator != null) {
+                    mSignatureV3Generator.update(buffer, offset, count);
+                } else {
+                    mSignatureGenerator.update(buffer, offset, count);
+                }
+            } catch (SignatureException e) {
+                throw new IOException("Updating signature failed", e);
+            }
         }
-        pSignatureGenerator.update(data);
     }
 
 }
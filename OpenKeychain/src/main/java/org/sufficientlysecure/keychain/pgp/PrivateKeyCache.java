@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A process-wide cache of unlocked private keys.
+ *
+ * Extracting a PGPPrivateKey from a PGPSecretKey runs the full iterated S2K
+ * derivation of the passphrase, which is deliberately expensive. This cache
+ * keeps extracted keys around for as long as PassphraseCacheService keeps
+ * their passphrase, so a key which is used over and over again is only
+ * unlocked once per session.
+ *
+ * An entry is only handed out if both the passphrase and the encoded secret
+ * key match the ones it was unlocked with. This way a changed passphrase or
+ * an edited key is never served from a stale entry, even if the edit happened
+ * in a different process than the one holding the entry.
+ *
+ * Expired entries are dropped from a timer on the main looper, so unlocked
+ * keys do not outlive their ttl in an idle process. Every process has its own
+ * instance, so changes of the ttl and passphrases timing out in
+ * PassphraseCacheService are broadcast to all of them, see register. Entries
+ * only keep a digest of the passphrase, never the passphrase itself.
+ *
+ */
+public class PrivateKeyCache {
+
+    /** Sets the ttl of all instances to EXTRA_TTL */
+    public static final String BROADCAST_ACTION_SET_TTL = Constants.INTENT_PREFIX
+            + "PRIVATE_KEY_CACHE_SET_TTL";
+    /** Drops the keys of all keyrings in EXTRA_KEY_IDS from all instances */
+    public static final String BROADCAST_ACTION_INVALIDATE = Constants.INTENT_PREFIX
+            + "PRIVATE_KEY_CACHE_INVALIDATE";
+
+    public static final String EXTRA_TTL = "ttl";
+    public static final String EXTRA_KEY_IDS = "key_ids";
+
+    /** Upper bound for the number of cached keys, least recently used ones are dropped first. */
+    private static final int MAX_ENTRIES = 16;
+
+    private static final PrivateKeyCache sInstance = new PrivateKeyCache();
+
+    private final LinkedHashMap<Long, CachedKey> mKeys =
+            new LinkedHashMap<Long, CachedKey>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, CachedKey> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /** Time to live of an entry in milliseconds, defaults to the default passphrase cache ttl. */
+    private long mTtl = 180 * 1000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mPurgeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PrivateKeyCache.this) {
+                purgeExpired();
+                schedulePurge();
+            }
+        }
+    };
+
+    private static class CachedKey {
+        final long mMasterKeyId;
+        final byte[] mEncoded;
+        final byte[] mPassphraseDigest;
+        final PGPPrivateKey mPrivateKey;
+        long mExpiry;
+
+        CachedKey(long masterKeyId, byte[] encoded, byte[] passphraseDigest,
+                  PGPPrivateKey privateKey) {
+            mMasterKeyId = masterKeyId;
+            mEncoded = encoded;
+            mPassphraseDigest = passphraseDigest;
+            mPrivateKey = privateKey;
+        }
+    }
+
+    private PrivateKeyCache() {
+    }
+
+    public static PrivateKeyCache getInstance() {
+        return sInstance;
+    }
+
+    /** Registers the instance of this process for the broadcasts of setTtl and invalidate.
+     * To be called once per process, with the application context.
+     */
+    public void register(Context context) {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (BROADCAST_ACTION_SET_TTL.equals(intent.getAction())) {
+                    setTtl(intent.getLongExtra(EXTRA_TTL, 0));
+                } else if (BROADCAST_ACTION_INVALIDATE.equals(intent.getAction())) {
+                    long[] keyIds = intent.getLongArrayExtra(EXTRA_KEY_IDS);
+                    if (keyIds != null) {
+                        for (long keyId : keyIds) {
+                            invalidate(keyId);
+                        }
+                    }
+                }
+            }
+        };
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BROADCAST_ACTION_SET_TTL);
+        filter.addAction(BROADCAST_ACTION_INVALIDATE);
+        context.registerReceiver(receiver, filter, Constants.PERMISSION_INTERNAL, null);
+    }
+
+    /** Sets the ttl of the cached keys in all processes, see setTtl. */
+    public static void broadcastTtl(Context context, long ttl) {
+        Intent intent = new Intent(BROADCAST_ACTION_SET_TTL);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(EXTRA_TTL, ttl);
+        context.sendBroadcast(intent, Constants.PERMISSION_INTERNAL);
+    }
+
+    /** Drops the cached keys of the given keyrings in all processes, see invalidate. */
+    public static void broadcastInvalidate(Context context, long[] keyIds) {
+        Intent intent = new Intent(BROADCAST_ACTION_INVALIDATE);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(EXTRA_KEY_IDS, keyIds);
+        context.sendBroadcast(intent, Constants.PERMISSION_INTERNAL);
+    }
+
+    /** Sets the time to live of cached keys, usually the passphrase cache ttl from Preferences.
+     * Entries which would live longer with the new ttl expire earlier accordingly.
+     *
+     * @param ttl time to live in seconds. A negative value keeps keys cached forever,
+     *            just like it does for passphrases.
+     */
+    public synchronized void setTtl(long ttl) {
+        mTtl = ttl < 0 ? -1 : ttl * 1000;
+
+        long expiry = getExpiry();
+        for (CachedKey cached : mKeys.values()) {
+            cached.mExpiry = Math.min(cached.mExpiry, expiry);
+        }
+        purgeExpired();
+        schedulePurge();
+    }
+
+    /** Returns a previously unlocked key, or null if none is cached for this exact
+     * combination of key and passphrase. A hit extends the lifetime of the entry,
+     * just like a hit in PassphraseCacheService does for the passphrase.
+     */
+    synchronized PGPPrivateKey get(long keyId, byte[] encoded, String passphrase) {
+        purgeExpired();
+
+        CachedKey cached = mKeys.get(keyId);
+        if (cached == null) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(cached.mPassphraseDigest, digest(passphrase))
+                || !Arrays.equals(cached.mEncoded, encoded)) {
+            // either the key or the passphrase changed, this entry is of no use anymore
+            mKeys.remove(keyId);
+            return null;
+        }
+
+        cached.mExpiry = getExpiry();
+        return cached.mPrivateKey;
+    }
+
+    synchronized void put(long keyId, long masterKeyId, byte[] encoded, String passphrase,
+                          PGPPrivateKey privateKey) {
+        CachedKey cached = new CachedKey(masterKeyId, encoded, digest(passphrase), privateKey);
+        cached.mExpiry = getExpiry();
+        mKeys.put(keyId, cached);
+        schedulePurge();
+    }
+
+    /** Drops all cached subkeys of a keyring, to be called whenever it is modified or deleted,
+     * or its passphrase timed out. The key id may be that of any of its subkeys, too.
+     */
+    public synchronized void invalidate(long keyId) {
+        Iterator<Map.Entry<Long, CachedKey>> it = mKeys.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, CachedKey> entry = it.next();
+            if (entry.getKey() == keyId || entry.getValue().mMasterKeyId == keyId) {
+                it.remove();
+            }
+        }
+    }
+
+    private static byte[] digest(String passphrase) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(passphrase.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private long getExpiry() {
+        return mTtl < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + mTtl;
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Long, CachedKey>> it = mKeys.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, CachedKey> entry = it.next();
+            if (entry.getValue().mExpiry < now) {
+                Log.d(Constants.TAG, "Unlocked key " + entry.getKey() + " timed out, removing from cache");
+                it.remove();
+            }
+        }
+    }
+
+    /** Schedules the next purge for the earliest expiry of all cached keys. */
+    private void schedulePurge() {
+        mHandler.removeCallbacks(mPurgeRunnable);
+        if (mKeys.isEmpty()) {
+            return;
+        }
+
+        long earliest = Long.MAX_VALUE;
+        for (CachedKey cached : mKeys.values()) {
+            earliest = Math.min(earliest, cached.mExpiry);
+        }
+        if (earliest == Long.MAX_VALUE) {
+            // nothing ever expires
+            return;
+        }
+        mHandler.postDelayed(mPurgeRunnable, Math.max(0, earliest - System.currentTimeMillis()));
+    }
+
+}
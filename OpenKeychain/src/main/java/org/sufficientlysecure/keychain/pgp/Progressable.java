@@ -17,9 +17,32 @@
 
 package org.sufficientlysecure.keychain.pgp;
 
+/**
+ * Receives progress updates of long running operations.
+ *
+ * The operations of this package report their current step as a Step, so they don't
+ * depend on Android resources. Implementations look up a message to show for it, see
+ * PgpResources.
+ */
 public interface Progressable {
+
+    /** Steps of the operations in this package, with a message each */
+    public enum Step {
+        // sign and encrypt
+        EXTRACTING_SIGNATURE_KEY, PREPARING_STREAMS, PREPARING_SIGNATURE, ENCRYPTING, SIGNING,
+        GENERATING_SIGNATURE,
+        // decrypt and verify
+        READING_DATA, FINDING_KEY, EXTRACTING_KEY, DECOMPRESSING_DATA, PROCESSING_SIGNATURE,
+        DECRYPTING, VERIFYING_SIGNATURE, VERIFYING_INTEGRITY,
+        // key operations
+        BUILDING_KEY, BUILDING_MASTER_KEY, CERTIFYING_MASTER_KEY, ADDING_SUB_KEYS,
+        DONE
+    }
+
     void setProgress(String message, int current, int total);
 
+    void setProgress(Step step, int current, int total);
+
     void setProgress(int resourceId, int current, int total);
 
     void setProgress(int current, int total);
@@ -20,8 +20,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
-import java.util.Vector;
 
 /** Wrapper around PGPKeyRing class, to be constructed from bytes.
  *
@@ -121,25 +119,72 @@ public class UncachedKeyRing {
         }
     }
 
-    public static List<UncachedKeyRing> fromStream(InputStream stream)
-            throws PgpGeneralException, IOException {
+    /** Returns a reader for all keyrings in a stream, see KeyRingReader. */
+    public static KeyRingReader fromStream(InputStream stream) {
+        return new KeyRingReader(stream);
+    }
 
-        PGPObjectFactory objectFactory = new PGPObjectFactory(PGPUtil.getDecoderStream(stream));
+    /** Reads keyrings from a stream one at a time, so only a single keyring is held in
+     * memory at any point. The stream may consist of several consecutive blocks, e.g.
+     * files with several ASCII armor blocks, and objects which are no keyrings are skipped.
+     *
+     * Keyrings are numbered in the order they are read, which is the same every time a
+     * stream with the same contents is read. This allows referencing a keyring by its
+     * position, and reading it again later on.
+     */
+    public static class KeyRingReader {
+
+        // need to have access to the bufferedInput, so we can reuse it for the possible
+        // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
+        // armor blocks
+        private final BufferedInputStream mBufferedInput;
+        private PGPObjectFactory mObjectFactory;
+        private int mPosition = 0;
+
+        KeyRingReader(InputStream stream) {
+            mBufferedInput = new BufferedInputStream(stream);
+        }
 
-        List<UncachedKeyRing> result = new Vector<UncachedKeyRing>();
+        /** Returns the next keyring in the stream, or null if there are no more. */
+        public UncachedKeyRing next() throws IOException {
+            while (true) {
+                if (mObjectFactory == null) {
+                    // read all available blocks... (asc files can contain many blocks with BEGIN END)
+                    if (mBufferedInput.available() <= 0) {
+                        return null;
+                    }
+                    mObjectFactory = new PGPObjectFactory(PGPUtil.getDecoderStream(mBufferedInput));
+                }
+
+                Object obj = mObjectFactory.nextObject();
+                if (obj == null) {
+                    // end of this block
+                    mObjectFactory = null;
+                    continue;
+                }
+
+                Log.d(Constants.TAG, "Found class: " + obj.getClass());
+                if (obj instanceof PGPKeyRing) {
+                    mPosition += 1;
+                    return new UncachedKeyRing((PGPKeyRing) obj);
+                }
+                Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!");
+            }
+        }
 
-        // go through all objects in this block
-        Object obj;
-        while ((obj = objectFactory.nextObject()) != null) {
-            Log.d(Constants.TAG, "Found class: " + obj.getClass());
+        /** Position of the next keyring returned by next(), counting from zero. */
+        public int getPosition() {
+            return mPosition;
+        }
 
-            if (obj instanceof PGPKeyRing) {
-                result.add(new UncachedKeyRing((PGPKeyRing) obj));
-            } else {
-                Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!");
+        /** Skips keyrings until the one at the given position is next. */
+        public void skipTo(int position) throws IOException {
+            while (mPosition < position) {
+                if (next() == null) {
+                    throw new IOException("Keyring at position " + position + " not found!");
+                }
             }
         }
-        return result;
     }
 
     public void encodeArmored(OutputStream out, String version) throws IOException {
@@ -31,7 +31,8 @@ public class WrappedPublicKeyRing extends WrappedKeyRing {
         mPubKey = blob;
     }
 
-    PGPPublicKeyRing getRing() {
+    // synchronized, since instances are shared between threads through the KeyRingCache
+    synchronized PGPPublicKeyRing getRing() {
         if(mRing == null) {
             PGPObjectFactory factory = new PGPObjectFactory(mPubKey);
             PGPKeyRing keyRing = null;
@@ -60,6 +61,11 @@ public class WrappedPublicKeyRing extends WrappedKeyRing {
         return new WrappedPublicKey(this, getRing().getPublicKey(id));
     }
 
+    /** Returns true if the keyring contains a subkey with the given id. */
+    public boolean hasSubkey(long id) {
+        return getRing().getPublicKey(id) != null;
+    }
+
     /** Getter that returns the subkey that should be used for signing. */
     WrappedPublicKey getEncryptionSubKey() throws PgpGeneralException {
         PGPPublicKey key = getRing().getPublicKey(getEncryptId());
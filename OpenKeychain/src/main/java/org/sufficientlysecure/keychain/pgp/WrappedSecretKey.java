@@ -21,7 +21,9 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralMsgIdException;
 import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Log;
 
+import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
@@ -62,6 +64,19 @@ public class WrappedSecretKey extends WrappedPublicKey {
     }
 
     public boolean unlock(String passphrase) throws PgpGeneralException {
+        // the s2k derivation is expensive, so check for a recently unlocked copy first
+        byte[] encoded = null;
+        try {
+            encoded = mSecretKey.getEncoded();
+            mPrivateKey = PrivateKeyCache.getInstance().get(getKeyId(), encoded, passphrase);
+            if (mPrivateKey != null) {
+                return true;
+            }
+        } catch (IOException e) {
+            // not critical, this key just won't be cached
+            Log.e(Constants.TAG, "Error encoding secret key!", e);
+        }
+
         try {
             PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
                     Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.toCharArray());
@@ -72,6 +87,11 @@ public class WrappedSecretKey extends WrappedPublicKey {
         if(mPrivateKey == null) {
             throw new PgpGeneralException("error extracting key");
         }
+
+        if (encoded != null) {
+            PrivateKeyCache.getInstance().put(getKeyId(), mRing.getMasterKeyId(), encoded,
+                    passphrase, mPrivateKey);
+        }
         return true;
     }
 
@@ -53,7 +53,7 @@ public class WrappedSecretKeyRing extends WrappedKeyRing {
     }
 
     /** Getter that returns the subkey that should be used for signing. */
-    WrappedSecretKey getSigningSubKey() throws PgpGeneralException {
+    public WrappedSecretKey getSigningSubKey() throws PgpGeneralException {
         PGPSecretKey key = mRing.getSecretKey(getSignId());
         if(key != null) {
             WrappedSecretKey cKey = new WrappedSecretKey(this, key);
@@ -18,19 +18,26 @@
 
 package org.sufficientlysecure.keychain.pgp.exception;
 
-import android.content.Context;
-
+/**
+ * Thrown by key operations for a failure with a message to show, see PgpResources.
+ */
 public class PgpGeneralMsgIdException extends Exception {
     static final long serialVersionUID = 0xf812773343L;
 
-    private final int mMessageId;
+    public enum Reason {
+        KEY_SIZE_MINIMUM512BIT, MASTER_KEY_MUST_NOT_BE_EL_GAMAL, UNKNOWN_ALGORITHM_CHOICE,
+        ENCODING, EXPIRY_MUST_COME_AFTER_CREATION, NO_SIGNATURE_KEY,
+        COULD_NOT_EXTRACT_PRIVATE_KEY
+    }
+
+    private final Reason mReason;
 
-    public PgpGeneralMsgIdException(int messageId) {
-        super("msg[" + messageId + "]");
-        mMessageId = messageId;
+    public PgpGeneralMsgIdException(Reason reason) {
+        super(reason.name());
+        mReason = reason;
     }
 
-    public PgpGeneralException getContextualized(Context context) {
-        return new PgpGeneralException(context.getString(mMessageId), this);
+    public Reason getReason() {
+        return mReason;
     }
 }
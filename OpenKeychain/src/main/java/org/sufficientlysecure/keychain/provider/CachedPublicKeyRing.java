@@ -1,10 +1,12 @@
 package org.sufficientlysecure.keychain.provider;
 
+import android.database.Cursor;
 import android.net.Uri;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.util.Log;
 
 /** This implementation of KeyRing provides a cached view of PublicKeyRing
@@ -15,34 +17,98 @@ import org.sufficientlysecure.keychain.util.Log;
  * in the database.  This happens commonly in UI code, where parsing of a PGP
  * key for examination would be a very expensive operation.
  *
- * Each getter method is implemented using a more or less expensive database
- * query, while object construction is (almost) free. A common pattern is
+ * All data is loaded in a single query of the unified key ring table, on the
+ * first call of any getter method, and is answered from memory afterwards.
+ * Object construction is free. A common pattern is
  * mProviderHelper.getCachedKeyRing(uri).getterMethod()
  *
+ * The loaded values are a snapshot, call refresh() to load them again after
+ * the keyring may have changed.
+ *
  * TODO Ensure that the values returned here always match the ones returned by
  * the parsed KeyRing!
  *
  */
 public class CachedPublicKeyRing extends KeyRing {
 
+    private static final String[] PROJECTION = new String[] {
+            KeyRings.MASTER_KEY_ID,
+            KeyRings.USER_ID,
+            KeyRings.IS_REVOKED,
+            KeyRings.CAN_CERTIFY,
+            KeyRings.HAS_ENCRYPT,
+            KeyRings.HAS_SIGN,
+            KeyRings.VERIFIED,
+            KeyRings.HAS_ANY_SECRET,
+    };
+    private static final int INDEX_MASTER_KEY_ID = 0;
+    private static final int INDEX_USER_ID = 1;
+    private static final int INDEX_IS_REVOKED = 2;
+    private static final int INDEX_CAN_CERTIFY = 3;
+    private static final int INDEX_HAS_ENCRYPT = 4;
+    private static final int INDEX_HAS_SIGN = 5;
+    private static final int INDEX_VERIFIED = 6;
+    private static final int INDEX_HAS_ANY_SECRET = 7;
+
     final ProviderHelper mProviderHelper;
     final Uri mUri;
 
+    private boolean mLoaded = false;
+    private long mMasterKeyId;
+    private String mPrimaryUserId;
+    private boolean mIsRevoked;
+    private boolean mCanCertify;
+    private long mEncryptId;
+    private boolean mHasEncrypt;
+    private long mSignId;
+    private boolean mHasSign;
+    private int mVerified;
+    private boolean mHasAnySecret;
+
     public CachedPublicKeyRing(ProviderHelper providerHelper, Uri uri) {
         mProviderHelper = providerHelper;
         mUri = uri;
     }
 
-    public long getMasterKeyId() throws PgpGeneralException {
+    /** Discards the loaded data, it is loaded again on the next call of a getter. */
+    public synchronized void refresh() {
+        mLoaded = false;
+    }
+
+    private synchronized void load() throws PgpGeneralException {
+        if (mLoaded) {
+            return;
+        }
+
+        Cursor cursor = mProviderHelper.getContentResolver().query(
+                mUri, PROJECTION, null, null, null);
         try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.MASTER_KEY_ID, ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data;
-        } catch (ProviderHelper.NotFoundException e) {
-            throw new PgpGeneralException(e);
+            if (cursor == null || !cursor.moveToFirst()) {
+                throw new PgpGeneralException(new ProviderHelper.NotFoundException("Key not found!"));
+            }
+            mMasterKeyId = cursor.getLong(INDEX_MASTER_KEY_ID);
+            mPrimaryUserId = cursor.getString(INDEX_USER_ID);
+            mIsRevoked = cursor.getInt(INDEX_IS_REVOKED) > 0;
+            mCanCertify = cursor.getInt(INDEX_CAN_CERTIFY) > 0;
+            mHasEncrypt = !cursor.isNull(INDEX_HAS_ENCRYPT);
+            mEncryptId = mHasEncrypt ? cursor.getLong(INDEX_HAS_ENCRYPT) : 0L;
+            mHasSign = !cursor.isNull(INDEX_HAS_SIGN);
+            mSignId = mHasSign ? cursor.getLong(INDEX_HAS_SIGN) : 0L;
+            mVerified = cursor.getInt(INDEX_VERIFIED);
+            mHasAnySecret = cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
+            mLoaded = true;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
     }
 
+    public synchronized long getMasterKeyId() throws PgpGeneralException {
+        load();
+        return mMasterKeyId;
+    }
+
     /**
      * Find the master key id related to a given query. The id will either be extracted from the
      * query, which should work for all specific /key_rings/ queries, or will be queried if it can't.
@@ -59,103 +125,54 @@ public class CachedPublicKeyRing extends KeyRing {
         return getMasterKeyId();
     }
 
-    public String getPrimaryUserId() throws PgpGeneralException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.MASTER_KEY_ID,
-                    ProviderHelper.FIELD_TYPE_STRING);
-            return (String) data;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpGeneralException(e);
-        }
+    public synchronized String getPrimaryUserId() throws PgpGeneralException {
+        load();
+        return mPrimaryUserId;
     }
 
-    public boolean isRevoked() throws PgpGeneralException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.MASTER_KEY_ID,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data > 0;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpGeneralException(e);
-        }
+    public synchronized boolean isRevoked() throws PgpGeneralException {
+        load();
+        return mIsRevoked;
     }
 
-    public boolean canCertify() throws PgpGeneralException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.MASTER_KEY_ID,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data > 0;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpGeneralException(e);
-        }
+    public synchronized boolean canCertify() throws PgpGeneralException {
+        load();
+        return mCanCertify;
     }
 
-    public long getEncryptId() throws PgpGeneralException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.MASTER_KEY_ID,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpGeneralException(e);
+    public synchronized long getEncryptId() throws PgpGeneralException {
+        load();
+        if (!mHasEncrypt) {
+            throw new PgpGeneralException("No valid encryption key found!");
         }
+        return mEncryptId;
     }
 
-    public boolean hasEncrypt() throws PgpGeneralException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.MASTER_KEY_ID,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data > 0;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpGeneralException(e);
-        }
+    public synchronized boolean hasEncrypt() throws PgpGeneralException {
+        load();
+        return mHasEncrypt;
     }
 
-    public long getSignId() throws PgpGeneralException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.MASTER_KEY_ID,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpGeneralException(e);
+    public synchronized long getSignId() throws PgpGeneralException {
+        load();
+        if (!mHasSign) {
+            throw new PgpGeneralException("No valid signing key found!");
         }
+        return mSignId;
     }
 
-    public boolean hasSign() throws PgpGeneralException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.MASTER_KEY_ID,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data > 0;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpGeneralException(e);
-        }
+    public synchronized boolean hasSign() throws PgpGeneralException {
+        load();
+        return mHasSign;
     }
 
-    public int getVerified() throws PgpGeneralException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.MASTER_KEY_ID,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Integer) data;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpGeneralException(e);
-        }
+    public synchronized int getVerified() throws PgpGeneralException {
+        load();
+        return mVerified;
     }
 
-    public boolean hasAnySecret() throws PgpGeneralException {
-        try {
-            Object data = mProviderHelper.getGenericData(mUri,
-                    KeychainContract.KeyRings.MASTER_KEY_ID,
-                    ProviderHelper.FIELD_TYPE_INTEGER);
-            return (Long) data > 0;
-        } catch(ProviderHelper.NotFoundException e) {
-            throw new PgpGeneralException(e);
-        }
-
+    public synchronized boolean hasAnySecret() throws PgpGeneralException {
+        load();
+        return mHasAnySecret;
     }
 }
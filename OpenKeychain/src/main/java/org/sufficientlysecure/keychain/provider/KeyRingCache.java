@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.v4.util.LruCache;
+
+import org.sufficientlysecure.keychain.pgp.KeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+
+import java.util.List;
+
+/** A process-wide cache of parsed keyrings, keyed by master key id.
+ *
+ * Parsing a keyring blob is the bulk of the work in ProviderHelper.getWrappedKeyRing,
+ * and the same few keyrings are requested over and over again, e.g. once per
+ * signature in a thread of messages. Since wrapped keyrings are immutable, the
+ * parsed objects can simply be handed out again.
+ *
+ * The cache is bounded by the total size of the encoded keyrings it holds. Keyrings
+ * are dropped on every change notification for KeyRings.CONTENT_URI, which covers
+ * all modifications made through KeychainProvider, in any process. A generation
+ * counter makes sure a keyring read before such a change is never put into the
+ * cache after it was cleared. Since notifications are delivered with a delay, an
+ * entry is also checked against the version stamp of the keyring in the database,
+ * which the caller queries along with its other metadata.
+ *
+ */
+public class KeyRingCache {
+
+    /** Upper bound for the total size of cached keyrings, in bytes of encoded data. */
+    private static final int MAX_SIZE = 1024 * 1024;
+
+    private static KeyRingCache sInstance;
+
+    private final LruCache<Long, CachedRing> mPublicRings = new RingLruCache();
+    private final LruCache<Long, CachedRing> mSecretRings = new RingLruCache();
+
+    private int mGeneration = 0;
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    private static class CachedRing {
+        final KeyRing mRing;
+        final int mSize;
+        final boolean mHasAnySecret;
+        final int mVerified;
+        final long mVersion;
+
+        CachedRing(KeyRing ring, int size, boolean hasAnySecret, int verified, long version) {
+            mRing = ring;
+            mSize = size;
+            mHasAnySecret = hasAnySecret;
+            mVerified = verified;
+            mVersion = version;
+        }
+    }
+
+    private static class RingLruCache extends LruCache<Long, CachedRing> {
+        RingLruCache() {
+            super(MAX_SIZE / 2);
+        }
+
+        @Override
+        protected int sizeOf(Long key, CachedRing value) {
+            return value.mSize;
+        }
+    }
+
+    private KeyRingCache() {
+    }
+
+    /** Returns the cache of this process, registering for change notifications on first use. */
+    public static synchronized KeyRingCache getInstance(Context context) {
+        if (sInstance == null) {
+            final KeyRingCache cache = new KeyRingCache();
+            // a null handler delivers notifications on the binder thread, independent of any looper
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    KeyRings.CONTENT_URI, true, new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            cache.clear();
+                        }
+
+                        // only called from api level 16 on, which passes the changed uri
+                        @Override
+                        public void onChange(boolean selfChange, Uri uri) {
+                            if (uri == null) {
+                                cache.clear();
+                            } else {
+                                cache.invalidate(uri);
+                            }
+                        }
+                    });
+            sInstance = cache;
+        }
+        return sInstance;
+    }
+
+    /** Returns the current generation, to be passed to put for a keyring read afterwards. */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /** Returns a cached keyring, or null if it is not cached or the cached entry is out of
+     * date with respect to the given metadata, which is cheap to query from the database.
+     */
+    synchronized KeyRing get(long masterKeyId, boolean secret, boolean hasAnySecret, int verified,
+                             long version) {
+        CachedRing cached = (secret ? mSecretRings : mPublicRings).get(masterKeyId);
+        if (cached == null || cached.mHasAnySecret != hasAnySecret || cached.mVerified != verified
+                || cached.mVersion != version) {
+            mMissCount += 1;
+            return null;
+        }
+        mHitCount += 1;
+        return cached.mRing;
+    }
+
+    synchronized void put(int generation, long masterKeyId, boolean secret, KeyRing ring, int size,
+                          boolean hasAnySecret, int verified, long version) {
+        if (generation != mGeneration) {
+            // the database changed while this keyring was read, it may already be stale
+            return;
+        }
+        (secret ? mSecretRings : mPublicRings).put(masterKeyId,
+                new CachedRing(ring, size, hasAnySecret, verified, version));
+    }
+
+    /** Drops all cached keyrings. Called on every change, but may also be called directly
+     * to invalidate the cache synchronously, before the change notification arrives.
+     */
+    public synchronized void clear() {
+        mGeneration += 1;
+        mPublicRings.evictAll();
+        mSecretRings.evictAll();
+    }
+
+    /** Drops the keyrings affected by a change notification for the given uri. This is a
+     * single keyring for uris below KeyRings.CONTENT_URI with a master key id, and all of
+     * them otherwise.
+     */
+    public synchronized void invalidate(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() >= 2 && KeychainContract.BASE_KEY_RINGS.equals(segments.get(0))) {
+            try {
+                long masterKeyId = Long.parseLong(segments.get(1));
+                mGeneration += 1;
+                mPublicRings.remove(masterKeyId);
+                mSecretRings.remove(masterKeyId);
+                return;
+            } catch (NumberFormatException e) {
+                // not a specific keyring
+            }
+        }
+        clear();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int total = mHitCount + mMissCount;
+        return "KeyRingCache[hits=" + mHitCount + ", misses=" + mMissCount
+                + ", hitRate=" + (total == 0 ? 0 : mHitCount * 100 / total) + "%"
+                + ", size=" + (mPublicRings.size() + mSecretRings.size()) + "]";
+    }
+
+}
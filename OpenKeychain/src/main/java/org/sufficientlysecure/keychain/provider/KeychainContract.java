@@ -22,6 +22,9 @@ import android.provider.BaseColumns;
 
 import org.sufficientlysecure.keychain.Constants;
 
+import java.util.List;
+import java.util.Locale;
+
 public class KeychainContract {
 
     interface KeyRingsColumns {
@@ -54,6 +57,7 @@ public class KeychainContract {
         String RANK = "rank"; // ONLY used for sorting! no key, no nothing!
         String IS_PRIMARY = "is_primary";
         String IS_REVOKED = "is_revoked";
+        String EMAIL = "email"; // normalized email part of the user id, for lookups
     }
 
     interface CertsColumns {
@@ -66,6 +70,26 @@ public class KeychainContract {
         String DATA = "data";
     }
 
+    interface SignatureVerdictsColumns {
+        String MASTER_KEY_ID = "master_key_id"; // keyring the signature was found on
+        String DIGEST = "digest"; // hex sha-256 of signature, signer and certified key and uid
+        String VERIFIED = "verified";
+    }
+
+    interface KeyRingSummaryColumns {
+        String MASTER_KEY_ID = "master_key_id";
+        String HAS_ENCRYPT = "has_encrypt"; // key id of a usable encryption subkey, or null
+        String HAS_SIGN = "has_sign"; // key id of a usable signing subkey, or null
+        String HAS_ANY_SECRET = "has_any_secret";
+        String VERIFIED = "verified"; // VERIFIED_SECRET if any user id is, null otherwise
+        String VALID_UNTIL = "valid_until"; // earliest expiry which changes the above, or null
+        String VERSION = "version"; // incremented whenever the keyring changes
+    }
+
+    interface KeyRingsSearchColumns {
+        String CONTENT = "content"; // all searchable text of a keyring, the docid is its master key id
+    }
+
     interface ApiAppsColumns {
         String PACKAGE_NAME = "package_name";
         String PACKAGE_SIGNATURE = "package_signature";
@@ -93,14 +117,21 @@ public class KeychainContract {
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
     public static final String PATH_BY_SUBKEY = "subkey";
+    public static final String PATH_BY_TEXT = "text";
 
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
     public static final String PATH_USER_IDS = "user_ids";
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
+    public static final String PATH_SEARCH = "search";
+
+    /** Query parameter limiting the number of returned rows */
+    public static final String PARAM_LIMIT = "limit";
 
     public static final String BASE_API_APPS = "api_apps";
+
+    public static final String BASE_SIGNATURE_VERDICTS = "signature_verdicts";
     public static final String PATH_ACCOUNTS = "accounts";
 
     public static class KeyRings implements BaseColumns, KeysColumns, UserIdsColumns {
@@ -110,6 +141,7 @@ public class KeychainContract {
         public static final String HAS_ANY_SECRET = "has_any_secret";
         public static final String HAS_ENCRYPT = "has_encrypt";
         public static final String HAS_SIGN = "has_sign";
+        public static final String VERSION = "version";
         public static final String PUBKEY_DATA = "pubkey_data";
         public static final String PRIVKEY_DATA = "privkey_data";
 
@@ -157,6 +189,12 @@ public class KeychainContract {
                     .appendPath(PATH_BY_SUBKEY).appendPath(Long.toString(subkey)).build();
         }
 
+        /** Finds keyrings with words starting with each word of the query, see KeyRingsSearch */
+        public static Uri buildUnifiedKeyRingsFindByTextUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_BY_TEXT).appendPath(query).build();
+        }
+
     }
 
     public static class KeyRingData implements KeyRingsColumns, BaseColumns {
@@ -244,6 +282,93 @@ public class KeychainContract {
         public static Uri buildUserIdsUri(Uri uri) {
             return CONTENT_URI.buildUpon().appendPath(uri.getPathSegments().get(1)).appendPath(PATH_USER_IDS).build();
         }
+
+        /**
+         * Returns the normalized email address of a user id, which is the part in angle
+         * brackets at its very end, in lower case. This is what the EMAIL column contains.
+         *
+         * @return normalized email, or null if the user id doesn't end with one
+         */
+        public static String extractEmail(String userId) {
+            if (userId == null || !userId.endsWith(">")) {
+                return null;
+            }
+            int start = userId.lastIndexOf('<');
+            if (start < 0) {
+                return null;
+            }
+            return normalizeEmail(userId.substring(start + 1, userId.length() - 1));
+        }
+
+        public static String normalizeEmail(String email) {
+            return email.trim().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    public static class KeyRingsSearch implements KeyRingsSearchColumns {
+        public static Uri buildKeyRingSearchUri(long masterKeyId) {
+            return KeyRings.CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId))
+                    .appendPath(PATH_SEARCH).build();
+        }
+
+        /**
+         * Builds the indexed text of a keyring. This consists of all user ids, which includes
+         * their emails, and the long and short key ids and the fingerprints of all keys in hex.
+         */
+        public static String buildContent(List<String> userIds, List<Long> keyIds,
+                                          List<byte[]> fingerprints) {
+            StringBuilder content = new StringBuilder();
+            for (String userId : userIds) {
+                content.append(userId).append('\n');
+            }
+            for (long keyId : keyIds) {
+                String hex = String.format(Locale.ENGLISH, "%016x", keyId);
+                content.append(hex).append(' ').append(hex.substring(8)).append('\n');
+            }
+            for (byte[] fingerprint : fingerprints) {
+                for (byte b : fingerprint) {
+                    content.append(Character.forDigit((b >> 4) & 0xf, 16))
+                            .append(Character.forDigit(b & 0xf, 16));
+                }
+                content.append('\n');
+            }
+            return content.toString();
+        }
+
+        /**
+         * Turns a query as typed by the user into a match expression, which matches keyrings
+         * containing a word starting with each word of the query. Words are split like the
+         * simple tokenizer of the index does, at all ascii characters except letters and
+         * digits, so non-ascii characters are part of words.
+         *
+         * @return the match expression, or null if the query contains no words
+         */
+        public static String buildMatchQuery(String query) {
+            StringBuilder match = new StringBuilder();
+            for (String word : query.split("[^A-Za-z0-9\\u0080-\\uffff]+")) {
+                // key ids are usually written with a 0x prefix
+                if (word.length() > 2 && (word.startsWith("0x") || word.startsWith("0X"))) {
+                    word = word.substring(2);
+                }
+                if (word.length() == 0) {
+                    continue;
+                }
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                // quoted, so words like OR aren't taken as operators
+                match.append('"').append(word).append("*\"");
+            }
+            return match.length() > 0 ? match.toString() : null;
+        }
+    }
+
+    public static class SignatureVerdicts implements SignatureVerdictsColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_SIGNATURE_VERDICTS).build();
+
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.signature_verdicts";
     }
 
     public static class ApiApps implements ApiAppsColumns, BaseColumns {
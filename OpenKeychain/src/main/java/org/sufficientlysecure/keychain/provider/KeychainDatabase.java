@@ -17,6 +17,7 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -28,9 +29,15 @@ import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsAccountsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingSummaryColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearch;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearchColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.SignatureVerdictsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIdsColumns;
 import org.sufficientlysecure.keychain.util.Log;
 
@@ -38,6 +45,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 
 /**
  * SQLite Datatypes (from http://www.sqlite.org/datatype3.html)
@@ -51,7 +61,7 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 8;
     static Boolean apgHack = false;
 
     public interface Tables {
@@ -62,6 +72,9 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String CERTS = "certs";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
+        String SIGNATURE_VERDICTS = "signature_verdicts";
+        String KEY_RINGS_SEARCH = "keyrings_search";
+        String KEY_RING_SUMMARY = "keyring_summary";
     }
 
     private static final String CREATE_KEYRINGS_PUBLIC =
@@ -110,6 +123,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserIdsColumns.IS_PRIMARY + " BOOLEAN, "
                 + UserIdsColumns.IS_REVOKED + " BOOLEAN, "
                 + UserIdsColumns.RANK+ " INTEGER, "
+                + UserIdsColumns.EMAIL + " TEXT, "
 
                 + "PRIMARY KEY(" + UserIdsColumns.MASTER_KEY_ID + ", " + UserIdsColumns.USER_ID + "), "
                 + "UNIQUE (" + UserIdsColumns.MASTER_KEY_ID + ", " + UserIdsColumns.RANK + "), "
@@ -137,6 +151,148 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.USER_IDS + "(" + UserIdsColumns.MASTER_KEY_ID + ", " + UserIdsColumns.RANK + ") ON DELETE CASCADE"
             + ")";
 
+    // lookups by subkey id (find by subkey) and by email address (find by email)
+    private static final String CREATE_KEYS_KEY_ID_INDEX =
+            "CREATE INDEX IF NOT EXISTS keys_key_id_index ON "
+                + Tables.KEYS + "(" + KeysColumns.KEY_ID + ")";
+
+    private static final String CREATE_USER_IDS_EMAIL_INDEX =
+            "CREATE INDEX IF NOT EXISTS user_ids_email_index ON "
+                + Tables.USER_IDS + "(" + UserIdsColumns.EMAIL + ")";
+
+    // results of signature verifications, which are expensive and mostly repeated on re-import
+    private static final String CREATE_SIGNATURE_VERDICTS =
+            "CREATE TABLE IF NOT EXISTS " + Tables.SIGNATURE_VERDICTS + " ("
+                + SignatureVerdictsColumns.DIGEST + " TEXT PRIMARY KEY, "
+                + SignatureVerdictsColumns.MASTER_KEY_ID + " INTEGER, "
+                + SignatureVerdictsColumns.VERIFIED + " BOOLEAN"
+            + ")";
+
+    // verdicts are inserted before their keyring, so they can't reference it by foreign key
+    private static final String CREATE_SIGNATURE_VERDICTS_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS signature_verdicts_delete AFTER DELETE ON "
+                + Tables.KEY_RINGS_PUBLIC + " BEGIN"
+                + " DELETE FROM " + Tables.SIGNATURE_VERDICTS
+                    + " WHERE " + SignatureVerdictsColumns.MASTER_KEY_ID
+                    + " = old." + KeyRingsColumns.MASTER_KEY_ID + ";"
+            + " END";
+
+    private static final String CREATE_SIGNATURE_VERDICTS_INDEX =
+            "CREATE INDEX IF NOT EXISTS signature_verdicts_master_key_id_index ON "
+                + Tables.SIGNATURE_VERDICTS + "(" + SignatureVerdictsColumns.MASTER_KEY_ID + ")";
+
+    // per keyring results of the checks the key lists need, see updateKeyRingSummaries
+    private static final String CREATE_KEY_RING_SUMMARY =
+            "CREATE TABLE IF NOT EXISTS " + Tables.KEY_RING_SUMMARY + " ("
+                + KeyRingSummaryColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+                + KeyRingSummaryColumns.HAS_ENCRYPT + " INTEGER, "
+                + KeyRingSummaryColumns.HAS_SIGN + " INTEGER, "
+                + KeyRingSummaryColumns.HAS_ANY_SECRET + " BOOLEAN, "
+                + KeyRingSummaryColumns.VERIFIED + " INTEGER, "
+                + KeyRingSummaryColumns.VALID_UNTIL + " INTEGER, "
+                + KeyRingSummaryColumns.VERSION + " INTEGER NOT NULL DEFAULT 0, "
+                + "FOREIGN KEY(" + KeyRingSummaryColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    private static final String CREATE_KEY_RING_SUMMARY_VALID_UNTIL_INDEX =
+            "CREATE INDEX IF NOT EXISTS keyring_summary_valid_until_index ON "
+                + Tables.KEY_RING_SUMMARY + "(" + KeyRingSummaryColumns.VALID_UNTIL + ")";
+
+    // a usable subkey of the keyring in the outer query, with the given capability
+    private static String usableSubkey(String alias, String capability) {
+        return " FROM " + Tables.KEYS + " AS " + alias
+                + " WHERE " + alias + "." + KeysColumns.MASTER_KEY_ID
+                    + " = k." + KeysColumns.MASTER_KEY_ID
+                + " AND " + alias + "." + KeysColumns.IS_REVOKED + " = 0"
+                + " AND " + alias + "." + capability + " = 1"
+                + " AND ( " + alias + "." + KeysColumns.EXPIRY + " IS NULL"
+                    + " OR " + alias + "." + KeysColumns.EXPIRY + " >= ? )";
+    }
+
+    // the current time is a parameter, so the statement stays the same
+    private static final String UPDATE_KEY_RING_SUMMARIES =
+            "INSERT OR REPLACE INTO " + Tables.KEY_RING_SUMMARY + " ("
+                + KeyRingSummaryColumns.MASTER_KEY_ID + ", "
+                + KeyRingSummaryColumns.HAS_ENCRYPT + ", "
+                + KeyRingSummaryColumns.HAS_SIGN + ", "
+                + KeyRingSummaryColumns.HAS_ANY_SECRET + ", "
+                + KeyRingSummaryColumns.VERIFIED + ", "
+                + KeyRingSummaryColumns.VALID_UNTIL + ", "
+                + KeyRingSummaryColumns.VERSION
+            + ") SELECT k." + KeysColumns.MASTER_KEY_ID + ", "
+                + "(SELECT kE." + KeysColumns.KEY_ID + usableSubkey("kE", KeysColumns.CAN_ENCRYPT)
+                    + " ORDER BY kE." + KeysColumns.RANK + " LIMIT 1), "
+                + "(SELECT kS." + KeysColumns.KEY_ID + usableSubkey("kS", KeysColumns.CAN_SIGN)
+                    + " ORDER BY kS." + KeysColumns.RANK + " LIMIT 1), "
+                + "EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SECRET + " AS s"
+                    + " WHERE s." + KeyRingsColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID
+                + "), "
+                + "(SELECT MAX(c." + CertsColumns.VERIFIED + ") FROM " + Tables.CERTS + " AS c"
+                    + " WHERE c." + CertsColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID
+                    + " AND c." + CertsColumns.VERIFIED + " = " + Certs.VERIFIED_SECRET
+                + "), "
+                // the first expiry of a currently usable subkey, after which the above may change
+                + "(SELECT MIN(kV." + KeysColumns.EXPIRY + ") FROM " + Tables.KEYS + " AS kV"
+                    + " WHERE kV." + KeysColumns.MASTER_KEY_ID + " = k." + KeysColumns.MASTER_KEY_ID
+                    + " AND kV." + KeysColumns.IS_REVOKED + " = 0"
+                    + " AND ( kV." + KeysColumns.CAN_ENCRYPT + " = 1"
+                        + " OR kV." + KeysColumns.CAN_SIGN + " = 1 )"
+                    + " AND kV." + KeysColumns.EXPIRY + " >= ?"
+                + "), "
+                // the summary is recomputed on every change, so this tells cached keyrings apart
+                + "COALESCE((SELECT sV." + KeyRingSummaryColumns.VERSION
+                    + " FROM " + Tables.KEY_RING_SUMMARY + " AS sV"
+                    + " WHERE sV." + KeyRingSummaryColumns.MASTER_KEY_ID
+                        + " = k." + KeysColumns.MASTER_KEY_ID
+                + "), 0) + 1"
+            + " FROM " + Tables.KEYS + " AS k"
+            + " WHERE k." + KeysColumns.RANK + " = 0";
+
+    /**
+     * Recomputes the summary of a keyring, or of all keyrings if masterKeyId is null. A
+     * keyring which isn't stored anymore has no summary, which is deleted on cascade.
+     *
+     * @param now current time in seconds, subkeys expiring before are not usable
+     */
+    static void updateKeyRingSummaries(SQLiteDatabase db, Long masterKeyId, long now) {
+        String time = Long.toString(now);
+        if (masterKeyId == null) {
+            db.execSQL(UPDATE_KEY_RING_SUMMARIES, new String[]{ time, time, time });
+        } else {
+            db.execSQL(UPDATE_KEY_RING_SUMMARIES + " AND k." + KeysColumns.MASTER_KEY_ID + " = ?",
+                    new String[]{ time, time, time, Long.toString(masterKeyId) });
+        }
+    }
+
+    /**
+     * Recomputes the summaries of all keyrings which have a subkey that expired since they
+     * were last computed.
+     */
+    static void updateExpiredKeyRingSummaries(SQLiteDatabase db, long now) {
+        String time = Long.toString(now);
+        db.execSQL(UPDATE_KEY_RING_SUMMARIES + " AND k." + KeysColumns.MASTER_KEY_ID + " IN ("
+                + " SELECT " + KeyRingSummaryColumns.MASTER_KEY_ID
+                + " FROM " + Tables.KEY_RING_SUMMARY
+                + " WHERE " + KeyRingSummaryColumns.VALID_UNTIL + " < ?"
+                + ")", new String[]{ time, time, time, time });
+    }
+
+    // full text index over all user ids, key ids and fingerprints, see KeyRingsSearch
+    private static final String CREATE_KEYRINGS_SEARCH =
+            "CREATE VIRTUAL TABLE " + Tables.KEY_RINGS_SEARCH + " USING fts3("
+                + KeyRingsSearchColumns.CONTENT + ", "
+                + "tokenize=simple"
+            + ")";
+
+    // virtual tables know no foreign keys, so this takes the place of ON DELETE CASCADE
+    private static final String CREATE_KEYRINGS_SEARCH_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS keyrings_search_delete AFTER DELETE ON "
+                + Tables.KEY_RINGS_PUBLIC + " BEGIN"
+                + " DELETE FROM " + Tables.KEY_RINGS_SEARCH
+                    + " WHERE docid = old." + KeyRingsColumns.MASTER_KEY_ID + ";"
+            + " END";
+
     private static final String CREATE_API_APPS =
             "CREATE TABLE IF NOT EXISTS " + Tables.API_APPS + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -188,6 +344,15 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_CERTS);
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ACCOUNTS);
+        db.execSQL(CREATE_KEYS_KEY_ID_INDEX);
+        db.execSQL(CREATE_USER_IDS_EMAIL_INDEX);
+        db.execSQL(CREATE_SIGNATURE_VERDICTS);
+        db.execSQL(CREATE_SIGNATURE_VERDICTS_INDEX);
+        db.execSQL(CREATE_SIGNATURE_VERDICTS_TRIGGER);
+        db.execSQL(CREATE_KEYRINGS_SEARCH);
+        db.execSQL(CREATE_KEYRINGS_SEARCH_TRIGGER);
+        db.execSQL(CREATE_KEY_RING_SUMMARY);
+        db.execSQL(CREATE_KEY_RING_SUMMARY_VALID_UNTIL_INDEX);
     }
 
     @Override
@@ -208,6 +373,113 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             } catch (Exception e) {
             }
         }
+        if (oldVersion <= 2) {
+            // add normalized email column and indices for find by subkey and find by email
+            db.execSQL("ALTER TABLE " + Tables.USER_IDS + " ADD COLUMN " + UserIdsColumns.EMAIL + " TEXT");
+            fillEmailColumn(db);
+            db.execSQL(CREATE_KEYS_KEY_ID_INDEX);
+            db.execSQL(CREATE_USER_IDS_EMAIL_INDEX);
+        }
+        if (oldVersion <= 3) {
+            // cache of signature verification results
+            db.execSQL(CREATE_SIGNATURE_VERDICTS);
+            db.execSQL(CREATE_SIGNATURE_VERDICTS_INDEX);
+        }
+        if (oldVersion <= 4) {
+            // full text index for searching the key list
+            db.execSQL(CREATE_KEYRINGS_SEARCH);
+            db.execSQL(CREATE_KEYRINGS_SEARCH_TRIGGER);
+            fillSearchTable(db);
+        }
+        if (oldVersion <= 5) {
+            // summaries of keyrings for the key lists
+            db.execSQL(CREATE_KEY_RING_SUMMARY);
+            db.execSQL(CREATE_KEY_RING_SUMMARY_VALID_UNTIL_INDEX);
+            updateKeyRingSummaries(db, null, new Date().getTime() / 1000);
+        }
+        if (oldVersion == 6) {
+            // version stamp of keyrings, the table was created with it for older versions
+            db.execSQL("ALTER TABLE " + Tables.KEY_RING_SUMMARY + " ADD COLUMN "
+                    + KeyRingSummaryColumns.VERSION + " INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion <= 7) {
+            // drop verdicts of keyrings deleted so far, and those of keyrings deleted later
+            db.execSQL("DELETE FROM " + Tables.SIGNATURE_VERDICTS
+                    + " WHERE " + SignatureVerdictsColumns.MASTER_KEY_ID + " NOT IN ("
+                    + " SELECT " + KeyRingsColumns.MASTER_KEY_ID
+                    + " FROM " + Tables.KEY_RINGS_PUBLIC + ")");
+            db.execSQL(CREATE_SIGNATURE_VERDICTS_TRIGGER);
+        }
+    }
+
+    /** Populates the email column of all existing user ids, see UserIds.extractEmail */
+    private static void fillEmailColumn(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.USER_IDS, new String[]{
+                UserIdsColumns.MASTER_KEY_ID, UserIdsColumns.RANK, UserIdsColumns.USER_ID
+        }, null, null, null, null, null);
+        try {
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                String email = UserIds.extractEmail(cursor.getString(2));
+                if (email == null) {
+                    continue;
+                }
+                values.put(UserIdsColumns.EMAIL, email);
+                db.update(Tables.USER_IDS, values,
+                        UserIdsColumns.MASTER_KEY_ID + " = ? AND " + UserIdsColumns.RANK + " = ?",
+                        new String[]{ cursor.getString(0), cursor.getString(1) });
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Indexes all existing keyrings for search, see KeyRingsSearch.buildContent */
+    private static void fillSearchTable(SQLiteDatabase db) {
+        HashMap<Long, ArrayList<String>> userIds = new HashMap<Long, ArrayList<String>>();
+        Cursor cursor = db.query(Tables.USER_IDS, new String[]{
+                UserIdsColumns.MASTER_KEY_ID, UserIdsColumns.USER_ID
+        }, null, null, null, null, UserIdsColumns.RANK + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                ArrayList<String> list = userIds.get(cursor.getLong(0));
+                if (list == null) {
+                    list = new ArrayList<String>();
+                    userIds.put(cursor.getLong(0), list);
+                }
+                list.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = db.query(Tables.KEYS, new String[]{
+                KeysColumns.MASTER_KEY_ID, KeysColumns.KEY_ID, KeysColumns.FINGERPRINT
+        }, null, null, null, null, KeysColumns.MASTER_KEY_ID + ", " + KeysColumns.RANK + " ASC");
+        try {
+            ContentValues values = new ContentValues();
+            ArrayList<Long> keyIds = new ArrayList<Long>();
+            ArrayList<byte[]> fingerprints = new ArrayList<byte[]>();
+            boolean more = cursor.moveToFirst();
+            while (more) {
+                long masterKeyId = cursor.getLong(0);
+                keyIds.clear();
+                fingerprints.clear();
+                do {
+                    keyIds.add(cursor.getLong(1));
+                    fingerprints.add(cursor.getBlob(2));
+                    more = cursor.moveToNext();
+                } while (more && cursor.getLong(0) == masterKeyId);
+
+                ArrayList<String> list = userIds.get(masterKeyId);
+                values.put("docid", masterKeyId);
+                values.put(KeyRingsSearchColumns.CONTENT, KeyRingsSearch.buildContent(
+                        list != null ? list : new ArrayList<String>(), keyIds, fingerprints));
+                db.insert(Tables.KEY_RINGS_SEARCH, null, values);
+            }
+        } finally {
+            cursor.close();
+        }
     }
 
     /** This method tries to import data from a provided database.
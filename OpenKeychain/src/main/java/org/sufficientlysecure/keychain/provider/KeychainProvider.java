@@ -19,7 +19,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -27,6 +30,10 @@ import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -35,14 +42,20 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearch;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.SignatureVerdicts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 public class KeychainProvider extends ContentProvider {
@@ -58,6 +71,7 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RING_SECRET = 204;
     private static final int KEY_RING_CERTS = 205;
     private static final int KEY_RING_CERTS_SPECIFIC = 206;
+    private static final int KEY_RING_SEARCH = 207;
 
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 303;
@@ -66,6 +80,9 @@ public class KeychainProvider extends ContentProvider {
 
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
+    private static final int KEY_RINGS_FIND_BY_TEXT = 402;
+
+    private static final int SIGNATURE_VERDICTS = 500;
 
     protected UriMatcher mUriMatcher;
 
@@ -101,6 +118,7 @@ public class KeychainProvider extends ContentProvider {
          *
          * key_rings/find/email/_
          * key_rings/find/subkey/_
+         * key_rings/find/text/_
          *
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -109,6 +127,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SUBKEY + "/*",
                 KEY_RINGS_FIND_BY_SUBKEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_TEXT + "/*",
+                KEY_RINGS_FIND_BY_TEXT);
 
         /**
          * list key_ring specifics
@@ -121,6 +142,7 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/_/secret
          * key_rings/_/certs
          * key_rings/_/certs/_/_
+         * key_rings/_/search
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
@@ -144,6 +166,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
                         + KeychainContract.PATH_CERTS + "/*/*",
                 KEY_RING_CERTS_SPECIFIC);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/*/"
+                        + KeychainContract.PATH_SEARCH,
+                KEY_RING_SEARCH);
 
         /**
          * API apps
@@ -164,17 +189,66 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_API_APPS + "/*/"
                 + KeychainContract.PATH_ACCOUNTS + "/*", API_ACCOUNTS_BY_ACCOUNT_NAME);
 
+        /**
+         * signature verification results
+         *
+         * <pre>
+         * signature_verdicts
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_SIGNATURE_VERDICTS, SIGNATURE_VERDICTS);
+
         return matcher;
     }
 
     private KeychainDatabase mKeychainDatabase;
 
+    /** Minimum time between two rounds of change notifications, in milliseconds */
+    private static final long NOTIFY_INTERVAL = 500;
+    /** Above this many changed keyrings, a single notification for all keyrings is sent */
+    private static final int MAX_SCOPED_NOTIFICATIONS = 8;
+
+    // notifications of the batch running on the current thread, null outside of batches
+    private final ThreadLocal<LinkedHashSet<Uri>> mBatchNotifications =
+            new ThreadLocal<LinkedHashSet<Uri>>();
+    // notifications waiting for the next round, guarded by itself
+    private final LinkedHashSet<Uri> mPendingNotifications = new LinkedHashSet<Uri>();
+    private long mLastNotifyTime = 0;
+    private boolean mNotifyScheduled = false;
+    private Handler mNotifyHandler;
+
+    private static final long EXPIRY_UNKNOWN = -1;
+    // the earliest valid_until of all keyring summaries, guarded by mSummaryLock
+    private final Object mSummaryLock = new Object();
+    private long mNextSummaryExpiry = EXPIRY_UNKNOWN;
+    private boolean mSummarySweepScheduled = false;
+    // expired summaries are recomputed here, so queries never wait for the write lock
+    private Handler mSummaryHandler;
+
+    private final Runnable mSummarySweepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateExpiredKeyRingSummaries();
+        }
+    };
+
+    private final Runnable mNotifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatchNotifications();
+        }
+    };
+
     /**
      * {@inheritDoc}
      */
     @Override
     public boolean onCreate() {
         mUriMatcher = buildUriMatcher();
+        mNotifyHandler = new Handler(Looper.getMainLooper());
+        HandlerThread summaryThread = new HandlerThread("keyRingSummaryThread");
+        summaryThread.start();
+        mSummaryHandler = new Handler(summaryThread.getLooper());
         return true;
     }
 
@@ -215,6 +289,9 @@ public class KeychainProvider extends ContentProvider {
             case API_ACCOUNTS_BY_ACCOUNT_NAME:
                 return ApiAccounts.CONTENT_ITEM_TYPE;
 
+            case SIGNATURE_VERDICTS:
+                return SignatureVerdicts.CONTENT_TYPE;
+
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -235,11 +312,23 @@ public class KeychainProvider extends ContentProvider {
         // all query() parameters, for good measure
         String groupBy = null, having = null;
 
+        // maximum number of rows, used for paging
+        String limit = uri.getQueryParameter(KeychainContract.PARAM_LIMIT);
+        if (limit != null) {
+            try {
+                limit = Integer.toString(Integer.parseInt(limit));
+            } catch (NumberFormatException e) {
+                Log.e(Constants.TAG, "Malformed limit parameter!", e);
+                limit = null;
+            }
+        }
+
         switch (match) {
             case KEY_RING_UNIFIED:
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
-            case KEY_RINGS_FIND_BY_SUBKEY: {
+            case KEY_RINGS_FIND_BY_SUBKEY:
+            case KEY_RINGS_FIND_BY_TEXT: {
                 HashMap<String, String> projectionMap = new HashMap<String, String>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -254,7 +343,7 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRings.ALGORITHM, Tables.KEYS + "." + Keys.ALGORITHM);
                 projectionMap.put(KeyRings.FINGERPRINT, Tables.KEYS + "." + Keys.FINGERPRINT);
                 projectionMap.put(KeyRings.USER_ID, UserIds.USER_ID);
-                projectionMap.put(KeyRings.VERIFIED, KeyRings.VERIFIED);
+                projectionMap.put(KeyRings.VERIFIED, Tables.KEY_RING_SUMMARY + "." + KeyRings.VERIFIED);
                 projectionMap.put(KeyRings.PUBKEY_DATA,
                         Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.KEY_RING_DATA
                                 + " AS " + KeyRings.PUBKEY_DATA);
@@ -262,15 +351,15 @@ public class KeychainProvider extends ContentProvider {
                         Tables.KEY_RINGS_SECRET + "." + KeyRingData.KEY_RING_DATA
                                 + " AS " + KeyRings.PRIVKEY_DATA);
                 projectionMap.put(KeyRings.HAS_SECRET, Tables.KEYS + "." + KeyRings.HAS_SECRET);
+                // these are precomputed, see KeychainDatabase.updateKeyRingSummaries
                 projectionMap.put(KeyRings.HAS_ANY_SECRET,
-                    "(EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SECRET
-                        + " WHERE " + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
-                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                        + ")) AS " + KeyRings.HAS_ANY_SECRET);
+                        Tables.KEY_RING_SUMMARY + "." + KeyRings.HAS_ANY_SECRET);
                 projectionMap.put(KeyRings.HAS_ENCRYPT,
-                        "kE." + Keys.KEY_ID + " AS " + KeyRings.HAS_ENCRYPT);
+                        Tables.KEY_RING_SUMMARY + "." + KeyRings.HAS_ENCRYPT);
                 projectionMap.put(KeyRings.HAS_SIGN,
-                        "kS." + Keys.KEY_ID + " AS " + KeyRings.HAS_SIGN);
+                        Tables.KEY_RING_SUMMARY + "." + KeyRings.HAS_SIGN);
+                projectionMap.put(KeyRings.VERSION,
+                        Tables.KEY_RING_SUMMARY + "." + KeyRings.VERSION);
                 qb.setProjectionMap(projectionMap);
 
                 // Need this as list so we can search in it
@@ -283,12 +372,10 @@ public class KeychainProvider extends ContentProvider {
                                 + " = "
                                     + Tables.USER_IDS + "." + UserIds.MASTER_KEY_ID
                             + " AND " + Tables.USER_IDS + "." + UserIds.RANK + " = 0"
-                        + ") LEFT JOIN " + Tables.CERTS + " ON ("
+                        + ") LEFT JOIN " + Tables.KEY_RING_SUMMARY + " ON ("
                             + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
-                            + Tables.CERTS + "." + KeyRings.MASTER_KEY_ID
-                            + " AND " + Tables.CERTS + "." + Certs.VERIFIED
-                                + " = " + Certs.VERIFIED_SECRET
+                            + Tables.KEY_RING_SUMMARY + "." + KeyRings.MASTER_KEY_ID
                         + ")"
                         // fairly expensive joins following, only do when requested
                         + (plist.contains(KeyRings.PUBKEY_DATA) ?
@@ -303,28 +390,11 @@ public class KeychainProvider extends ContentProvider {
                                 + " = "
                                     + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.HAS_ENCRYPT) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kE ON ("
-                                +"kE." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kE." + Keys.IS_REVOKED + " = 0"
-                                + " AND kE." + Keys.CAN_ENCRYPT + " = 1"
-                                + " AND ( kE." + Keys.EXPIRY + " IS NULL OR kE." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
-                        + (plist.contains(KeyRings.HAS_SIGN) ?
-                            " LEFT JOIN " + Tables.KEYS + " AS kS ON ("
-                                +"kS." + Keys.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                + " AND kS." + Keys.IS_REVOKED + " = 0"
-                                + " AND kS." + Keys.CAN_SIGN + " = 1"
-                                + " AND ( kS." + Keys.EXPIRY + " IS NULL OR kS." + Keys.EXPIRY
-                                    + " >= " + new Date().getTime() / 1000 + " )"
-                            + ")" : "")
                     );
                 qb.appendWhere(Tables.KEYS + "." + Keys.RANK + " = 0");
-                // in case there are multiple verifying certificates
-                groupBy = Tables.KEYS + "." + Keys.MASTER_KEY_ID;
+
+                // summaries of keyrings with subkeys which expired since are outdated
+                checkKeyRingSummaryExpiry();
 
                 switch(match) {
                     case KEY_RING_UNIFIED: {
@@ -335,11 +405,11 @@ public class KeychainProvider extends ContentProvider {
                     case KEY_RINGS_FIND_BY_SUBKEY: {
                         try {
                             String subkey = Long.valueOf(uri.getLastPathSegment()).toString();
-                            qb.appendWhere(" AND EXISTS ("
-                                    + " SELECT 1 FROM " + Tables.KEYS + " AS tmp"
-                                    + " WHERE tmp." + UserIds.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND tmp." + Keys.KEY_ID + " = " + subkey + ""
+                            // uncorrelated subquery, resolved once through keys_key_id_index
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                    + " SELECT tmp." + Keys.MASTER_KEY_ID
+                                    + " FROM " + Tables.KEYS + " AS tmp"
+                                    + " WHERE tmp." + Keys.KEY_ID + " = " + subkey
                                     + ")");
                         } catch(NumberFormatException e) {
                             Log.e(Constants.TAG, "Malformed find by subkey query!", e);
@@ -349,27 +419,24 @@ public class KeychainProvider extends ContentProvider {
                     }
                     case KEY_RINGS_FIND_BY_EMAIL: {
                         String chunks[] = uri.getLastPathSegment().split(" *, *");
-                        boolean gotCondition = false;
-                        String emailWhere = "";
+                        String emailIn = "";
                         // JAVA ♥
-                        for (int i = 0; i < chunks.length; ++i) {
-                            if (chunks[i].length() == 0) {
+                        for (String chunk : chunks) {
+                            if (chunk.length() == 0) {
                                 continue;
                             }
-                            if (i != 0) {
-                                emailWhere += " OR ";
+                            if (emailIn.length() != 0) {
+                                emailIn += ", ";
                             }
-                            emailWhere += "tmp." + UserIds.USER_ID + " LIKE ";
-                            // match '*<email>', so it has to be at the *end* of the user id
-                            emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
-                            gotCondition = true;
+                            // the email column is normalized, see UserIds.extractEmail
+                            emailIn += DatabaseUtils.sqlEscapeString(UserIds.normalizeEmail(chunk));
                         }
-                        if(gotCondition) {
-                            qb.appendWhere(" AND EXISTS ("
-                                + " SELECT 1 FROM " + Tables.USER_IDS + " AS tmp"
-                                    + " WHERE tmp." + UserIds.MASTER_KEY_ID
-                                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                        + " AND (" + emailWhere + ")"
+                        if (emailIn.length() != 0) {
+                            // uncorrelated subquery, resolved once through user_ids_email_index
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                + " SELECT tmp." + UserIds.MASTER_KEY_ID
+                                    + " FROM " + Tables.USER_IDS + " AS tmp"
+                                    + " WHERE tmp." + UserIds.EMAIL + " IN (" + emailIn + ")"
                                 + ")");
                         } else {
                             // TODO better way to do this?
@@ -378,6 +445,21 @@ public class KeychainProvider extends ContentProvider {
                         }
                         break;
                     }
+                    case KEY_RINGS_FIND_BY_TEXT: {
+                        String matchQuery = KeyRingsSearch.buildMatchQuery(uri.getLastPathSegment());
+                        if (matchQuery != null) {
+                            // uncorrelated subquery, resolved once through the full text index
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                    + " SELECT docid FROM " + Tables.KEY_RINGS_SEARCH
+                                    + " WHERE " + Tables.KEY_RINGS_SEARCH + " MATCH ");
+                            qb.appendWhereEscapeString(matchQuery);
+                            qb.appendWhere(")");
+                        } else {
+                            // nothing to search for, find nothing
+                            qb.appendWhere(" AND 0");
+                        }
+                        break;
+                    }
                 }
 
                 if (TextUtils.isEmpty(sortOrder)) {
@@ -531,6 +613,10 @@ public class KeychainProvider extends ContentProvider {
             case API_APPS:
                 qb.setTables(Tables.API_APPS);
 
+                break;
+            case SIGNATURE_VERDICTS:
+                qb.setTables(Tables.SIGNATURE_VERDICTS);
+
                 break;
             case API_APPS_BY_PACKAGE_NAME:
                 qb.setTables(Tables.API_APPS);
@@ -567,7 +653,8 @@ public class KeychainProvider extends ContentProvider {
         }
 
         SQLiteDatabase db = getDb().getReadableDatabase();
-        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy);
+        Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy,
+                limit);
         if (cursor != null) {
             // Tell the cursor what uri to watch, so it knows when its source data changes
             cursor.setNotificationUri(getContext().getContentResolver(), uri);
@@ -577,7 +664,7 @@ public class KeychainProvider extends ContentProvider {
             Log.d(Constants.TAG,
                     "Query: "
                             + qb.buildQuery(projection, selection, selectionArgs, null, null,
-                            orderBy, null));
+                            orderBy, limit));
             Log.d(Constants.TAG, "Cursor: " + DatabaseUtils.dumpCursorToString(cursor));
         }
 
@@ -626,6 +713,15 @@ public class KeychainProvider extends ContentProvider {
                     keyId = values.getAsLong(Certs.MASTER_KEY_ID);
                     break;
 
+                case KEY_RING_SEARCH: {
+                    // there is only one row per keyring, which is replaced
+                    keyId = Long.parseLong(uri.getPathSegments().get(1));
+                    db.delete(Tables.KEY_RINGS_SEARCH, "docid = " + keyId, null);
+                    values.put("docid", keyId);
+                    db.insertOrThrow(Tables.KEY_RINGS_SEARCH, null, values);
+                    break;
+                }
+
                 case API_APPS:
                     db.insertOrThrow(Tables.API_APPS, null, values);
                     break;
@@ -639,6 +735,10 @@ public class KeychainProvider extends ContentProvider {
                     db.insertOrThrow(Tables.API_ACCOUNTS, null, values);
                     break;
 
+                case SIGNATURE_VERDICTS:
+                    db.replaceOrThrow(Tables.SIGNATURE_VERDICTS, null, values);
+                    break;
+
                 default:
                     throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
@@ -649,7 +749,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
@@ -692,6 +792,26 @@ public class KeychainProvider extends ContentProvider {
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
+            case KEY_RING_KEYS:
+            case KEY_RING_USER_IDS:
+            case KEY_RING_CERTS: {
+                // make sure we get a long value here
+                Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                String selection = KeyRings.MASTER_KEY_ID + " = " + Long.toString(mkid);
+                if (!TextUtils.isEmpty(additionalSelection)) {
+                    selection += " AND (" + additionalSelection + ")";
+                }
+                String table = match == KEY_RING_KEYS ? Tables.KEYS
+                        : match == KEY_RING_USER_IDS ? Tables.USER_IDS : Tables.CERTS;
+                // certs of deleted userIds are deleted by ON DELETE CASCADE
+                count = db.delete(table, selection, selectionArgs);
+                uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
+                break;
+            }
+
+            case SIGNATURE_VERDICTS:
+                count = db.delete(Tables.SIGNATURE_VERDICTS, additionalSelection, selectionArgs);
+                break;
 
             case API_APPS_BY_PACKAGE_NAME:
                 count = db.delete(Tables.API_APPS, buildDefaultApiAppsSelection(uri, additionalSelection),
@@ -706,11 +826,216 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
 
+    /**
+     * Applies all operations within a single transaction, so a batch is written either
+     * completely or not at all, and much faster than with one implicit transaction each.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+        // change notifications are collected, and only sent once the batch is committed
+        LinkedHashSet<Uri> notifications = new LinkedHashSet<Uri>();
+        mBatchNotifications.set(notifications);
+        ContentProviderResult[] results;
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            // summaries of changed keyrings are part of the transaction
+            updateKeyRingSummaries(db, notifications);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchNotifications.remove();
+        }
+        scheduleNotifications(notifications);
+        return results;
+    }
+
+    /**
+     * Notifies observers of a change, or defers the notification until the end of the batch
+     * running on this thread.
+     */
+    private void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> batch = mBatchNotifications.get();
+        if (batch != null) {
+            batch.add(uri);
+        } else {
+            Collection<Uri> uris = Collections.singleton(uri);
+            updateKeyRingSummaries(getDb().getWritableDatabase(), uris);
+            scheduleNotifications(uris);
+        }
+    }
+
+    /** Recomputes the summaries of all keyrings notified on the given uris. */
+    private void updateKeyRingSummaries(SQLiteDatabase db, Collection<Uri> uris) {
+        long now = new Date().getTime() / 1000;
+        boolean updated = false;
+        for (Uri uri : uris) {
+            if (!isKeyRingUri(uri) || uri.getPathSegments().size() < 2) {
+                continue;
+            }
+            try {
+                long masterKeyId = Long.parseLong(uri.getPathSegments().get(1));
+                KeychainDatabase.updateKeyRingSummaries(db, masterKeyId, now);
+                updated = true;
+            } catch (NumberFormatException e) {
+                // not a specific keyring
+            }
+        }
+        if (updated) {
+            // the next expiry may be earlier now, the sweep runs after this write
+            synchronized (mSummaryLock) {
+                mNextSummaryExpiry = EXPIRY_UNKNOWN;
+                mSummarySweepScheduled = true;
+            }
+            mSummaryHandler.post(mSummarySweepRunnable);
+        }
+    }
+
+    /**
+     * Schedules the sweep of expired keyring summaries if the next expiry has passed. Called
+     * on the read path, so it only ever posts to mSummaryHandler. Queries running before the
+     * sweep is done may still see the outdated summaries, observers are notified after.
+     */
+    private void checkKeyRingSummaryExpiry() {
+        long now = new Date().getTime() / 1000;
+        synchronized (mSummaryLock) {
+            if (mSummarySweepScheduled
+                    || (mNextSummaryExpiry != EXPIRY_UNKNOWN && now <= mNextSummaryExpiry)) {
+                return;
+            }
+            mSummarySweepScheduled = true;
+        }
+        mSummaryHandler.post(mSummarySweepRunnable);
+    }
+
+    /**
+     * Recomputes the summaries of keyrings with a subkey which expired since they were last
+     * computed, on the thread of mSummaryHandler. Afterwards the sweep is scheduled again for
+     * the next expiry. Handler time stops while the device sleeps, so queries still check
+     * for a missed expiry, see checkKeyRingSummaryExpiry. An alarm isn't worth waking the
+     * device for, the summaries only matter to the next query.
+     */
+    private void updateExpiredKeyRingSummaries() {
+        synchronized (mSummaryLock) {
+            mSummarySweepScheduled = false;
+        }
+        mSummaryHandler.removeCallbacks(mSummarySweepRunnable);
+
+        long now = new Date().getTime() / 1000;
+        String time = Long.toString(now);
+        SQLiteDatabase db = getDb().getWritableDatabase();
+        boolean expired = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + Tables.KEY_RING_SUMMARY + " WHERE "
+                + KeychainContract.KeyRingSummaryColumns.VALID_UNTIL + " < ?",
+                new String[]{ time }) > 0;
+        if (expired) {
+            KeychainDatabase.updateExpiredKeyRingSummaries(db, now);
+        }
+
+        long nextExpiry;
+        Cursor cursor = db.rawQuery("SELECT MIN(" + KeychainContract.KeyRingSummaryColumns.VALID_UNTIL + ") FROM "
+                + Tables.KEY_RING_SUMMARY, null);
+        try {
+            nextExpiry = cursor.moveToFirst() && !cursor.isNull(0)
+                    ? cursor.getLong(0) : Long.MAX_VALUE;
+        } finally {
+            cursor.close();
+        }
+        synchronized (mSummaryLock) {
+            // a write in the meantime scheduled another sweep, which sets it
+            if (!mSummarySweepScheduled) {
+                mNextSummaryExpiry = nextExpiry;
+            }
+        }
+        if (nextExpiry != Long.MAX_VALUE) {
+            // valid_until is the last valid second
+            long delay = (nextExpiry + 1 - now) * 1000;
+            mSummaryHandler.postDelayed(mSummarySweepRunnable, Math.max(delay, 0));
+        }
+
+        if (expired) {
+            Log.d(Constants.TAG, "Recomputed expired keyring summaries");
+            scheduleNotifications(Collections.singletonList(KeyRings.CONTENT_URI));
+        }
+    }
+
+    /**
+     * Sends the given notifications, together with all pending ones. To keep observers from
+     * requerying over and over during bulk writes, notifications are sent at most once per
+     * NOTIFY_INTERVAL, later ones are collected until then.
+     */
+    private void scheduleNotifications(Collection<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        // the cache of this process is invalidated right away, other processes are notified
+        KeyRingCache cache = KeyRingCache.getInstance(getContext());
+        for (Uri uri : uris) {
+            if (isKeyRingUri(uri)) {
+                cache.invalidate(uri);
+            }
+        }
+
+        synchronized (mPendingNotifications) {
+            mPendingNotifications.addAll(uris);
+            if (mNotifyScheduled) {
+                return;
+            }
+            long delay = mLastNotifyTime + NOTIFY_INTERVAL - SystemClock.uptimeMillis();
+            if (delay > 0) {
+                mNotifyScheduled = true;
+                mNotifyHandler.postDelayed(mNotifyRunnable, delay);
+                return;
+            }
+        }
+        dispatchNotifications();
+    }
+
+    private static boolean isKeyRingUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return KeyRings.CONTENT_URI.getAuthority().equals(uri.getAuthority())
+                && !segments.isEmpty() && KeychainContract.BASE_KEY_RINGS.equals(segments.get(0));
+    }
+
+    /**
+     * Sends all pending notifications. Each changed keyring is notified on its own uri, so
+     * observers of a single keyring only refresh if it changed. Many of them are coalesced
+     * into a single notification on KeyRings.CONTENT_URI, which reaches all observers anyways.
+     */
+    private void dispatchNotifications() {
+        ArrayList<Uri> uris;
+        synchronized (mPendingNotifications) {
+            uris = new ArrayList<Uri>(mPendingNotifications);
+            mPendingNotifications.clear();
+            mNotifyScheduled = false;
+            mLastNotifyTime = SystemClock.uptimeMillis();
+        }
+
+        ArrayList<Uri> keyRingUris = new ArrayList<Uri>();
+        for (Uri uri : uris) {
+            if (isKeyRingUri(uri)) {
+                keyRingUris.add(uri);
+            } else {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+        }
+        if (keyRingUris.size() > MAX_SCOPED_NOTIFICATIONS) {
+            Log.d(Constants.TAG, "Coalescing notifications for " + keyRingUris.size() + " keyrings");
+            getContext().getContentResolver().notifyChange(KeyRings.CONTENT_URI, null);
+        } else {
+            for (Uri uri : keyRingUris) {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -738,6 +1063,21 @@ public class KeychainProvider extends ContentProvider {
                     count = db.update(Tables.KEYS, values, actualSelection, selectionArgs);
                     break;
                 }
+                case KEY_RING_PUBLIC: {
+                    if (values.size() != 1 || !values.containsKey(KeyRingData.KEY_RING_DATA)) {
+                        throw new UnsupportedOperationException(
+                                "Only key_ring_data column may be updated!");
+                    }
+                    // make sure we get a long value here
+                    Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                    String actualSelection = KeyRings.MASTER_KEY_ID + " = " + Long.toString(mkid);
+                    if (!TextUtils.isEmpty(selection)) {
+                        actualSelection += " AND (" + selection + ")";
+                    }
+                    count = db.update(Tables.KEY_RINGS_PUBLIC, values, actualSelection, selectionArgs);
+                    uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
+                    break;
+                }
                 case API_APPS_BY_PACKAGE_NAME:
                     count = db.update(Tables.API_APPS, values,
                             buildDefaultApiAppsSelection(uri, selection), selectionArgs);
@@ -751,7 +1091,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on update! Entry already existing?", e);
@@ -26,14 +26,19 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.support.v4.util.LongSparseArray;
+import android.text.TextUtils;
 
+import org.spongycastle.util.encoders.Hex;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
+import org.sufficientlysecure.keychain.pgp.KeyRingLookup;
 import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
+import org.sufficientlysecure.keychain.pgp.WrappedPublicKey;
 import org.sufficientlysecure.keychain.pgp.WrappedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.WrappedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
+import org.sufficientlysecure.keychain.pgp.PrivateKeyCache;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.WrappedSignature;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
@@ -41,8 +46,11 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearch;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.SignatureVerdicts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.remote.AccountSettings;
 import org.sufficientlysecure.keychain.remote.AppSettings;
 import org.sufficientlysecure.keychain.util.IterableIterator;
@@ -50,7 +58,11 @@ import org.sufficientlysecure.keychain.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -58,7 +70,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-public class ProviderHelper {
+public class ProviderHelper implements KeyRingLookup {
     private Context mContext;
     private ContentResolver mContentResolver;
 
@@ -167,6 +179,10 @@ public class ProviderHelper {
         return result;
     }
 
+    ContentResolver getContentResolver() {
+        return mContentResolver;
+    }
+
     public CachedPublicKeyRing getCachedPublicKeyRing(Uri queryUri) {
         return new CachedPublicKeyRing(this, queryUri);
     }
@@ -187,27 +203,223 @@ public class ProviderHelper {
         return (WrappedSecretKeyRing) getWrappedKeyRing(queryUri, true);
     }
 
+    @Override
+    public WrappedPublicKeyRing getPublicKeyRing(long masterKeyId)
+            throws KeyRingLookup.NotFoundException {
+        return (WrappedPublicKeyRing) lookupKeyRing(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId), false);
+    }
+
+    @Override
+    public WrappedPublicKeyRing getPublicKeyRingBySubkey(long subKeyId)
+            throws KeyRingLookup.NotFoundException {
+        return (WrappedPublicKeyRing) lookupKeyRing(
+                KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId), false);
+    }
+
+    @Override
+    public WrappedSecretKeyRing getSecretKeyRing(long masterKeyId)
+            throws KeyRingLookup.NotFoundException {
+        return (WrappedSecretKeyRing) lookupKeyRing(
+                KeyRings.buildUnifiedKeyRingUri(masterKeyId), true);
+    }
+
+    @Override
+    public WrappedSecretKeyRing getSecretKeyRingBySubkey(long subKeyId)
+            throws KeyRingLookup.NotFoundException {
+        return (WrappedSecretKeyRing) lookupKeyRing(
+                KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId), true);
+    }
+
+    /** Metadata of a keyring, as needed to pick its encryption subkey. */
+    private static class EncryptionRingInfo {
+        final long mMasterKeyId;
+        final boolean mHasAnySecret;
+        final int mVerified;
+        final long mEncryptId;
+        final long mVersion;
+        WrappedPublicKeyRing mRing;
+
+        EncryptionRingInfo(long masterKeyId, boolean hasAnySecret, int verified, long encryptId,
+                           long version) {
+            mMasterKeyId = masterKeyId;
+            mHasAnySecret = hasAnySecret;
+            mVerified = verified;
+            mEncryptId = encryptId;
+            mVersion = version;
+        }
+    }
+
+    @Override
+    public ArrayList<WrappedPublicKey> getEncryptionSubKeys(long[] masterKeyIds) {
+        ArrayList<WrappedPublicKey> result = new ArrayList<WrappedPublicKey>();
+        if (masterKeyIds == null || masterKeyIds.length == 0) {
+            return result;
+        }
+
+        // first, the metadata of all keyrings in a single query. this includes the id of the
+        // encryption subkey, so it doesn't have to be searched for in the parsed keyring.
+        HashMap<Long, EncryptionRingInfo> infos = new HashMap<Long, EncryptionRingInfo>();
+        Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(),
+                new String[]{
+                        KeyRings.MASTER_KEY_ID, KeyRings.HAS_ANY_SECRET,
+                        KeyRings.VERIFIED, KeyRings.HAS_ENCRYPT, KeyRings.VERSION
+                }, Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN " + buildIdList(masterKeyIds),
+                null, null
+        );
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                long masterKeyId = cursor.getLong(0);
+                if (cursor.isNull(3)) {
+                    Log.e(Constants.TAG, "no encryption key available for "
+                            + PgpKeyHelper.convertKeyIdToHex(masterKeyId));
+                    continue;
+                }
+                infos.put(masterKeyId, new EncryptionRingInfo(masterKeyId,
+                        cursor.getInt(1) > 0, cursor.getInt(2), cursor.getLong(3),
+                        cursor.getLong(4)));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        // take what we can from the cache, and fetch the ring data of the rest in one query
+        KeyRingCache cache = KeyRingCache.getInstance(mContext);
+        int generation = cache.getGeneration();
+        ArrayList<Long> missing = new ArrayList<Long>();
+        for (EncryptionRingInfo info : infos.values()) {
+            info.mRing = (WrappedPublicKeyRing) cache.get(
+                    info.mMasterKeyId, false, info.mHasAnySecret, info.mVerified, info.mVersion);
+            if (info.mRing == null) {
+                missing.add(info.mMasterKeyId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            long[] missingIds = new long[missing.size()];
+            for (int i = 0; i < missingIds.length; i++) {
+                missingIds[i] = missing.get(i);
+            }
+            cursor = mContentResolver.query(KeyRingData.buildPublicKeyRingUri(),
+                    new String[]{ KeyRingData.MASTER_KEY_ID, KeyRingData.KEY_RING_DATA },
+                    KeyRingData.MASTER_KEY_ID + " IN " + buildIdList(missingIds), null, null);
+            try {
+                while (cursor != null && cursor.moveToNext()) {
+                    EncryptionRingInfo info = infos.get(cursor.getLong(0));
+                    if (info == null || cursor.isNull(1)) {
+                        continue;
+                    }
+                    byte[] blob = cursor.getBlob(1);
+                    info.mRing = new WrappedPublicKeyRing(blob, info.mHasAnySecret, info.mVerified);
+                    cache.put(generation, info.mMasterKeyId, false, info.mRing, blob.length,
+                            info.mHasAnySecret, info.mVerified, info.mVersion);
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        // keep the order of the requested keys, dropping duplicates
+        HashSet<Long> added = new HashSet<Long>();
+        for (long masterKeyId : masterKeyIds) {
+            EncryptionRingInfo info = infos.get(masterKeyId);
+            if (info == null || info.mRing == null) {
+                Log.e(Constants.TAG, "key not found: "
+                        + PgpKeyHelper.convertKeyIdToHex(masterKeyId));
+                continue;
+            }
+            if (!info.mRing.hasSubkey(info.mEncryptId)) {
+                // the keyring changed between the two queries, don't encrypt to a stale key
+                Log.e(Constants.TAG, "encryption key not in keyring: "
+                        + PgpKeyHelper.convertKeyIdToHex(masterKeyId));
+                continue;
+            }
+            if (added.add(masterKeyId)) {
+                result.add(info.mRing.getSubkey(info.mEncryptId));
+            }
+        }
+        return result;
+    }
+
+    private static String buildIdList(long[] ids) {
+        StringBuilder builder = new StringBuilder("(");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                builder.append(",");
+            }
+            builder.append(ids[i]);
+        }
+        return builder.append(")").toString();
+    }
+
+    private KeyRing lookupKeyRing(Uri queryUri, boolean secret)
+            throws KeyRingLookup.NotFoundException {
+        try {
+            return getWrappedKeyRing(queryUri, secret);
+        } catch (NotFoundException e) {
+            throw new KeyRingLookup.NotFoundException(e.getMessage());
+        }
+    }
+
     private KeyRing getWrappedKeyRing(Uri queryUri, boolean secret) throws NotFoundException {
+        // first, only query the metadata to look up the keyring in the cache
         Cursor cursor = mContentResolver.query(queryUri,
                 new String[]{
+                        KeyRings.MASTER_KEY_ID,
                         // we pick from cache only information that is not easily available from keyrings
-                        KeyRings.HAS_ANY_SECRET, KeyRings.VERIFIED,
-                        // and of course, ring data
-                        secret ? KeyRings.PRIVKEY_DATA : KeyRings.PUBKEY_DATA
+                        KeyRings.HAS_ANY_SECRET, KeyRings.VERIFIED, KeyRings.VERSION
                 }, null, null, null
         );
+        long masterKeyId;
+        boolean hasAnySecret;
+        int verified;
+        long version;
         try {
             if (cursor != null && cursor.moveToFirst()) {
+                masterKeyId = cursor.getLong(0);
+                hasAnySecret = cursor.getInt(1) > 0;
+                verified = cursor.getInt(2);
+                version = cursor.getLong(3);
+            } else {
+                throw new NotFoundException("Key not found!");
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if(secret &! hasAnySecret) {
+            throw new NotFoundException("Secret key not available!");
+        }
 
-                boolean hasAnySecret = cursor.getInt(0) > 0;
-                int verified = cursor.getInt(1);
-                byte[] blob = cursor.getBlob(2);
-                if(secret &! hasAnySecret) {
-                    throw new NotFoundException("Secret key not available!");
-                }
-                return secret
-                        ? new WrappedSecretKeyRing(blob, hasAnySecret, verified)
-                        : new WrappedPublicKeyRing(blob, hasAnySecret, verified);
+        KeyRingCache cache = KeyRingCache.getInstance(mContext);
+        KeyRing ring = cache.get(masterKeyId, secret, hasAnySecret, verified, version);
+        if (ring != null) {
+            return ring;
+        }
+
+        // not cached, fetch the ring data and parse it
+        int generation = cache.getGeneration();
+        byte[] blob = getKeyRingBlob(masterKeyId, secret);
+        ring = secret
+                ? new WrappedSecretKeyRing(blob, hasAnySecret, verified)
+                : new WrappedPublicKeyRing(blob, hasAnySecret, verified);
+        cache.put(generation, masterKeyId, secret, ring, blob.length, hasAnySecret, verified,
+                version);
+        return ring;
+    }
+
+    private byte[] getKeyRingBlob(long masterKeyId, boolean secret) throws NotFoundException {
+        Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingUri(masterKeyId),
+                new String[]{ secret ? KeyRings.PRIVKEY_DATA : KeyRings.PUBKEY_DATA },
+                null, null, null
+        );
+        try {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getBlob(0);
             } else {
                 throw new NotFoundException("Key not found!");
             }
@@ -218,11 +430,58 @@ public class ProviderHelper {
         }
     }
 
+    /**
+     * Returns the public master keys of all available secret keyrings. Certificates issued by
+     * these keys are verified and marked as trusted when saving public keyrings.
+     */
+    public LongSparseArray<UncachedPublicKey> getTrustedMasterKeys() {
+        return getUncachedMasterKeys(KeyRingData.buildSecretKeyRingUri());
+    }
+
+    /**
+     * Returns the master key ids of all keyrings in the database.
+     */
+    public HashSet<Long> getMasterKeyIds() {
+        Cursor cursor = mContentResolver.query(KeyRingData.buildPublicKeyRingUri(),
+                new String[]{ KeyRingData.MASTER_KEY_ID }, null, null, null);
+
+        HashSet<Long> result = new HashSet<Long>();
+        try {
+            if (cursor != null && cursor.moveToFirst()) do {
+                result.add(cursor.getLong(0));
+            } while (cursor.moveToNext());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return result;
+    }
+
     /**
      * Saves PGPPublicKeyRing with its keys and userIds in DB
      */
-    @SuppressWarnings("unchecked")
     public void savePublicKeyRing(UncachedKeyRing keyRing) throws IOException {
+        ArrayList<ContentProviderOperation> operations =
+                buildSavePublicKeyRingOperations(keyRing, getTrustedMasterKeys());
+        applyBatch(operations);
+    }
+
+    /**
+     * Builds the operations to save a PGPPublicKeyRing with its keys and userIds in DB. This
+     * includes verification of all self certificates and of all certificates issued by one of
+     * the given trusted keys, and is by far the most expensive part of saving a keyring.
+     *
+     * This method doesn't write anything and may be called from multiple threads at once, so
+     * keyrings can be prepared in parallel and written in a single batch later on.
+     *
+     * @param trustedKeys master keys of all available secret keys, see getTrustedMasterKeys
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<ContentProviderOperation> buildSavePublicKeyRingOperations(
+            UncachedKeyRing keyRing, LongSparseArray<UncachedPublicKey> trustedKeys)
+            throws IOException {
         if (keyRing.isSecret()) {
             throw new RuntimeException("Tried to save secret keyring as public! " +
                     "This is a bug, please file a bug report.");
@@ -230,44 +489,39 @@ public class ProviderHelper {
 
         UncachedPublicKey masterKey = keyRing.getPublicKey();
         long masterKeyId = masterKey.getKeyId();
+        byte[] encoded = keyRing.getEncoded();
 
-        // IF there is a secret key, preserve it!
-        UncachedKeyRing secretRing = null;
-        try {
-            secretRing = getWrappedSecretKeyRing(masterKeyId).getUncached();
-        } catch (NotFoundException e) {
-            Log.e(Constants.TAG, "key not found!");
-        }
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
 
-        // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-        try {
-            mContentResolver.delete(KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId)), null, null);
-        } catch (UnsupportedOperationException e) {
-            Log.e(Constants.TAG, "Key could not be deleted! Maybe we are creating a new one!", e);
+        // nothing to do if exactly this keyring is already stored
+        byte[] stored = getPublicKeyRingData(masterKeyId);
+        if (stored != null && Arrays.equals(encoded, stored)
+                && !hasTrustedCertifications(masterKey, trustedKeys)) {
+            Log.d(Constants.TAG, "Keyring " + PgpKeyHelper.convertKeyIdToHex(masterKeyId)
+                    + " is unchanged, skipping");
+            return operations;
         }
 
-        // insert new version of this keyRing
-        ContentValues values = new ContentValues();
-        values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
-        values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
-        Uri uri = KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId));
-        mContentResolver.insert(uri, values);
-
-        // save all keys and userIds included in keyRing object in database
-        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        // results of earlier verifications of signatures on this keyring
+        HashMap<String, Boolean> verdicts = getSignatureVerdicts(masterKeyId);
+        // those which are not looked up belong to signatures no longer on the keyring. digests
+        // are hex, so they can be put into the delete selection as they are.
+        HashSet<String> staleVerdicts = new HashSet<String>(verdicts.keySet());
 
-        int rank = 0;
-        for (UncachedPublicKey key : new IterableIterator<UncachedPublicKey>(keyRing.getPublicKeys())) {
-            operations.add(buildPublicKeyOperations(masterKeyId, key, rank));
-            ++rank;
+        // IF there is a secret key, preserve it!
+        UncachedKeyRing secretRing = null;
+        if (trustedKeys.indexOfKey(masterKeyId) >= 0) {
+            try {
+                secretRing = getWrappedSecretKeyRing(masterKeyId).getUncached();
+            } catch (NotFoundException e) {
+                Log.e(Constants.TAG, "key not found!");
+            }
         }
 
-        // get a list of owned secret keys, for verification filtering
-        LongSparseArray<UncachedPublicKey> allKeyRings =
-                getUncachedMasterKeys(KeyRingData.buildSecretKeyRingUri());
-        // special case: available secret keys verify themselves!
-        if (secretRing != null) {
-            allKeyRings.put(secretRing.getMasterKeyId(), secretRing.getPublicKey());
+        // all keys included in keyRing object, by rank
+        ArrayList<ContentValues> keyRows = new ArrayList<ContentValues>();
+        for (UncachedPublicKey key : new IterableIterator<UncachedPublicKey>(keyRing.getPublicKeys())) {
+            keyRows.add(buildPublicKeyValues(masterKeyId, key, keyRows.size()));
         }
 
         // classify and order user ids. primary are moved to the front, revoked to the back,
@@ -287,8 +541,8 @@ public class ProviderHelper {
                 try {
                     // self signature
                     if (certId == masterKeyId) {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, userId)) {
+                        if (!verifyCertification(cert, masterKey, masterKey, userId,
+                                verdicts, staleVerdicts, operations)) {
                             // not verified?! dang! TODO notify user? this is kinda serious...
                             Log.e(Constants.TAG, "Could not verify self signature for " + userId + "!");
                             continue;
@@ -302,9 +556,14 @@ public class ProviderHelper {
                         }
                     }
                     // verify signatures from known private keys
-                    if (allKeyRings.indexOfKey(certId) >= 0) {
-                        cert.init(allKeyRings.get(certId));
-                        if (cert.verifySignature(masterKey, userId)) {
+                    UncachedPublicKey certifier = trustedKeys.get(certId);
+                    // special case: available secret keys verify themselves!
+                    if (certifier == null && secretRing != null && certId == masterKeyId) {
+                        certifier = secretRing.getPublicKey();
+                    }
+                    if (certifier != null) {
+                        if (verifyCertification(cert, certifier, masterKey, userId,
+                                verdicts, staleVerdicts, operations)) {
                             item.trustedCerts.add(cert);
                         }
                     }
@@ -320,13 +579,16 @@ public class ProviderHelper {
         // primary before regular before revoked (see UserIdItem.compareTo)
         // this is a stable sort, so the order of keys is otherwise preserved.
         Collections.sort(uids);
-        // iterate and put into db
+        // iterate and collect the rows to store
+        ArrayList<ContentValues> userIdRows = new ArrayList<ContentValues>();
+        // by rank and certifier. there is one row for each, later certs replace earlier ones
+        RowDiff certRows = new RowDiff(CERT_KEY_COLUMNS, CERT_DIFF_COLUMNS);
         for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
             UserIdItem item = uids.get(userIdRank);
-            operations.add(buildUserIdOperations(masterKeyId, item, userIdRank));
+            userIdRows.add(buildUserIdValues(masterKeyId, item, userIdRank));
             // no self cert is bad, but allowed by the rfc...
             if (item.selfCert != null) {
-                operations.add(buildCertOperations(
+                certRows.addRow(buildCertValues(
                         masterKeyId, userIdRank, item.selfCert, Certs.VERIFIED_SELF));
             }
             // don't bother with trusted certs if the uid is revoked, anyways
@@ -334,24 +596,305 @@ public class ProviderHelper {
                 continue;
             }
             for (int i = 0; i < item.trustedCerts.size(); i++) {
-                operations.add(buildCertOperations(
+                certRows.addRow(buildCertValues(
                         masterKeyId, userIdRank, item.trustedCerts.get(i), Certs.VERIFIED_SECRET));
             }
         }
 
+        if (!staleVerdicts.isEmpty()) {
+            operations.add(ContentProviderOperation.newDelete(SignatureVerdicts.CONTENT_URI)
+                    .withSelection(SignatureVerdicts.DIGEST + " IN ('"
+                            + TextUtils.join("', '", staleVerdicts) + "')", null)
+                    .build());
+        }
+
+        // the search index is written in either case, it is only a single row
+        ArrayList<String> searchUserIds = new ArrayList<String>();
+        for (UserIdItem item : uids) {
+            searchUserIds.add(item.userId);
+        }
+        ArrayList<Long> searchKeyIds = new ArrayList<Long>();
+        ArrayList<byte[]> searchFingerprints = new ArrayList<byte[]>();
+        for (ContentValues values : keyRows) {
+            searchKeyIds.add(values.getAsLong(Keys.KEY_ID));
+            searchFingerprints.add(values.getAsByteArray(Keys.FINGERPRINT));
+        }
+        ContentProviderOperation searchOperation = ContentProviderOperation.newInsert(
+                KeyRingsSearch.buildKeyRingSearchUri(masterKeyId))
+                .withValue(KeyRingsSearch.CONTENT, KeyRingsSearch.buildContent(
+                        searchUserIds, searchKeyIds, searchFingerprints))
+                .build();
+
+        if (stored == null) {
+            // a new keyring, insert everything
+            operations.add(ContentProviderOperation.newInsert(
+                    KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId)))
+                    .withValue(KeyRingData.MASTER_KEY_ID, masterKeyId)
+                    .withValue(KeyRingData.KEY_RING_DATA, encoded)
+                    .build());
+            buildInsertOperations(Keys.buildKeysUri(Long.toString(masterKeyId)),
+                    keyRows, operations);
+            buildInsertOperations(UserIds.buildUserIdsUri(Long.toString(masterKeyId)),
+                    userIdRows, operations);
+            buildInsertOperations(Certs.buildCertsUri(Long.toString(masterKeyId)),
+                    certRows.getInserted(), operations);
+            operations.add(searchOperation);
+
+            // Save the saved keyring (if any)
+            if (secretRing != null) {
+                buildSecretKeyRingOperations(secretRing, operations);
+            }
+        } else {
+            // an update, only write what changed. the secret keyring is left alone.
+            operations.add(ContentProviderOperation.newUpdate(
+                    KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId)))
+                    .withValue(KeyRingData.KEY_RING_DATA, encoded)
+                    .build());
+            if (secretRing != null) {
+                // new or changed key rows need to know about their secret key
+                ArrayList<Long> available = secretRing.getAvailableSubkeys();
+                for (ContentValues values : keyRows) {
+                    values.put(Keys.HAS_SECRET, available.contains(values.getAsLong(Keys.KEY_ID)));
+                }
+            }
+            buildDiffOperations(masterKeyId, keyRows, userIdRows, certRows, operations);
+            operations.add(searchOperation);
+        }
+
+        return operations;
+    }
+
+    private static void buildInsertOperations(Uri uri, Collection<ContentValues> rows,
+                                              ArrayList<ContentProviderOperation> operations) {
+        for (ContentValues values : rows) {
+            operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        }
+    }
+
+    // columns compared to find changed rows, this excludes has_secret for keys
+    private static final String[] KEY_DIFF_COLUMNS = new String[]{
+            Keys.RANK, Keys.KEY_ID, Keys.KEY_SIZE, Keys.ALGORITHM, Keys.FINGERPRINT,
+            Keys.CAN_CERTIFY, Keys.CAN_SIGN, Keys.CAN_ENCRYPT, Keys.IS_REVOKED,
+            Keys.CREATION, Keys.EXPIRY
+    };
+    private static final String[] USER_ID_DIFF_COLUMNS = new String[]{
+            UserIds.RANK, UserIds.USER_ID, UserIds.IS_PRIMARY, UserIds.IS_REVOKED
+    };
+    private static final String[] CERT_KEY_COLUMNS = new String[]{
+            Certs.RANK, Certs.KEY_ID_CERTIFIER
+    };
+    private static final String[] CERT_DIFF_COLUMNS = new String[]{
+            Certs.RANK, Certs.KEY_ID_CERTIFIER, Certs.TYPE, Certs.VERIFIED, Certs.CREATION,
+            Certs.DATA
+    };
+
+    /**
+     * Builds the operations to turn the stored keys, user ids and certs of a keyring into the
+     * given rows, touching only rows which were added, changed or removed. Changed keys and
+     * user ids are deleted and inserted again, which for user ids also deletes their certs.
+     */
+    private void buildDiffOperations(long masterKeyId, ArrayList<ContentValues> keyRows,
+                                     ArrayList<ContentValues> userIdRows, RowDiff certRows,
+                                     ArrayList<ContentProviderOperation> operations) {
+        String masterKeyIdString = Long.toString(masterKeyId);
+
+        // keys, by rank
+        RowDiff keys = new RowDiff(new String[]{ Keys.RANK }, KEY_DIFF_COLUMNS);
+        for (ContentValues values : keyRows) {
+            keys.addRow(values);
+        }
+        buildDiffOperations(Keys.buildKeysUri(masterKeyIdString), keys, KEY_DIFF_COLUMNS,
+                null, true, operations);
+
+        // user ids, by rank. certs of deleted user ids are deleted on cascade.
+        RowDiff userIds = new RowDiff(new String[]{ UserIds.RANK }, USER_ID_DIFF_COLUMNS);
+        for (ContentValues values : userIdRows) {
+            userIds.addRow(values);
+        }
+        buildDiffOperations(UserIds.buildUserIdsUri(masterKeyIdString), userIds,
+                USER_ID_DIFF_COLUMNS, null, true, operations);
+
+        // certs, by rank and certifier. only those of kept user ids are still stored,
+        // changed certs are simply replaced on insert.
+        StringBuilder keptRanks = new StringBuilder();
+        for (ContentValues values : userIdRows) {
+            if (userIds.isUnchanged(values)) {
+                if (keptRanks.length() > 0) {
+                    keptRanks.append(',');
+                }
+                keptRanks.append(values.getAsInteger(UserIds.RANK));
+            }
+        }
+        buildDiffOperations(Certs.buildCertsUri(masterKeyIdString), certRows, CERT_DIFF_COLUMNS,
+                Tables.CERTS + "." + Certs.RANK + " IN (" + keptRanks + ")", false, operations);
+    }
+
+    /**
+     * Compares the stored rows matching the selection with the rows of the diff, and adds
+     * operations to delete removed rows, changed rows if deleteChanged is set, and to insert
+     * new and changed rows.
+     */
+    private void buildDiffOperations(Uri uri, RowDiff diff, String[] columns, String selection,
+                                     boolean deleteChanged,
+                                     ArrayList<ContentProviderOperation> operations) {
+        Cursor cursor = mContentResolver.query(uri, columns, selection, null, null);
+        try {
+            if (cursor != null) {
+                diff.compare(cursor);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        ArrayList<String[]> deleted = new ArrayList<String[]>(diff.getRemoved());
+        if (deleteChanged) {
+            deleted.addAll(diff.getChanged());
+        }
+        for (String[] key : deleted) {
+            operations.add(ContentProviderOperation.newDelete(uri)
+                    .withSelection(diff.getKeySelection(), key).build());
+        }
+        buildInsertOperations(uri, diff.getInserted(), operations);
+    }
+
+    /** Returns the stored data of a public keyring, or null if it isn't stored. */
+    private byte[] getPublicKeyRingData(long masterKeyId) {
+        Cursor cursor = mContentResolver.query(
+                KeyRingData.buildPublicKeyRingUri(Long.toString(masterKeyId)),
+                new String[]{ KeyRingData.KEY_RING_DATA }, null, null, null);
+        try {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getBlob(0);
+            }
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Returns true if a keyring carries certifications by one of the trusted keys, other than
+     * its own. Those may not have been verified when the keyring was stored, so such a
+     * keyring is never considered unchanged.
+     */
+    private boolean hasTrustedCertifications(UncachedPublicKey masterKey,
+                                             LongSparseArray<UncachedPublicKey> trustedKeys) {
+        for (String userId : new IterableIterator<String>(
+                masterKey.getUnorderedUserIds().iterator())) {
+            for (WrappedSignature cert : new IterableIterator<WrappedSignature>(
+                    masterKey.getSignaturesForId(userId))) {
+                long certId = cert.getKeyId();
+                if (certId != masterKey.getKeyId() && trustedKeys.get(certId) != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns the stored verification results for signatures on a keyring, by digest. */
+    private HashMap<String, Boolean> getSignatureVerdicts(long masterKeyId) {
+        HashMap<String, Boolean> verdicts = new HashMap<String, Boolean>();
+        Cursor cursor = mContentResolver.query(SignatureVerdicts.CONTENT_URI,
+                new String[]{ SignatureVerdicts.DIGEST, SignatureVerdicts.VERIFIED },
+                SignatureVerdicts.MASTER_KEY_ID + " = ?",
+                new String[]{ Long.toString(masterKeyId) }, null);
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                verdicts.put(cursor.getString(0), cursor.getInt(1) > 0);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return verdicts;
+    }
+
+    /**
+     * Verifies a certification of a user id, unless its result is already known. New
+     * results are added to the verdicts and to the operations, to be stored with the keyring.
+     * Known results which are looked up are removed from the stale verdicts.
+     */
+    private boolean verifyCertification(WrappedSignature cert, UncachedPublicKey certifier,
+                                        UncachedPublicKey masterKey, String userId,
+                                        HashMap<String, Boolean> verdicts,
+                                        HashSet<String> staleVerdicts,
+                                        ArrayList<ContentProviderOperation> operations)
+            throws PgpGeneralException {
+        String digest = getVerdictDigest(cert, certifier, masterKey, userId);
+        if (digest != null && verdicts.containsKey(digest)) {
+            staleVerdicts.remove(digest);
+            return verdicts.get(digest);
+        }
+
+        cert.init(certifier);
+        boolean verified = cert.verifySignature(masterKey, userId);
+
+        if (digest != null) {
+            verdicts.put(digest, verified);
+            operations.add(ContentProviderOperation.newInsert(SignatureVerdicts.CONTENT_URI)
+                    .withValue(SignatureVerdicts.DIGEST, digest)
+                    .withValue(SignatureVerdicts.MASTER_KEY_ID, masterKey.getKeyId())
+                    .withValue(SignatureVerdicts.VERIFIED, verified)
+                    .build());
+        }
+        return verified;
+    }
+
+    /**
+     * Digest over everything the result of a certification depends on: the signature packet,
+     * the certifying key, the certified key and the user id. Returns null if the signature
+     * can't be encoded, it is then simply verified every time.
+     */
+    private static String getVerdictDigest(WrappedSignature cert, UncachedPublicKey certifier,
+                                           UncachedPublicKey masterKey, String userId) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(cert.getEncoded());
+            md.update(certifier.getFingerprint());
+            md.update(masterKey.getFingerprint());
+            md.update(userId.getBytes("UTF-8"));
+            return new String(Hex.encode(md.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(Constants.TAG, "SHA-256 not available!", e);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Could not encode signature!", e);
+        }
+        return null;
+    }
+
+    /**
+     * Applies a list of operations built by this class. KeychainProvider applies all of them
+     * within a single transaction.
+     *
+     * @return true on success, false if the batch failed and was rolled back
+     */
+    public boolean applyBatch(ArrayList<ContentProviderOperation> operations) {
         try {
             mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            return true;
         } catch (RemoteException e) {
             Log.e(Constants.TAG, "applyBatch failed!", e);
         } catch (OperationApplicationException e) {
             Log.e(Constants.TAG, "applyBatch failed!", e);
+        } finally {
+            // don't wait for the change notification to drop outdated keyrings in this process,
+            // but only the keyrings of this batch
+            KeyRingCache cache = KeyRingCache.getInstance(mContext);
+            for (ContentProviderOperation operation : operations) {
+                Uri uri = operation.getUri();
+                List<String> segments = uri.getPathSegments();
+                if (!segments.isEmpty() && KeychainContract.BASE_KEY_RINGS.equals(segments.get(0))) {
+                    cache.invalidate(uri);
+                }
+            }
         }
-
-        // Save the saved keyring (if any)
-        if (secretRing != null) {
-            saveSecretKeyRing(secretRing);
-        }
-
+        return false;
     }
 
     private static class UserIdItem implements Comparable<UserIdItem> {
@@ -387,20 +930,40 @@ public class ProviderHelper {
 
         long masterKeyId = keyRing.getMasterKeyId();
 
+        // keys unlocked from the old version of this keyring must not be used anymore
+        PrivateKeyCache.getInstance().invalidate(masterKeyId);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        buildSecretKeyRingOperations(keyRing, operations);
+        applyBatch(operations);
+    }
+
+    private void buildSecretKeyRingOperations(
+            UncachedKeyRing keyRing, ArrayList<ContentProviderOperation> operations)
+            throws IOException {
+        long masterKeyId = keyRing.getMasterKeyId();
+
         {
             Uri uri = Keys.buildKeysUri(Long.toString(masterKeyId));
 
             // first, mark all keys as not available
-            ContentValues values = new ContentValues();
-            values.put(Keys.HAS_SECRET, 0);
-            mContentResolver.update(uri, values, null, null);
-
-            values.put(Keys.HAS_SECRET, 1);
-            // then, mark exactly the keys we have available
-            for (Long sub : new IterableIterator<Long>(keyRing.getAvailableSubkeys().iterator())) {
-                mContentResolver.update(uri, values, Keys.KEY_ID + " = ?", new String[] {
-                    Long.toString(sub)
-                });
+            operations.add(ContentProviderOperation.newUpdate(uri)
+                    .withValue(Keys.HAS_SECRET, 0).build());
+
+            // then, mark exactly the keys we have available, all in one go
+            ArrayList<Long> available = keyRing.getAvailableSubkeys();
+            if (!available.isEmpty()) {
+                StringBuilder selection = new StringBuilder(Keys.KEY_ID + " IN (");
+                for (int i = 0; i < available.size(); i++) {
+                    if (i > 0) {
+                        selection.append(", ");
+                    }
+                    selection.append(Long.toString(available.get(i)));
+                }
+                selection.append(")");
+                operations.add(ContentProviderOperation.newUpdate(uri)
+                        .withValue(Keys.HAS_SECRET, 1)
+                        .withSelection(selection.toString(), null).build());
             }
             // this implicitly leaves all keys which were not in the secret key ring
             // with has_secret = 0
@@ -408,12 +971,12 @@ public class ProviderHelper {
 
         // save secret keyring
         {
-            ContentValues values = new ContentValues();
-            values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
-            values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
             // insert new version of this keyRing
             Uri uri = KeyRingData.buildSecretKeyRingUri(Long.toString(masterKeyId));
-            mContentResolver.insert(uri, values);
+            operations.add(ContentProviderOperation.newInsert(uri)
+                    .withValue(KeyRingData.MASTER_KEY_ID, masterKeyId)
+                    .withValue(KeyRingData.KEY_RING_DATA, keyRing.getEncoded())
+                    .build());
         }
 
     }
@@ -433,10 +996,10 @@ public class ProviderHelper {
     }
 
     /**
-     * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
+     * Build ContentValues to add PGPPublicKey to database corresponding to a keyRing
      */
-    private ContentProviderOperation
-    buildPublicKeyOperations(long masterKeyId, UncachedPublicKey key, int rank) throws IOException {
+    private ContentValues
+    buildPublicKeyValues(long masterKeyId, UncachedPublicKey key, int rank) throws IOException {
 
         ContentValues values = new ContentValues();
         values.put(Keys.MASTER_KEY_ID, masterKeyId);
@@ -458,16 +1021,14 @@ public class ProviderHelper {
             values.put(Keys.EXPIRY, expiryDate.getTime() / 1000);
         }
 
-        Uri uri = Keys.buildKeysUri(Long.toString(masterKeyId));
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     /**
-     * Build ContentProviderOperation to add PGPPublicKey to database corresponding to a keyRing
+     * Build ContentValues to add a certificate to database corresponding to a keyRing
      */
-    private ContentProviderOperation
-    buildCertOperations(long masterKeyId, int rank, WrappedSignature cert, int verified)
+    private ContentValues
+    buildCertValues(long masterKeyId, int rank, WrappedSignature cert, int verified)
             throws IOException {
         ContentValues values = new ContentValues();
         values.put(Certs.MASTER_KEY_ID, masterKeyId);
@@ -478,26 +1039,23 @@ public class ProviderHelper {
         values.put(Certs.VERIFIED, verified);
         values.put(Certs.DATA, cert.getEncoded());
 
-        Uri uri = Certs.buildCertsUri(Long.toString(masterKeyId));
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     /**
-     * Build ContentProviderOperation to add PublicUserIds to database corresponding to a keyRing
+     * Build ContentValues to add PublicUserIds to database corresponding to a keyRing
      */
-    private ContentProviderOperation
-    buildUserIdOperations(long masterKeyId, UserIdItem item, int rank) {
+    private ContentValues
+    buildUserIdValues(long masterKeyId, UserIdItem item, int rank) {
         ContentValues values = new ContentValues();
         values.put(UserIds.MASTER_KEY_ID, masterKeyId);
         values.put(UserIds.USER_ID, item.userId);
         values.put(UserIds.IS_PRIMARY, item.isPrimary);
         values.put(UserIds.IS_REVOKED, item.isRevoked);
         values.put(UserIds.RANK, rank);
+        values.put(UserIds.EMAIL, UserIds.extractEmail(item.userId));
 
-        Uri uri = UserIds.buildUserIdsUri(Long.toString(masterKeyId));
-
-        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+        return values;
     }
 
     private String getKeyRingAsArmoredString(byte[] data) throws IOException, PgpGeneralException {
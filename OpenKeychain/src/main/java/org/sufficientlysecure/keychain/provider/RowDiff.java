@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The difference between the stored rows of a table and the rows which should be stored
+ * instead. Rows are matched by their key columns, and compared by a given set of columns,
+ * so columns which are maintained separately don't count as a change.
+ *
+ * Deleting the removed and changed rows and inserting the inserted ones gives the same
+ * table as deleting all stored rows and inserting all new ones, while unchanged rows are
+ * left alone.
+ */
+public class RowDiff {
+
+    private final String[] mKeyColumns;
+    private final String[] mColumns;
+
+    // rows which should be stored, by key. a later row replaces an earlier one.
+    private final LinkedHashMap<String, ContentValues> mRows =
+            new LinkedHashMap<String, ContentValues>();
+
+    private final HashSet<String> mUnchanged = new HashSet<String>();
+    private final ArrayList<String[]> mRemoved = new ArrayList<String[]>();
+    private final ArrayList<String[]> mChanged = new ArrayList<String[]>();
+
+    /**
+     * @param keyColumns columns which identify a row
+     * @param columns    columns which are compared, including the key columns
+     */
+    public RowDiff(String[] keyColumns, String[] columns) {
+        mKeyColumns = keyColumns;
+        mColumns = columns;
+    }
+
+    /** Adds a row which should be stored, replacing an earlier one with the same key. */
+    public void addRow(ContentValues values) {
+        mRows.put(getKey(values), values);
+    }
+
+    /**
+     * Compares the stored rows of a cursor with the added rows. The cursor must contain all
+     * compared columns, it is neither moved back nor closed.
+     */
+    public void compare(Cursor stored) {
+        int[] keyIndexes = new int[mKeyColumns.length];
+        for (int i = 0; i < keyIndexes.length; i++) {
+            keyIndexes[i] = stored.getColumnIndexOrThrow(mKeyColumns[i]);
+        }
+        while (stored.moveToNext()) {
+            String[] key = new String[keyIndexes.length];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = stored.getString(keyIndexes[i]);
+            }
+            String rowKey = Arrays.toString(key);
+            ContentValues values = mRows.get(rowKey);
+            if (values == null) {
+                mRemoved.add(key);
+            } else if (rowEquals(values, stored, mColumns)) {
+                mUnchanged.add(rowKey);
+            } else {
+                mChanged.add(key);
+            }
+        }
+    }
+
+    /** Returns a selection for a single row, with the values of its key columns as args. */
+    public String getKeySelection() {
+        StringBuilder selection = new StringBuilder();
+        for (String column : mKeyColumns) {
+            if (selection.length() > 0) {
+                selection.append(" AND ");
+            }
+            selection.append(column).append(" = ?");
+        }
+        return selection.toString();
+    }
+
+    /** Returns the keys of stored rows which aren't part of the added rows. */
+    public List<String[]> getRemoved() {
+        return mRemoved;
+    }
+
+    /** Returns the keys of stored rows which differ from the added row with that key. */
+    public List<String[]> getChanged() {
+        return mChanged;
+    }
+
+    /** Returns the added rows which are new or changed, in the order they were added. */
+    public Collection<ContentValues> getInserted() {
+        ArrayList<ContentValues> inserted = new ArrayList<ContentValues>();
+        for (String key : mRows.keySet()) {
+            if (!mUnchanged.contains(key)) {
+                inserted.add(mRows.get(key));
+            }
+        }
+        return inserted;
+    }
+
+    /** Returns true if the stored row with the key of the given row is unchanged. */
+    public boolean isUnchanged(ContentValues values) {
+        return mUnchanged.contains(getKey(values));
+    }
+
+    private String getKey(ContentValues values) {
+        String[] key = new String[mKeyColumns.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = values.getAsString(mKeyColumns[i]);
+        }
+        return Arrays.toString(key);
+    }
+
+    /** Compares the given columns of a row with the current row of a cursor. */
+    private static boolean rowEquals(ContentValues values, Cursor cursor, String[] columns) {
+        for (String column : columns) {
+            int index = cursor.getColumnIndexOrThrow(column);
+            Object value = values.get(column);
+            if (value == null) {
+                if (!cursor.isNull(index)) {
+                    return false;
+                }
+            } else if (cursor.isNull(index)) {
+                return false;
+            } else if (value instanceof byte[]) {
+                if (!Arrays.equals((byte[]) value, cursor.getBlob(index))) {
+                    return false;
+                }
+            } else if (value instanceof Boolean) {
+                if ((Boolean) value != (cursor.getInt(index) != 0)) {
+                    return false;
+                }
+            } else if (value instanceof Number) {
+                if (((Number) value).longValue() != cursor.getLong(index)) {
+                    return false;
+                }
+            } else if (!value.equals(cursor.getString(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+import android.content.Intent;
+import android.os.Parcelable;
+
+import org.openintents.openpgp.OpenPgpError;
+import org.openintents.openpgp.util.OpenPgpApi;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs a single operation over many payloads, passed in one framed stream.
+ *
+ * Each payload in the input is a frame, consisting of its length as a 4 byte big-endian
+ * integer followed by that many bytes. The input ends with the end of the stream. For
+ * each input frame, one frame with the output of the operation is written, in the same
+ * order. The output frame of a failed item is empty.
+ *
+ * Items are processed concurrently on a shared executor. An item whose turn to be written
+ * comes before the executor started it is processed on the calling thread, so batches
+ * make progress even while the executor is busy with other requests. Only a few items
+ * ahead of the oldest unfinished one are read, and only while their input stays within
+ * MAX_READ_AHEAD_BYTES. At most that much input plus one more frame is held at once, along
+ * with outputs of about the same size, whatever the number and size of the items.
+ *
+ * The result of each item is the same intent a single call of the operation would return,
+ * all of them are returned as RESULT_BATCH_RESULTS. Since these are passed back in a single
+ * binder transaction, a batch has at most MAX_BATCH_ITEMS items; reading fails as soon as
+ * the input has more.
+ */
+public class BatchProcessor {
+
+    /** Parcelable array of result intents, one for each item */
+    public static final String RESULT_BATCH_RESULTS = "batch_results";
+
+    /** Upper bound for the size of a single frame, larger payloads should be streamed */
+    public static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+
+    /** Upper bound for the total input size of the items read ahead */
+    public static final int MAX_READ_AHEAD_BYTES = 8 * 1024 * 1024;
+
+    /** Maximum number of items, so the result intents stay well below the binder limit */
+    public static final int MAX_BATCH_ITEMS = 500;
+
+    /** Number of items read ahead of the oldest unfinished one */
+    private static final int READ_AHEAD = 2 * Runtime.getRuntime().availableProcessors();
+
+    public interface Operation {
+        /**
+         * Processes a single item, called concurrently from several threads.
+         *
+         * @return a result intent, with RESULT_CODE and possibly RESULT_ERROR
+         */
+        public Intent process(byte[] input, OutputStream output);
+    }
+
+    private static class ItemTask extends FutureTask<ItemResult> {
+        final int mInputLength;
+
+        ItemTask(Callable<ItemResult> item, int inputLength) {
+            super(item);
+            mInputLength = inputLength;
+        }
+    }
+
+    private static class ItemResult {
+        final Intent mResult;
+        final byte[] mOutput;
+
+        ItemResult(Intent result, byte[] output) {
+            mResult = result;
+            mOutput = output;
+        }
+    }
+
+    /**
+     * Processes all frames of the input, and writes the output frames.
+     *
+     * @param executor runs the items, usually shared with other requests
+     * @return an intent with RESULT_CODE_SUCCESS and the results of all items
+     * @throws IOException if the input is not properly framed, has more than MAX_BATCH_ITEMS
+     *                     items, or reading or writing fails
+     */
+    public static Intent run(InputStream in, OutputStream out, Executor executor,
+                             final Operation operation) throws IOException {
+        DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in));
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+
+        LinkedList<ItemTask> pending = new LinkedList<ItemTask>();
+        ArrayList<Intent> results = new ArrayList<Intent>();
+        try {
+            byte[] frame;
+            int items = 0;
+            int pendingBytes = 0;
+            while ((frame = readFrame(dataIn)) != null) {
+                if (++items > MAX_BATCH_ITEMS) {
+                    throw new IOException("More than " + MAX_BATCH_ITEMS + " items in batch");
+                }
+                final byte[] input = frame;
+                Callable<ItemResult> item = new Callable<ItemResult>() {
+                    @Override
+                    public ItemResult call() {
+                        ByteArrayOutputStream output = new ByteArrayOutputStream();
+                        Intent result;
+                        try {
+                            result = operation.process(input, output);
+                        } catch (RuntimeException e) {
+                            Log.e(Constants.TAG, "Batch item failed!", e);
+                            result = getErrorIntent(e.getMessage());
+                        }
+                        return new ItemResult(result, output.toByteArray());
+                    }
+                };
+                ItemTask task = new ItemTask(item, input.length);
+                pending.add(task);
+                pendingBytes += input.length;
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    // executor is shutting down, the item runs on this thread
+                }
+                // don't read further ahead than the workers can keep up with, or memory allows
+                while (pending.size() >= READ_AHEAD
+                        || (pendingBytes > MAX_READ_AHEAD_BYTES && !pending.isEmpty())) {
+                    ItemTask first = pending.removeFirst();
+                    pendingBytes -= first.mInputLength;
+                    results.add(writeResult(dataOut, first));
+                }
+            }
+            while (!pending.isEmpty()) {
+                results.add(writeResult(dataOut, pending.removeFirst()));
+            }
+            dataOut.flush();
+        } finally {
+            // the executor is shared, only stop the items of this batch
+            for (ItemTask task : pending) {
+                task.cancel(true);
+            }
+        }
+
+        Log.d(Constants.TAG, "Batch of " + results.size() + " items done");
+        Intent result = new Intent();
+        result.putExtra(RESULT_BATCH_RESULTS, results.toArray(new Parcelable[results.size()]));
+        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+        return result;
+    }
+
+    private static Intent writeResult(DataOutputStream out, FutureTask<ItemResult> task)
+            throws IOException {
+        // does nothing if a worker already started the item
+        task.run();
+        ItemResult item;
+        try {
+            item = task.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Batch was cancelled");
+        } catch (ExecutionException e) {
+            // process() catches everything, this is an Error from the worker
+            throw new RuntimeException(e.getCause());
+        }
+
+        int code = item.mResult.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+        if (code == OpenPgpApi.RESULT_CODE_SUCCESS) {
+            writeFrame(out, item.mOutput, 0, item.mOutput.length);
+        } else {
+            // partial output of a failed item is never passed on
+            writeFrame(out, item.mOutput, 0, 0);
+        }
+        return item.mResult;
+    }
+
+    /** Reads a single frame, or returns null if the stream ended before it. */
+    public static byte[] readFrame(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        int length;
+        try {
+            length = (first << 24) | (in.readUnsignedByte() << 16)
+                    | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        } catch (EOFException e) {
+            throw new IOException("Truncated frame header");
+        }
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    public static void writeFrame(DataOutputStream out, byte[] data, int offset, int length)
+            throws IOException {
+        out.writeInt(length);
+        out.write(data, offset, length);
+    }
+
+    static Intent getErrorIntent(String message) {
+        Intent result = new Intent();
+        result.putExtra(OpenPgpApi.RESULT_ERROR,
+                new OpenPgpError(OpenPgpError.GENERIC_ERROR, message));
+        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+        return result;
+    }
+
+}
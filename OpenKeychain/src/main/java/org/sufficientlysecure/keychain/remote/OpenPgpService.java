@@ -21,8 +21,12 @@ import android.app.PendingIntent;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 
 import org.openintents.openpgp.IOpenPgpService;
 import org.openintents.openpgp.OpenPgpError;
@@ -31,10 +35,13 @@ import org.openintents.openpgp.util.OpenPgpApi;
 import org.spongycastle.util.Arrays;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.pgp.BatchKeyRingLookup;
+import org.sufficientlysecure.keychain.pgp.KeyRingLookup;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyResult;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncrypt;
+import org.sufficientlysecure.keychain.pgp.WrappedSecretKey;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
@@ -46,13 +53,53 @@ import org.sufficientlysecure.keychain.ui.ViewKeyActivity;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Implements the OpenPGP API for other apps.
+ *
+ * Requests are queued in a RequestScheduler and cancelled when their client dies. The API
+ * passes no binder of the client, so a client which wants its requests cancelled right away
+ * passes any binder it owns as EXTRA_CLIENT_TOKEN, which works from Android 4.3 on, where
+ * Bundle can hold binders. For all other clients, the binder thread waiting for the request
+ * checks every CLIENT_CHECK_INTERVAL whether the calling process still exists, so their
+ * requests keep running for up to that long, and a new process reusing the pid keeps them
+ * alive.
+ */
 public class OpenPgpService extends RemoteService {
 
+    /**
+     * Optional binder owned by the client, put into the extras with Bundle.putBinder. Its
+     * requests are cancelled as soon as it dies. Only read from Android 4.3 on.
+     */
+    public static final String EXTRA_CLIENT_TOKEN = "client_token";
+
+    /**
+     * Batch variants of ACTION_ENCRYPT and ACTION_SIGN_AND_ENCRYPT, taking the same extras.
+     * Input and output are framed streams of many payloads, see BatchProcessor.
+     */
+    public static final String ACTION_ENCRYPT_BATCH = Constants.INTENT_PREFIX + "ENCRYPT_BATCH";
+    public static final String ACTION_SIGN_AND_ENCRYPT_BATCH =
+            Constants.INTENT_PREFIX + "SIGN_AND_ENCRYPT_BATCH";
+    /** Batch variant of ACTION_DECRYPT_VERIFY, the result of each message is returned separately */
+    public static final String ACTION_DECRYPT_VERIFY_BATCH =
+            Constants.INTENT_PREFIX + "DECRYPT_VERIFY_BATCH";
+
     /**
      * Search database for key ids based on emails.
      *
@@ -166,11 +213,12 @@ public class OpenPgpService extends RemoteService {
             }
 
             // Get Input- and OutputStream from ParcelFileDescriptor
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
-            OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+            InputStream is = RequestScheduler.wrapInput(
+                    new ParcelFileDescriptor.AutoCloseInputStream(input));
+            OutputStream os = RequestScheduler.wrapOutput(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(output));
             try {
-                long inputLength = is.available();
-                InputData inputData = new InputData(is, inputLength);
+                InputData inputData = getInputData(input, is);
 
                 // sign-only
                 PgpSignEncrypt.Builder builder = new PgpSignEncrypt.Builder(
@@ -214,94 +262,130 @@ public class OpenPgpService extends RemoteService {
         }
     }
 
+    /**
+     * Returns the key ids to encrypt to, including the own key of the account, as
+     * RESULT_KEY_IDS of a successful result. Otherwise, the result contains an error or a
+     * PendingIntent for user interaction.
+     */
+    private Intent getEncryptionKeyIds(Intent data, AccountSettings accSettings) {
+        long[] keyIds;
+        if (data.hasExtra(OpenPgpApi.EXTRA_KEY_IDS)) {
+            keyIds = data.getLongArrayExtra(OpenPgpApi.EXTRA_KEY_IDS);
+        } else if (data.hasExtra(OpenPgpApi.EXTRA_USER_IDS)) {
+            // get key ids based on given user ids
+            String[] userIds = data.getStringArrayExtra(OpenPgpApi.EXTRA_USER_IDS);
+            // give params through to activity...
+            Intent result = getKeyIdsFromEmails(data, userIds);
+            if (result == null) {
+                return getErrorIntent("No keys found for user_ids!");
+            }
+
+            if (result.getIntExtra(OpenPgpApi.RESULT_CODE, 0) == OpenPgpApi.RESULT_CODE_SUCCESS) {
+                keyIds = result.getLongArrayExtra(OpenPgpApi.RESULT_KEY_IDS);
+            } else {
+                // if not success -> result contains a PendingIntent for user interaction
+                return result;
+            }
+        } else {
+            return getErrorIntent("Missing parameter user_ids or key_ids!");
+        }
+
+        // add own key for encryption
+        keyIds = Arrays.copyOf(keyIds, keyIds.length + 1);
+        keyIds[keyIds.length - 1] = accSettings.getKeyId();
+
+        Intent result = new Intent();
+        result.putExtra(OpenPgpApi.RESULT_KEY_IDS, keyIds);
+        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+        return result;
+    }
+
+    /**
+     * Returns the passphrase for the signing key of the account, either given by the client
+     * or from the cache, or null if it is not available.
+     */
+    private String getSignaturePassphrase(Intent data, AccountSettings accSettings) {
+        if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
+            return data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
+        } else {
+            return PassphraseCacheService.getCachedPassphrase(getContext(), accSettings.getKeyId());
+        }
+    }
+
+    /**
+     * Encrypts, and signs if a passphrase is given. Exceptions carry a meaningful message
+     * for the client.
+     */
+    private void encryptAndSign(KeyRingLookup keyRingLookup, InputData inputData,
+                                OutputStream os, boolean asciiArmor, long[] keyIds,
+                                AccountSettings accSettings, String passphrase) throws Exception {
+        PgpSignEncrypt.Builder builder = new PgpSignEncrypt.Builder(
+                keyRingLookup,
+                PgpHelper.getFullVersion(getContext()),
+                inputData, os);
+        builder.setEnableAsciiArmorOutput(asciiArmor)
+                .setCompressionId(accSettings.getCompression())
+                .setSymmetricEncryptionAlgorithm(accSettings.getEncryptionAlgorithm())
+                .setEncryptionMasterKeyIds(keyIds)
+                .setExecutor(mScheduler.getTaskExecutor());
+
+        if (passphrase != null) {
+            // sign and encrypt
+            builder.setSignatureHashAlgorithm(accSettings.getHashAlgorithm())
+                    .setSignatureForceV3(false)
+                    .setSignatureMasterKeyId(accSettings.getKeyId())
+                    .setSignaturePassphrase(passphrase);
+        } else {
+            // encrypt only
+            builder.setSignatureMasterKeyId(Constants.key.none);
+        }
+
+        try {
+            // execute PGP operation!
+            builder.build().execute();
+
+            // throw exceptions upwards to client with meaningful messages
+        } catch (PgpSignEncrypt.KeyExtractionException e) {
+            throw new Exception(getString(R.string.error_could_not_extract_private_key));
+        } catch (PgpSignEncrypt.NoPassphraseException e) {
+            throw new Exception(getString(R.string.error_no_signature_passphrase));
+        } catch (PgpSignEncrypt.NoSigningKeyException e) {
+            throw new Exception(getString(R.string.error_no_signature_key));
+        }
+    }
+
     private Intent encryptAndSignImpl(Intent data, ParcelFileDescriptor input,
                                       ParcelFileDescriptor output, AccountSettings accSettings,
                                       boolean sign) {
         try {
             boolean asciiArmor = data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
 
-            long[] keyIds;
-            if (data.hasExtra(OpenPgpApi.EXTRA_KEY_IDS)) {
-                keyIds = data.getLongArrayExtra(OpenPgpApi.EXTRA_KEY_IDS);
-            } else if (data.hasExtra(OpenPgpApi.EXTRA_USER_IDS)) {
-                // get key ids based on given user ids
-                String[] userIds = data.getStringArrayExtra(OpenPgpApi.EXTRA_USER_IDS);
-                // give params through to activity...
-                Intent result = getKeyIdsFromEmails(data, userIds);
-
-                if (result.getIntExtra(OpenPgpApi.RESULT_CODE, 0) == OpenPgpApi.RESULT_CODE_SUCCESS) {
-                    keyIds = result.getLongArrayExtra(OpenPgpApi.RESULT_KEY_IDS);
-                } else {
-                    // if not success -> result contains a PendingIntent for user interaction
-                    return result;
-                }
-            } else {
-                Intent result = new Intent();
-                result.putExtra(OpenPgpApi.RESULT_ERROR,
-                        new OpenPgpError(OpenPgpError.GENERIC_ERROR,
-                                "Missing parameter user_ids or key_ids!")
-                );
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
-                return result;
+            Intent keyIdsResult = getEncryptionKeyIds(data, accSettings);
+            if (keyIdsResult.getIntExtra(OpenPgpApi.RESULT_CODE, 0) != OpenPgpApi.RESULT_CODE_SUCCESS) {
+                return keyIdsResult;
             }
+            long[] keyIds = keyIdsResult.getLongArrayExtra(OpenPgpApi.RESULT_KEY_IDS);
 
-            // add own key for encryption
-            keyIds = Arrays.copyOf(keyIds, keyIds.length + 1);
-            keyIds[keyIds.length - 1] = accSettings.getKeyId();
+            String passphrase = null;
+            if (sign) {
+                passphrase = getSignaturePassphrase(data, accSettings);
+                if (passphrase == null) {
+                    // get PendingIntent for passphrase input, add it to given params and return to client
+                    Intent passphraseBundle = getPassphraseBundleIntent(data, accSettings.getKeyId());
+                    return passphraseBundle;
+                }
+            }
 
             // build InputData and write into OutputStream
             // Get Input- and OutputStream from ParcelFileDescriptor
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
-            OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+            InputStream is = RequestScheduler.wrapInput(
+                    new ParcelFileDescriptor.AutoCloseInputStream(input));
+            OutputStream os = RequestScheduler.wrapOutput(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(output));
             try {
-                long inputLength = is.available();
-                InputData inputData = new InputData(is, inputLength);
-
-                PgpSignEncrypt.Builder builder = new PgpSignEncrypt.Builder(
-                        new ProviderHelper(getContext()),
-                        PgpHelper.getFullVersion(getContext()),
-                        inputData, os);
-                builder.setEnableAsciiArmorOutput(asciiArmor)
-                        .setCompressionId(accSettings.getCompression())
-                        .setSymmetricEncryptionAlgorithm(accSettings.getEncryptionAlgorithm())
-                        .setEncryptionMasterKeyIds(keyIds);
-
-                if (sign) {
-                    String passphrase;
-                    if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
-                        passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
-                    } else {
-                        passphrase = PassphraseCacheService.getCachedPassphrase(getContext(),
-                                accSettings.getKeyId());
-                    }
-                    if (passphrase == null) {
-                        // get PendingIntent for passphrase input, add it to given params and return to client
-                        Intent passphraseBundle = getPassphraseBundleIntent(data, accSettings.getKeyId());
-                        return passphraseBundle;
-                    }
-
-                    // sign and encrypt
-                    builder.setSignatureHashAlgorithm(accSettings.getHashAlgorithm())
-                            .setSignatureForceV3(false)
-                            .setSignatureMasterKeyId(accSettings.getKeyId())
-                            .setSignaturePassphrase(passphrase);
-                } else {
-                    // encrypt only
-                    builder.setSignatureMasterKeyId(Constants.key.none);
-                }
-
-                try {
-                    // execute PGP operation!
-                    builder.build().execute();
-
-                    // throw exceptions upwards to client with meaningful messages
-                } catch (PgpSignEncrypt.KeyExtractionException e) {
-                    throw new Exception(getString(R.string.error_could_not_extract_private_key));
-                } catch (PgpSignEncrypt.NoPassphraseException e) {
-                    throw new Exception(getString(R.string.error_no_signature_passphrase));
-                } catch (PgpSignEncrypt.NoSigningKeyException e) {
-                    throw new Exception(getString(R.string.error_no_signature_key));
-                }
+                InputData inputData = getInputData(input, is);
+                encryptAndSign(new ProviderHelper(getContext()), inputData, os, asciiArmor,
+                        keyIds, accSettings, passphrase);
             } finally {
                 is.close();
                 os.close();
@@ -319,22 +403,160 @@ public class OpenPgpService extends RemoteService {
         }
     }
 
+    /**
+     * Encrypts many payloads to the same recipients, framed as described in BatchProcessor.
+     * Recipients, the signing key and its passphrase are resolved once for the whole batch.
+     */
+    private Intent encryptAndSignBatchImpl(Intent data, ParcelFileDescriptor input,
+                                           ParcelFileDescriptor output,
+                                           final AccountSettings accSettings, boolean sign) {
+        try {
+            final boolean asciiArmor =
+                    data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
+
+            Intent keyIdsResult = getEncryptionKeyIds(data, accSettings);
+            if (keyIdsResult.getIntExtra(OpenPgpApi.RESULT_CODE, 0) != OpenPgpApi.RESULT_CODE_SUCCESS) {
+                return keyIdsResult;
+            }
+            final long[] keyIds = keyIdsResult.getLongArrayExtra(OpenPgpApi.RESULT_KEY_IDS);
+
+            // shared by all items, so each keyring is only looked up once per batch
+            final BatchKeyRingLookup keyRingLookup =
+                    new BatchKeyRingLookup(new ProviderHelper(getContext()));
+
+            String passphrase = null;
+            if (sign) {
+                passphrase = getSignaturePassphrase(data, accSettings);
+                if (passphrase == null) {
+                    return getPassphraseBundleIntent(data, accSettings.getKeyId());
+                }
+                // unlock once up front, later items get the key from the PrivateKeyCache
+                try {
+                    WrappedSecretKey signingKey = keyRingLookup
+                            .getSecretKeyRing(accSettings.getKeyId()).getSigningSubKey();
+                    if (!signingKey.unlock(passphrase)) {
+                        throw new Exception(getString(R.string.error_wrong_passphrase));
+                    }
+                } catch (KeyRingLookup.NotFoundException e) {
+                    throw new Exception(getString(R.string.error_no_signature_key));
+                } catch (PgpGeneralException e) {
+                    throw new Exception(getString(R.string.error_could_not_extract_private_key));
+                }
+            }
+            final String signaturePassphrase = passphrase;
+
+            InputStream is = RequestScheduler.wrapInput(
+                    new ParcelFileDescriptor.AutoCloseInputStream(input));
+            OutputStream os = RequestScheduler.wrapOutput(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(output));
+            Executor tasks = mScheduler.getTaskExecutor();
+            try {
+                return BatchProcessor.run(is, os, tasks, new BatchProcessor.Operation() {
+                    @Override
+                    public Intent process(byte[] item, OutputStream out) {
+                        try {
+                            encryptAndSign(keyRingLookup,
+                                    new InputData(new ByteArrayInputStream(item), item.length),
+                                    out, asciiArmor, keyIds, accSettings, signaturePassphrase);
+                        } catch (Exception e) {
+                            return getErrorIntent(e.getMessage());
+                        }
+                        Intent result = new Intent();
+                        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+                        return result;
+                    }
+                });
+            } finally {
+                is.close();
+                os.close();
+            }
+        } catch (Exception e) {
+            return getErrorIntent(e.getMessage());
+        }
+    }
+
+    /**
+     * Decrypts and verifies, filling in the given result intent. Returns a different intent
+     * if user interaction is required. Exceptions carry a meaningful message for the client.
+     */
+    private Intent decryptAndVerify(KeyRingLookup keyRingLookup,
+                                    PgpDecryptVerify.PassphraseCache passphraseCache,
+                                    InputData inputData, OutputStream os, Intent data,
+                                    Set<Long> allowedKeyIds, Intent result) throws Exception {
+        String passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
+
+        PgpDecryptVerify.Builder builder = new PgpDecryptVerify.Builder(
+                keyRingLookup, passphraseCache, inputData, os);
+        builder.setAllowSymmetricDecryption(false) // no support for symmetric encryption
+                .setAllowedKeyIds(allowedKeyIds) // allow only private keys associated with
+                        // accounts of this app
+                .setPassphrase(passphrase)
+                .setTempDir(getCacheDir());
+
+        PgpDecryptVerifyResult decryptVerifyResult;
+        try {
+            // TODO: currently does not support binary signed-only content
+            decryptVerifyResult = builder.build().execute();
+
+            // throw exceptions upwards to client with meaningful messages
+        } catch (PgpDecryptVerify.InvalidDataException e) {
+            throw new Exception(getString(R.string.error_invalid_data));
+        } catch (PgpDecryptVerify.KeyExtractionException e) {
+            throw new Exception(getString(R.string.error_could_not_extract_private_key));
+        } catch (PgpDecryptVerify.WrongPassphraseException e) {
+            throw new Exception(getString(R.string.error_wrong_passphrase));
+        } catch (PgpDecryptVerify.NoSecretKeyException e) {
+            throw new Exception(getString(R.string.error_no_secret_key_found));
+        } catch (PgpDecryptVerify.IntegrityCheckFailedException e) {
+            throw new Exception(getString(R.string.error_integrity_check_failed));
+        }
+
+        if (PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED == decryptVerifyResult.getStatus()) {
+            // get PendingIntent for passphrase input, add it to given params and return to client
+            Intent passphraseBundle =
+                    getPassphraseBundleIntent(data, decryptVerifyResult.getKeyIdPassphraseNeeded());
+            return passphraseBundle;
+        } else if (PgpDecryptVerifyResult.SYMMETRIC_PASSHRASE_NEEDED ==
+                decryptVerifyResult.getStatus()) {
+            throw new PgpGeneralException("Decryption of symmetric content not supported by API!");
+        }
+
+        OpenPgpSignatureResult signatureResult = decryptVerifyResult.getSignatureResult();
+        if (signatureResult != null) {
+            result.putExtra(OpenPgpApi.RESULT_SIGNATURE, signatureResult);
+
+            if (signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_UNKNOWN_PUB_KEY) {
+                // If signature is unknown we return an _additional_ PendingIntent
+                // to retrieve the missing key
+                Intent intent = new Intent(getBaseContext(), ImportKeysActivity.class);
+                intent.setAction(ImportKeysActivity.ACTION_IMPORT_KEY_FROM_KEYSERVER_AND_RETURN);
+                intent.putExtra(ImportKeysActivity.EXTRA_KEY_ID, signatureResult.getKeyId());
+                intent.putExtra(ImportKeysActivity.EXTRA_PENDING_INTENT_DATA, data);
+
+                PendingIntent pi = PendingIntent.getActivity(getBaseContext(), 0,
+                        intent,
+                        PendingIntent.FLAG_CANCEL_CURRENT);
+
+                result.putExtra(OpenPgpApi.RESULT_INTENT, pi);
+            }
+        }
+        return result;
+    }
+
     private Intent decryptAndVerifyImpl(Intent data, ParcelFileDescriptor input,
                                         ParcelFileDescriptor output, Set<Long> allowedKeyIds) {
         try {
             // Get Input- and OutputStream from ParcelFileDescriptor
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
-            OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+            InputStream is = RequestScheduler.wrapInput(
+                    new ParcelFileDescriptor.AutoCloseInputStream(input));
+            OutputStream os = RequestScheduler.wrapOutput(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(output));
 
             Intent result = new Intent();
             try {
+                InputData inputData = getInputData(input, is);
 
-                String passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
-                long inputLength = is.available();
-                InputData inputData = new InputData(is, inputLength);
-
-                PgpDecryptVerify.Builder builder = new PgpDecryptVerify.Builder(
-                        new ProviderHelper(this),
+                Intent interaction = decryptAndVerify(new ProviderHelper(this),
                         new PgpDecryptVerify.PassphraseCache() {
                             @Override
                             public String getCachedPassphrase(long masterKeyId) {
@@ -342,61 +564,11 @@ public class OpenPgpService extends RemoteService {
                                         OpenPgpService.this, masterKeyId);
                             }
                         },
-                        inputData, os
+                        inputData, os, data, allowedKeyIds, result
                 );
-                builder.setAllowSymmetricDecryption(false) // no support for symmetric encryption
-                        .setAllowedKeyIds(allowedKeyIds) // allow only private keys associated with
-                                // accounts of this app
-                        .setPassphrase(passphrase);
-
-                PgpDecryptVerifyResult decryptVerifyResult;
-                try {
-                    // TODO: currently does not support binary signed-only content
-                    decryptVerifyResult = builder.build().execute();
-
-                    // throw exceptions upwards to client with meaningful messages
-                } catch (PgpDecryptVerify.InvalidDataException e) {
-                    throw new Exception(getString(R.string.error_invalid_data));
-                } catch (PgpDecryptVerify.KeyExtractionException e) {
-                    throw new Exception(getString(R.string.error_could_not_extract_private_key));
-                } catch (PgpDecryptVerify.WrongPassphraseException e) {
-                    throw new Exception(getString(R.string.error_wrong_passphrase));
-                } catch (PgpDecryptVerify.NoSecretKeyException e) {
-                    throw new Exception(getString(R.string.error_no_secret_key_found));
-                } catch (PgpDecryptVerify.IntegrityCheckFailedException e) {
-                    throw new Exception(getString(R.string.error_integrity_check_failed));
+                if (interaction != result) {
+                    return interaction;
                 }
-
-                if (PgpDecryptVerifyResult.KEY_PASSHRASE_NEEDED == decryptVerifyResult.getStatus()) {
-                    // get PendingIntent for passphrase input, add it to given params and return to client
-                    Intent passphraseBundle =
-                            getPassphraseBundleIntent(data, decryptVerifyResult.getKeyIdPassphraseNeeded());
-                    return passphraseBundle;
-                } else if (PgpDecryptVerifyResult.SYMMETRIC_PASSHRASE_NEEDED ==
-                        decryptVerifyResult.getStatus()) {
-                    throw new PgpGeneralException("Decryption of symmetric content not supported by API!");
-                }
-
-                OpenPgpSignatureResult signatureResult = decryptVerifyResult.getSignatureResult();
-                if (signatureResult != null) {
-                    result.putExtra(OpenPgpApi.RESULT_SIGNATURE, signatureResult);
-
-                    if (signatureResult.getStatus() == OpenPgpSignatureResult.SIGNATURE_UNKNOWN_PUB_KEY) {
-                        // If signature is unknown we return an _additional_ PendingIntent
-                        // to retrieve the missing key
-                        Intent intent = new Intent(getBaseContext(), ImportKeysActivity.class);
-                        intent.setAction(ImportKeysActivity.ACTION_IMPORT_KEY_FROM_KEYSERVER_AND_RETURN);
-                        intent.putExtra(ImportKeysActivity.EXTRA_KEY_ID, signatureResult.getKeyId());
-                        intent.putExtra(ImportKeysActivity.EXTRA_PENDING_INTENT_DATA, data);
-
-                        PendingIntent pi = PendingIntent.getActivity(getBaseContext(), 0,
-                                intent,
-                                PendingIntent.FLAG_CANCEL_CURRENT);
-
-                        result.putExtra(OpenPgpApi.RESULT_INTENT, pi);
-                    }
-                }
-
             } finally {
                 is.close();
                 os.close();
@@ -413,6 +585,69 @@ public class OpenPgpService extends RemoteService {
         }
     }
 
+    /**
+     * Decrypts and verifies many messages, framed as described in BatchProcessor. Keyring
+     * lookups and cached passphrases are shared by all messages of the batch, and the
+     * allowed key ids are determined once for the whole batch by the caller.
+     */
+    private Intent decryptAndVerifyBatchImpl(final Intent data, ParcelFileDescriptor input,
+                                             ParcelFileDescriptor output,
+                                             final Set<Long> allowedKeyIds) {
+        try {
+            final BatchKeyRingLookup keyRingLookup = new BatchKeyRingLookup(new ProviderHelper(this));
+            // asks the passphrase cache service only once per key, rather than once per message
+            final PgpDecryptVerify.PassphraseCache passphraseCache =
+                    new PgpDecryptVerify.PassphraseCache() {
+                        private final HashMap<Long, String> mPassphrases = new HashMap<Long, String>();
+
+                        @Override
+                        public synchronized String getCachedPassphrase(long masterKeyId) {
+                            if (mPassphrases.containsKey(masterKeyId)) {
+                                return mPassphrases.get(masterKeyId);
+                            }
+                            String passphrase = PassphraseCacheService.getCachedPassphrase(
+                                    OpenPgpService.this, masterKeyId);
+                            // a missing passphrase is asked for again by the next message
+                            if (passphrase != null) {
+                                mPassphrases.put(masterKeyId, passphrase);
+                            }
+                            return passphrase;
+                        }
+                    };
+
+            InputStream is = RequestScheduler.wrapInput(
+                    new ParcelFileDescriptor.AutoCloseInputStream(input));
+            OutputStream os = RequestScheduler.wrapOutput(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(output));
+            Executor tasks = mScheduler.getTaskExecutor();
+            try {
+                return BatchProcessor.run(is, os, tasks, new BatchProcessor.Operation() {
+                    @Override
+                    public Intent process(byte[] item, OutputStream out) {
+                        Intent result = new Intent();
+                        try {
+                            Intent interaction = decryptAndVerify(keyRingLookup, passphraseCache,
+                                    new InputData(new ByteArrayInputStream(item), item.length),
+                                    out, data, allowedKeyIds, result);
+                            if (interaction != result) {
+                                return interaction;
+                            }
+                        } catch (Exception e) {
+                            return getErrorIntent(e.getMessage());
+                        }
+                        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+                        return result;
+                    }
+                });
+            } finally {
+                is.close();
+                os.close();
+            }
+        } catch (Exception e) {
+            return getErrorIntent(e.getMessage());
+        }
+    }
+
     private Intent getKeyImpl(Intent data) {
         try {
             long masterKeyId = data.getLongExtra(OpenPgpApi.EXTRA_KEY_ID, 0);
@@ -519,11 +754,29 @@ public class OpenPgpService extends RemoteService {
         return null;
     }
 
-    // TODO: multi-threading
+    private RequestScheduler mScheduler;
+
+    /** Interval in which a binder thread waiting for a request checks its client, in ms */
+    private static final long CLIENT_CHECK_INTERVAL = 1000;
+
+    private static boolean isProcessAlive(int pid) {
+        return new File("/proc/" + pid).exists();
+    }
+
+    private static IBinder getClientToken(Intent data) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return null;
+        }
+        Bundle extras = data.getExtras();
+        return extras != null ? extras.getBinder(EXTRA_CLIENT_TOKEN) : null;
+    }
+
     private final IOpenPgpService.Stub mBinder = new IOpenPgpService.Stub() {
 
         @Override
-        public Intent execute(Intent data, ParcelFileDescriptor input, ParcelFileDescriptor output) {
+        public Intent execute(final Intent data, final ParcelFileDescriptor input,
+                              final ParcelFileDescriptor output) {
+            // everything depending on the identity of the caller is done on the binder thread
             Intent errorResult = checkRequirements(data);
             if (errorResult != null) {
                 return errorResult;
@@ -540,30 +793,150 @@ public class OpenPgpService extends RemoteService {
                 return getCreateAccountIntent(data, accName);
             }
 
-            String action = data.getAction();
-            if (OpenPgpApi.ACTION_SIGN.equals(action)) {
-                return signImpl(data, input, output, accSettings);
-            } else if (OpenPgpApi.ACTION_ENCRYPT.equals(action)) {
-                return encryptAndSignImpl(data, input, output, accSettings, false);
-            } else if (OpenPgpApi.ACTION_SIGN_AND_ENCRYPT.equals(action)) {
-                return encryptAndSignImpl(data, input, output, accSettings, true);
-            } else if (OpenPgpApi.ACTION_DECRYPT_VERIFY.equals(action)) {
-                String currentPkg = getCurrentCallingPackage();
-                Set<Long> allowedKeyIds =
-                        mProviderHelper.getAllKeyIdsForApp(
-                                ApiAccounts.buildBaseUri(currentPkg));
-                return decryptAndVerifyImpl(data, input, output, allowedKeyIds);
-            } else if (OpenPgpApi.ACTION_GET_KEY.equals(action)) {
-                return getKeyImpl(data);
-            } else if (OpenPgpApi.ACTION_GET_KEY_IDS.equals(action)) {
-                return getKeyIdsImpl(data);
+            final String currentPkg = getCurrentCallingPackage();
+            final Set<Long> allowedKeyIds;
+            if (OpenPgpApi.ACTION_DECRYPT_VERIFY.equals(data.getAction())
+                    || ACTION_DECRYPT_VERIFY_BATCH.equals(data.getAction())) {
+                allowedKeyIds = mProviderHelper.getAllKeyIdsForApp(
+                        ApiAccounts.buildBaseUri(currentPkg));
             } else {
-                return null;
+                allowedKeyIds = null;
+            }
+
+            // the actual work is done by the scheduler, fair between all calling packages.
+            // pipes have no size, these requests move to the large lane once they are large
+            String action = data.getAction();
+            boolean large = ACTION_ENCRYPT_BATCH.equals(action)
+                    || ACTION_SIGN_AND_ENCRYPT_BATCH.equals(action)
+                    || ACTION_DECRYPT_VERIFY_BATCH.equals(action)
+                    || (input != null
+                            && input.getStatSize() > RequestScheduler.LARGE_PAYLOAD_SIZE);
+            final int callingPid = Binder.getCallingPid();
+            FutureTask<Intent> request;
+            try {
+                request = mScheduler.submit(currentPkg, large, new Callable<Intent>() {
+                    @Override
+                    public Intent call() {
+                        return executeImpl(data, input, output, accSettings, allowedKeyIds);
+                    }
+                });
+            } catch (RequestScheduler.TooManyRequestsException e) {
+                return getErrorIntent(e.getMessage());
+            }
+
+            final FutureTask<Intent> clientRequest = request;
+            IBinder clientToken = getClientToken(data);
+            IBinder.DeathRecipient deathRecipient = null;
+            if (clientToken != null) {
+                deathRecipient = new IBinder.DeathRecipient() {
+                    @Override
+                    public void binderDied() {
+                        Log.d(Constants.TAG, "Client " + currentPkg + " died, cancelling");
+                        clientRequest.cancel(true);
+                    }
+                };
+                try {
+                    clientToken.linkToDeath(deathRecipient, 0);
+                } catch (RemoteException e) {
+                    // already dead
+                    request.cancel(true);
+                    deathRecipient = null;
+                }
+            }
+
+            try {
+                if (deathRecipient != null) {
+                    return request.get();
+                }
+                // nobody tells us when the client dies, so check for it every now and then
+                while (true) {
+                    try {
+                        return request.get(CLIENT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        if (!isProcessAlive(callingPid)) {
+                            Log.d(Constants.TAG, "Client " + currentPkg + " died, cancelling");
+                            request.cancel(true);
+                            return getErrorIntent("Request was cancelled");
+                        }
+                    }
+                }
+            } catch (CancellationException e) {
+                return getErrorIntent("Request was cancelled");
+            } catch (InterruptedException e) {
+                request.cancel(true);
+                return getErrorIntent("Request was cancelled");
+            } catch (ExecutionException e) {
+                Log.e(Constants.TAG, "Request failed!", e.getCause());
+                return getErrorIntent(e.getCause().getMessage());
+            } finally {
+                if (deathRecipient != null) {
+                    clientToken.unlinkToDeath(deathRecipient, 0);
+                }
             }
         }
 
     };
 
+    private Intent executeImpl(Intent data, ParcelFileDescriptor input, ParcelFileDescriptor output,
+                               AccountSettings accSettings, Set<Long> allowedKeyIds) {
+        String action = data.getAction();
+        if (OpenPgpApi.ACTION_SIGN.equals(action)) {
+            return signImpl(data, input, output, accSettings);
+        } else if (OpenPgpApi.ACTION_ENCRYPT.equals(action)) {
+            return encryptAndSignImpl(data, input, output, accSettings, false);
+        } else if (OpenPgpApi.ACTION_SIGN_AND_ENCRYPT.equals(action)) {
+            return encryptAndSignImpl(data, input, output, accSettings, true);
+        } else if (ACTION_ENCRYPT_BATCH.equals(action)) {
+            return encryptAndSignBatchImpl(data, input, output, accSettings, false);
+        } else if (ACTION_SIGN_AND_ENCRYPT_BATCH.equals(action)) {
+            return encryptAndSignBatchImpl(data, input, output, accSettings, true);
+        } else if (OpenPgpApi.ACTION_DECRYPT_VERIFY.equals(action)) {
+            return decryptAndVerifyImpl(data, input, output, allowedKeyIds);
+        } else if (ACTION_DECRYPT_VERIFY_BATCH.equals(action)) {
+            return decryptAndVerifyBatchImpl(data, input, output, allowedKeyIds);
+        } else if (OpenPgpApi.ACTION_GET_KEY.equals(action)) {
+            return getKeyImpl(data);
+        } else if (OpenPgpApi.ACTION_GET_KEY_IDS.equals(action)) {
+            return getKeyIdsImpl(data);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns InputData for a request. The size is only known if the descriptor refers to a
+     * regular file, pipes are streamed until their end without assuming any size.
+     */
+    private InputData getInputData(ParcelFileDescriptor input, InputStream is) {
+        long size = input.getStatSize();
+        return size >= 0 ? new InputData(is, size) : new InputData(is);
+    }
+
+    private Intent getErrorIntent(String message) {
+        Intent result = new Intent();
+        result.putExtra(OpenPgpApi.RESULT_ERROR,
+                new OpenPgpError(OpenPgpError.GENERIC_ERROR, message));
+        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+        return result;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mScheduler = new RequestScheduler();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mScheduler.shutdown();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mScheduler.dump(writer);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -0,0 +1,469 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+import android.content.Intent;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs requests of remote clients on a bounded number of worker threads.
+ *
+ * Requests are split into two lanes by the size of their payload, each with its own
+ * workers, so a large file being encrypted never holds up small messages. Since remote
+ * clients usually pass pipes, the size is mostly unknown up front. Such requests start
+ * out in the small lane, and move to the large lane once they read more than
+ * LARGE_PAYLOAD_SIZE through wrapInput: their small lane worker is replaced by a new one
+ * right away, and they continue once one of the large lane's slots is free. Within a lane,
+ * queued requests are taken round-robin by calling package, so a single client can't
+ * starve all others by submitting many requests at once. The number of pending requests
+ * per package is bounded, further requests are rejected right away.
+ *
+ * Running requests are cancelled by interrupting their worker thread. Streams obtained
+ * through wrapInput and wrapOutput check for this on every read and write, and fail
+ * with an InterruptedIOException once the request was cancelled.
+ *
+ * Requests which split their work into parallel tasks, like batches, run these on the
+ * executor returned by getTaskExecutor, which all requests share. It has one thread per
+ * processor, so parallel work is bounded no matter how many requests run at once.
+ */
+public class RequestScheduler {
+
+    public static class TooManyRequestsException extends Exception {
+        public TooManyRequestsException(String message) {
+            super(message);
+        }
+    }
+
+    /** Requests with a payload larger than this run in the large lane */
+    public static final long LARGE_PAYLOAD_SIZE = 1024 * 1024;
+
+    /** Maximum number of queued and running requests per calling package */
+    private static final int MAX_PENDING_PER_PACKAGE = 8;
+
+    private static final int SMALL_LANE_THREADS = 2;
+    private static final int LARGE_LANE_THREADS = 1;
+
+    // requests in the large lane only run while holding one of its slots
+    private final Semaphore mLargeSlots = new Semaphore(LARGE_LANE_THREADS, true);
+
+    private final Lane mSmallLane = new Lane("small", SMALL_LANE_THREADS, null);
+    private final Lane mLargeLane = new Lane("large", LARGE_LANE_THREADS, mLargeSlots);
+
+    // the request running on the current worker thread
+    private static final ThreadLocal<Request> sCurrentRequest = new ThreadLocal<Request>();
+
+    // parallel tasks of all requests, its threads keep their pooled buffers between tasks
+    private final ExecutorService mTaskExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private int mCount = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "OpenPgpService-task-" + mCount++);
+                }
+            });
+
+    private final TreeMap<String, PackageStats> mStats = new TreeMap<String, PackageStats>();
+
+    /** Per package statistics, all times in milliseconds */
+    private static class PackageStats {
+        int mQueued;
+        int mRunning;
+        long mCompleted;
+        long mCancelled;
+        long mRejected;
+        long mTotalWait;
+        long mMaxWait;
+        long mTotalRun;
+        long mMaxRun;
+    }
+
+    private class Request extends FutureTask<Intent> {
+        final String mPackageName;
+        final Lane mLane;
+        final long mEnqueueTime = System.currentTimeMillis();
+        long mStartTime;
+        // set once a request of the small lane moved to the large lane, on its worker thread
+        boolean mPromoted = false;
+
+        Request(String packageName, Lane lane, Callable<Intent> callable) {
+            super(callable);
+            mPackageName = packageName;
+            mLane = lane;
+        }
+
+        @Override
+        public void run() {
+            synchronized (RequestScheduler.this) {
+                if (isDone()) {
+                    // cancelled while queued, this was accounted for in done()
+                    return;
+                }
+                mStartTime = System.currentTimeMillis();
+                PackageStats stats = getStats(mPackageName);
+                stats.mQueued -= 1;
+                stats.mRunning += 1;
+                long wait = mStartTime - mEnqueueTime;
+                stats.mTotalWait += wait;
+                stats.mMaxWait = Math.max(stats.mMaxWait, wait);
+            }
+            sCurrentRequest.set(this);
+            try {
+                super.run();
+            } finally {
+                sCurrentRequest.remove();
+                if (mPromoted) {
+                    mLargeSlots.release();
+                }
+            }
+        }
+
+        /**
+         * Moves this request from the small lane to the large lane, called on its worker
+         * thread. Blocks until a slot of the large lane is free.
+         */
+        void promote() throws InterruptedIOException {
+            if (mLane != mSmallLane || mPromoted) {
+                return;
+            }
+            Log.d(Constants.TAG, "Request of " + mPackageName + " is large, moving to "
+                    + mLargeLane.mName + " lane");
+            // this thread is busy for a while, the small lane needs a new one
+            mSmallLane.retireCurrentWorker();
+            try {
+                mLargeSlots.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Request was cancelled");
+            }
+            mPromoted = true;
+        }
+
+        @Override
+        protected void done() {
+            synchronized (RequestScheduler.this) {
+                PackageStats stats = getStats(mPackageName);
+                if (mStartTime == 0) {
+                    // never started, remove it from its queue
+                    stats.mQueued -= 1;
+                    mLane.remove(this);
+                } else {
+                    stats.mRunning -= 1;
+                    long run = System.currentTimeMillis() - mStartTime;
+                    stats.mTotalRun += run;
+                    stats.mMaxRun = Math.max(stats.mMaxRun, run);
+                }
+                if (isCancelled()) {
+                    stats.mCancelled += 1;
+                } else {
+                    stats.mCompleted += 1;
+                }
+            }
+        }
+    }
+
+    /** A set of worker threads, taking requests round-robin by package. */
+    private class Lane {
+        final String mName;
+        final Semaphore mSlots;
+        final LinkedHashMap<String, LinkedList<Request>> mQueues =
+                new LinkedHashMap<String, LinkedList<Request>>();
+        final LinkedList<Request> mRunning = new LinkedList<Request>();
+        // workers which finish their current request, and then leave
+        final HashSet<Thread> mRetired = new HashSet<Thread>();
+        int mWorkerCount = 0;
+        boolean mShutdown = false;
+
+        /**
+         * @param slots if not null, a slot is held while running each request, which may be
+         *              shared with requests moved here from another lane
+         */
+        Lane(String name, int threads, Semaphore slots) {
+            mName = name;
+            mSlots = slots;
+            for (int i = 0; i < threads; i++) {
+                startWorker();
+            }
+        }
+
+        synchronized void startWorker() {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "OpenPgpService-" + mName + "-" + mWorkerCount++);
+            worker.start();
+        }
+
+        /** Lets the current worker leave after its request, and starts one in its place. */
+        synchronized void retireCurrentWorker() {
+            mRetired.add(Thread.currentThread());
+            if (!mShutdown) {
+                startWorker();
+            }
+        }
+
+        synchronized boolean isRetired() {
+            return mRetired.remove(Thread.currentThread());
+        }
+
+        synchronized void enqueue(Request request) {
+            LinkedList<Request> queue = mQueues.get(request.mPackageName);
+            if (queue == null) {
+                queue = new LinkedList<Request>();
+                mQueues.put(request.mPackageName, queue);
+            }
+            queue.add(request);
+            notify();
+        }
+
+        synchronized void remove(Request request) {
+            LinkedList<Request> queue = mQueues.get(request.mPackageName);
+            if (queue != null && queue.remove(request) && queue.isEmpty()) {
+                mQueues.remove(request.mPackageName);
+            }
+        }
+
+        /** Takes the next request of the package which has waited longest for its turn. */
+        synchronized Request take() throws InterruptedException {
+            while (mQueues.isEmpty() && !mShutdown) {
+                wait();
+            }
+            if (mShutdown) {
+                return null;
+            }
+            Iterator<Map.Entry<String, LinkedList<Request>>> it = mQueues.entrySet().iterator();
+            Map.Entry<String, LinkedList<Request>> entry = it.next();
+            String packageName = entry.getKey();
+            LinkedList<Request> queue = entry.getValue();
+            it.remove();
+            Request request = queue.removeFirst();
+            if (!queue.isEmpty()) {
+                // re-insert at the end, so the other packages come first
+                mQueues.put(packageName, queue);
+            }
+            mRunning.add(request);
+            return request;
+        }
+
+        void work() {
+            try {
+                Request request;
+                while (!isRetired() && (request = take()) != null) {
+                    if (mSlots != null) {
+                        mSlots.acquire();
+                    }
+                    try {
+                        request.run();
+                    } finally {
+                        if (mSlots != null) {
+                            mSlots.release();
+                        }
+                        synchronized (this) {
+                            mRunning.remove(request);
+                        }
+                        // clear the interrupt of a cancelled request, not to affect the next one
+                        Thread.interrupted();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shutting down
+            }
+        }
+
+        synchronized int getQueueLength() {
+            int length = 0;
+            for (LinkedList<Request> queue : mQueues.values()) {
+                length += queue.size();
+            }
+            return length;
+        }
+
+        void shutdown() {
+            LinkedList<Request> requests = new LinkedList<Request>();
+            synchronized (this) {
+                mShutdown = true;
+                for (LinkedList<Request> queue : mQueues.values()) {
+                    requests.addAll(queue);
+                }
+                requests.addAll(mRunning);
+                notifyAll();
+            }
+            for (Request request : requests) {
+                request.cancel(true);
+            }
+        }
+    }
+
+    private PackageStats getStats(String packageName) {
+        PackageStats stats = mStats.get(packageName);
+        if (stats == null) {
+            stats = new PackageStats();
+            mStats.put(packageName, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Queues a request of a calling package.
+     *
+     * @param large whether the request is known to be large, e.g. by the size of its input.
+     *              Other requests are moved to the large lane once they turn out to be.
+     * @return a future for the result of the callable, which may be cancelled
+     * @throws TooManyRequestsException if the package already has too many pending requests
+     */
+    public FutureTask<Intent> submit(String packageName, boolean large,
+                                     Callable<Intent> callable) throws TooManyRequestsException {
+        Lane lane = large ? mLargeLane : mSmallLane;
+        Request request = new Request(packageName, lane, callable);
+
+        synchronized (this) {
+            PackageStats stats = getStats(packageName);
+            if (stats.mQueued + stats.mRunning >= MAX_PENDING_PER_PACKAGE) {
+                stats.mRejected += 1;
+                throw new TooManyRequestsException("Too many pending requests for " + packageName);
+            }
+            stats.mQueued += 1;
+        }
+
+        Log.d(Constants.TAG, "Queueing request of " + packageName + " in " + lane.mName + " lane");
+        lane.enqueue(request);
+        return request;
+    }
+
+    /**
+     * Returns the executor for parallel tasks of requests. Tasks still pending when their
+     * request is cancelled must be cancelled by the request.
+     */
+    public ExecutorService getTaskExecutor() {
+        return mTaskExecutor;
+    }
+
+    /** Cancels all pending requests and stops all worker threads. */
+    public void shutdown() {
+        mSmallLane.shutdown();
+        mLargeLane.shutdown();
+        mTaskExecutor.shutdownNow();
+    }
+
+    /** Prints queue depths and latencies per calling package. */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Queued requests: " + mSmallLane.mName + "=" + mSmallLane.getQueueLength()
+                + ", " + mLargeLane.mName + "=" + mLargeLane.getQueueLength());
+        for (Map.Entry<String, PackageStats> entry : mStats.entrySet()) {
+            PackageStats stats = entry.getValue();
+            long finished = Math.max(1, stats.mCompleted + stats.mCancelled);
+            writer.println(entry.getKey() + ":"
+                    + " queued=" + stats.mQueued
+                    + " running=" + stats.mRunning
+                    + " completed=" + stats.mCompleted
+                    + " cancelled=" + stats.mCancelled
+                    + " rejected=" + stats.mRejected
+                    + " avgWait=" + (stats.mTotalWait / finished) + "ms"
+                    + " maxWait=" + stats.mMaxWait + "ms"
+                    + " avgRun=" + (stats.mTotalRun / finished) + "ms"
+                    + " maxRun=" + stats.mMaxRun + "ms");
+        }
+    }
+
+    /**
+     * Wraps the input of a request, to fail reading once the request was cancelled, and to
+     * move the request to the large lane once it read more than LARGE_PAYLOAD_SIZE.
+     */
+    public static InputStream wrapInput(InputStream in) {
+        return new FilterInputStream(in) {
+            long mCount = 0;
+
+            @Override
+            public int read() throws IOException {
+                checkInterrupted();
+                int b = super.read();
+                if (b != -1) {
+                    count(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                checkInterrupted();
+                int n = super.read(buffer, offset, count);
+                if (n > 0) {
+                    count(n);
+                }
+                return n;
+            }
+
+            private void count(int n) throws InterruptedIOException {
+                boolean crossed = mCount <= LARGE_PAYLOAD_SIZE && mCount + n > LARGE_PAYLOAD_SIZE;
+                mCount += n;
+                Request request = sCurrentRequest.get();
+                if (crossed && request != null) {
+                    request.promote();
+                }
+            }
+        };
+    }
+
+    /** Wraps the output of a request, to fail writing once the request was cancelled. */
+    public static OutputStream wrapOutput(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int oneByte) throws IOException {
+                checkInterrupted();
+                super.write(oneByte);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                checkInterrupted();
+                // FilterOutputStream writes byte by byte otherwise
+                out.write(buffer, offset, count);
+            }
+        };
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Request was cancelled");
+        }
+    }
+
+}
@@ -60,10 +60,12 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.KeyDownloader;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.keyimport.KeybaseKeyserver;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.PgpResources;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.io.BufferedInputStream;
@@ -78,6 +80,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This Service contains all important long lasting operations for APG. It receives Intents with
@@ -198,14 +202,24 @@ public class KeychainIntentService extends IntentService
 
     private boolean mIsCanceled;
 
+    // parallel parts of operations, e.g. encrypting the session key for several recipients
+    private ExecutorService mTaskExecutor;
+
     public KeychainIntentService() {
         super("KeychainIntentService");
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mTaskExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
         this.mIsCanceled = true;
+        mTaskExecutor.shutdownNow();
     }
 
     /**
@@ -332,6 +346,7 @@ public class KeychainIntentService extends IntentService
                         .setSymmetricPassphrase(symmetricPassphrase)
                         .setSignatureMasterKeyId(signatureKeyId)
                         .setEncryptToSigner(true)
+                        .setExecutor(mTaskExecutor)
                         .setSignatureHashAlgorithm(
                                 Preferences.getPreferences(this).getDefaultHashAlgorithm())
                         .setSignaturePassphrase(
@@ -469,7 +484,8 @@ public class KeychainIntentService extends IntentService
                 builder.setProgressable(this);
 
                 builder.setAllowSymmetricDecryption(true)
-                        .setPassphrase(passphrase);
+                        .setPassphrase(passphrase)
+                        .setTempDir(getCacheDir());
 
                 PgpDecryptVerifyResult decryptVerifyResult = builder.build().execute();
 
@@ -587,38 +603,24 @@ public class KeychainIntentService extends IntentService
 
                 /* Operation */
                 int keysTotal = 3;
-                int keysCreated = 0;
                 setProgress(
                         getApplicationContext().getResources().
                                 getQuantityString(R.plurals.progress_generating, keysTotal),
-                        keysCreated,
+                        0,
                         keysTotal);
                 PgpKeyOperation keyOperations = new PgpKeyOperation(new ProgressScaler(this, 0, 100, 100));
 
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                // the three keys are independent, so they are generated concurrently
+                ArrayList<byte[]> keys = keyOperations.createKeys(Constants.choice.algorithm.rsa,
+                        4096, passphrase, new boolean[]{ true, false, false }, this);
 
-                byte[] buf;
-
-                buf = keyOperations.createKey(Constants.choice.algorithm.rsa,
-                        4096, passphrase, true);
-                os.write(buf);
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                for (byte[] key : keys) {
+                    os.write(key);
+                }
                 keyUsageList.add(UncachedSecretKey.CERTIFY_OTHER);
-                keysCreated++;
-                setProgress(keysCreated, keysTotal);
-
-                buf = keyOperations.createKey(Constants.choice.algorithm.rsa,
-                        4096, passphrase, false);
-                os.write(buf);
                 keyUsageList.add(UncachedSecretKey.ENCRYPT_COMMS | UncachedSecretKey.ENCRYPT_STORAGE);
-                keysCreated++;
-                setProgress(keysCreated, keysTotal);
-
-                buf = keyOperations.createKey(Constants.choice.algorithm.rsa,
-                        4096, passphrase, false);
-                os.write(buf);
                 keyUsageList.add(UncachedSecretKey.SIGN_DATA);
-                keysCreated++;
-                setProgress(keysCreated, keysTotal);
 
                 // TODO: default to one master for cert, one sub for encrypt and one sub
                 //       for sign
@@ -631,6 +633,9 @@ public class KeychainIntentService extends IntentService
                 OtherHelper.logDebugBundle(resultData, "resultData");
 
                 sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
+            } catch (PgpKeyOperation.KeyGenerationCanceledException e) {
+                // the user cancelled, nobody is waiting for a result
+                Log.d(Constants.TAG, "Key generation was canceled");
             } catch (Exception e) {
                 sendErrorToHandler(e);
             }
@@ -780,36 +785,20 @@ public class KeychainIntentService extends IntentService
             try {
                 ArrayList<ImportKeysListEntry> entries = data.getParcelableArrayList(DOWNLOAD_KEY_LIST);
 
-                // this downloads the keys and places them into the ImportKeysListEntry entries
+                // the keys are downloaded in parallel, and imported as they arrive
                 String keyServer = data.getString(DOWNLOAD_KEY_SERVER);
                 HkpKeyserver server = new HkpKeyserver(keyServer);
 
-                ArrayList<ParcelableKeyRing> keyRings = new ArrayList<ParcelableKeyRing>(entries.size());
-                for (ImportKeysListEntry entry : entries) {
-                    // if available use complete fingerprint for get request
-                    byte[] downloadedKeyBytes;
-                    if (entry.getFingerprintHex() != null) {
-                        downloadedKeyBytes = server.get("0x" + entry.getFingerprintHex()).getBytes();
-                    } else {
-                        downloadedKeyBytes = server.get(entry.getKeyIdHex()).getBytes();
-                    }
-
-                    // save key bytes in entry object for doing the
-                    // actual import afterwards
-                    keyRings.add(new ParcelableKeyRing(downloadedKeyBytes, entry.getFingerprintHex()));
+                KeyDownloader downloader = new KeyDownloader(server, entries);
+                Bundle resultData;
+                try {
+                    PgpImportExport pgpImportExport = new PgpImportExport(this, this);
+                    resultData = pgpImportExport.importKeyRings(downloader, downloader.size());
+                } finally {
+                    downloader.close();
                 }
 
-                Intent importIntent = new Intent(this, KeychainIntentService.class);
-                importIntent.setAction(ACTION_IMPORT_KEYRING);
-                Bundle importData = new Bundle();
-                importData.putParcelableArrayList(IMPORT_KEY_LIST, keyRings);
-                importIntent.putExtra(EXTRA_DATA, importData);
-                importIntent.putExtra(EXTRA_MESSENGER, mMessenger);
-
-                // now import it with this service
-                onHandleIntent(importIntent);
-
-                // result is handled in ACTION_IMPORT_KEYRING
+                sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
                 sendErrorToHandler(e);
             }
@@ -888,8 +877,8 @@ public class KeychainIntentService extends IntentService
         // contextualize the exception, if necessary
         String message;
         if (e instanceof PgpGeneralMsgIdException) {
-            e = ((PgpGeneralMsgIdException) e).getContextualized(this);
-            message = e.getMessage();
+            message = getString(PgpResources.getResourceId(
+                    ((PgpGeneralMsgIdException) e).getReason()));
         } else if (e instanceof PgpSignEncrypt.KeyExtractionException) {
             message = getString(R.string.error_could_not_extract_private_key);
         } else if (e instanceof PgpSignEncrypt.NoPassphraseException) {
@@ -969,8 +958,12 @@ public class KeychainIntentService extends IntentService
         setProgress(getString(resourceId), progress, max);
     }
 
+    public void setProgress(Step step, int progress, int max) {
+        setProgress(PgpResources.getResourceId(step), progress, max);
+    }
+
     public void setProgress(int progress, int max) {
-        setProgress(null, progress, max);
+        setProgress((String) null, progress, max);
     }
 
     @Override
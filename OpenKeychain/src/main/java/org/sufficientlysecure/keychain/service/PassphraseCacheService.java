@@ -21,32 +21,42 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.Binder;
+import android.content.ServiceConnection;
+import android.database.ContentObserver;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
-import android.support.v4.util.LongSparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.pgp.PrivateKeyCache;
 import org.sufficientlysecure.keychain.pgp.WrappedSecretKeyRing;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.Log;
 
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This service runs in its own process, but is available to all other processes as the main
  * passphrase cache. Use the static methods addCachedPassphrase and getCachedPassphrase for
  * convenience.
+ *
+ * Lookups are done through a persistent binding to IPassphraseCacheService, so a cache hit is
+ * a single synchronous binder call. Only the very first lookup of a process on its main thread,
+ * before the binding is established, falls back to sending an intent and waiting for the reply.
  */
 public class PassphraseCacheService extends Service {
     public static final String TAG = Constants.TAG + ": PassphraseCacheService";
@@ -67,16 +77,79 @@ public class PassphraseCacheService extends Service {
     private static final int REQUEST_ID = 0;
     private static final long DEFAULT_TTL = 15;
 
+    /** How long a background thread waits for the binding to the cache process, in ms */
+    private static final long BIND_TIMEOUT = 3000;
+
     private BroadcastReceiver mIntentReceiver;
 
-    private LongSparseArray<String> mPassphraseCache = new LongSparseArray<String>();
+    // a null handler delivers notifications on a binder thread, independent of any looper
+    private final ContentObserver mKeyRingObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mNoPassphrase.clear();
+        }
+    };
+
+    /** Cached passphrases by key id, accessed from the main thread and binder threads */
+    private final ConcurrentHashMap<Long, CachedPassphrase> mPassphraseCache =
+            new ConcurrentHashMap<Long, CachedPassphrase>();
+
+    /**
+     * Key ids known to have no passphrase at all. This saves loading the keyring and trying
+     * an empty passphrase on every lookup. An entry is dropped whenever a passphrase is
+     * cached for the key, and all of them are dropped on every change of a keyring, since
+     * it may have been deleted and imported again with a passphrase.
+     */
+    private final ConcurrentHashMap<Long, Boolean> mNoPassphrase = new ConcurrentHashMap<Long, Boolean>();
+
+    /** Time of the currently scheduled expiry alarm, or Long.MAX_VALUE if there is none */
+    private long mScheduledExpiry = Long.MAX_VALUE;
 
     Context mContext;
 
+    private static class CachedPassphrase {
+        final String mPassphrase;
+        final long mTtl;
+        volatile long mExpiry;
+
+        CachedPassphrase(String passphrase, long ttl) {
+            mPassphrase = passphrase;
+            mTtl = ttl;
+            touch();
+        }
+
+        /** Resets the cache life cycle of this passphrase */
+        void touch() {
+            mExpiry = mTtl > 0 ? System.currentTimeMillis() + (mTtl * 1000) : Long.MAX_VALUE;
+        }
+    }
+
+    private static final Object sServiceLock = new Object();
+    private static IPassphraseCacheService sService;
+    private static boolean sBound = false;
+
+    private static final ServiceConnection sServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            synchronized (sServiceLock) {
+                sService = IPassphraseCacheService.Stub.asInterface(service);
+                sServiceLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // the cache process died, the binding is kept and reconnects once it is recreated
+            synchronized (sServiceLock) {
+                sService = null;
+            }
+        }
+    };
+
     /**
      * This caches a new passphrase in memory by sending a new command to the service. An android
      * service is only run once. Thus, when the service is already started, new commands just add
-     * new events to the alarm manager for new passphrases to let them timeout in the future.
+     * new passphrases and reschedule the expiry alarm if needed.
      *
      * @param context
      * @param keyId
@@ -95,8 +168,8 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Gets a cached passphrase from memory by sending an intent to the service. This method is
-     * designed to wait until the service returns the passphrase.
+     * Gets a cached passphrase from memory. This method is designed to wait until the service
+     * returns the passphrase.
      *
      * @param context
      * @param keyId
@@ -105,6 +178,48 @@ public class PassphraseCacheService extends Service {
     public static String getCachedPassphrase(Context context, long keyId) {
         Log.d(TAG, "getCachedPassphrase() get masterKeyId for " + keyId);
 
+        IPassphraseCacheService service = getService(context);
+        if (service != null) {
+            try {
+                return service.getCachedPassphrase(keyId);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Binder call to passphrase cache failed, falling back to intent", e);
+            }
+        }
+
+        return getCachedPassphraseByIntent(context, keyId);
+    }
+
+    /**
+     * Returns the binder interface of the cache process, binding to it first if required.
+     * Returns null if the binding is not established yet and we can't wait for it, because
+     * onServiceConnected is delivered on the main thread.
+     */
+    private static IPassphraseCacheService getService(Context context) {
+        synchronized (sServiceLock) {
+            if (!sBound) {
+                Intent intent = new Intent(context, PassphraseCacheService.class);
+                sBound = context.getApplicationContext().bindService(
+                        intent, sServiceConnection, Context.BIND_AUTO_CREATE);
+            }
+
+            if (sService == null && sBound && Looper.myLooper() != Looper.getMainLooper()) {
+                try {
+                    sServiceLock.wait(BIND_TIMEOUT);
+                } catch (InterruptedException e) {
+                    // just fall through
+                }
+            }
+
+            return sService;
+        }
+    }
+
+    /**
+     * Gets a cached passphrase by sending an intent to the service and waiting for the
+     * reply. Only used until the binding to the service is established.
+     */
+    private static String getCachedPassphraseByIntent(Context context, long keyId) {
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
 
@@ -151,21 +266,29 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Internal implementation to get cached passphrase.
+     * Internal implementation to get cached passphrase. Called on the main thread for intents
+     * and on binder threads for calls through IPassphraseCacheService.
      *
      * @param keyId
      * @return
      */
     private String getCachedPassphraseImpl(long keyId) {
-        // passphrase for symmetric encryption?
+        // get cached passphrase, this also covers symmetric encryption
+        CachedPassphrase cached = mPassphraseCache.get(keyId);
+        if (cached != null && cached.mExpiry > System.currentTimeMillis()) {
+            // reset the cache life cycle, the expiry alarm picks this up when it fires
+            Log.d(TAG, "Cache passphrase again when getting it!");
+            cached.touch();
+            return cached.mPassphrase;
+        }
+
         if (keyId == Constants.key.symmetric) {
-            Log.d(TAG, "getCachedPassphraseImpl() for symmetric encryption");
-            String cachedPassphrase = mPassphraseCache.get(Constants.key.symmetric);
-            if (cachedPassphrase == null) {
-                return null;
-            }
-            addCachedPassphrase(this, Constants.key.symmetric, cachedPassphrase);
-            return cachedPassphrase;
+            Log.d(TAG, "getCachedPassphraseImpl() for symmetric encryption, not cached");
+            return null;
+        }
+
+        if (mNoPassphrase.containsKey(keyId)) {
+            return "";
         }
 
         // try to get master key id which is used as an identifier for cached passphrases
@@ -173,26 +296,17 @@ public class PassphraseCacheService extends Service {
             Log.d(TAG, "getCachedPassphraseImpl() for masterKeyId " + keyId);
             WrappedSecretKeyRing key = new ProviderHelper(this).getWrappedSecretKeyRing(
                     KeychainContract.KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(keyId));
-            // no passphrase needed? just add empty string and return it, then
+            // no passphrase needed? remember that and return empty string
             if (!key.hasPassphrase()) {
-                Log.d(Constants.TAG, "Key has no passphrase! Caches and returns empty passphrase!");
+                Log.d(Constants.TAG, "Key has no passphrase! Remembers and returns empty passphrase!");
 
-                addCachedPassphrase(this, keyId, "");
+                mNoPassphrase.put(keyId, true);
                 return "";
             }
 
-            // get cached passphrase
-            String cachedPassphrase = mPassphraseCache.get(keyId);
-            if (cachedPassphrase == null) {
-                Log.d(TAG, "Passphrase not (yet) cached, returning null");
-                // not really an error, just means the passphrase is not cached but not empty either
-                return null;
-            }
-
-            // set it again to reset the cache life cycle
-            Log.d(TAG, "Cache passphrase again when getting it!");
-            addCachedPassphrase(this, keyId, cachedPassphrase);
-            return cachedPassphrase;
+            Log.d(TAG, "Passphrase not (yet) cached, returning null");
+            // not really an error, just means the passphrase is not cached but not empty either
+            return null;
 
         } catch (ProviderHelper.NotFoundException e) {
             Log.e(TAG, "Passphrase for unknown key was requested!");
@@ -203,7 +317,7 @@ public class PassphraseCacheService extends Service {
     /**
      * Register BroadcastReceiver that is unregistered when service is destroyed. This
      * BroadcastReceiver hears on intents with ACTION_PASSPHRASE_CACHE_SERVICE to then timeout
-     * specific passphrases in memory.
+     * expired passphrases in memory.
      */
     private void registerReceiver() {
         if (mIntentReceiver == null) {
@@ -215,8 +329,7 @@ public class PassphraseCacheService extends Service {
                     Log.d(TAG, "Received broadcast...");
 
                     if (action.equals(BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE)) {
-                        long keyId = intent.getLongExtra(EXTRA_KEY_ID, -1);
-                        timeout(context, keyId);
+                        timeout();
                     }
                 }
             };
@@ -228,21 +341,39 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Build pending intent that is executed by alarm manager to time out a specific passphrase
+     * Build pending intent that is executed by alarm manager to time out expired passphrases.
+     * There is only ever one of these, scheduled for the earliest expiry.
      *
      * @param context
-     * @param keyId
      * @return
      */
-    private static PendingIntent buildIntent(Context context, long keyId) {
+    private static PendingIntent buildIntent(Context context) {
         Intent intent = new Intent(BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE);
-        intent.putExtra(EXTRA_KEY_ID, keyId);
         PendingIntent sender = PendingIntent.getBroadcast(context, REQUEST_ID, intent,
-                PendingIntent.FLAG_CANCEL_CURRENT);
+                PendingIntent.FLAG_UPDATE_CURRENT);
 
         return sender;
     }
 
+    /**
+     * Schedules the single expiry alarm for the earliest expiry of all cached passphrases,
+     * unless it is already scheduled at or before that time.
+     */
+    private synchronized void scheduleExpiry() {
+        long earliest = Long.MAX_VALUE;
+        for (CachedPassphrase cached : mPassphraseCache.values()) {
+            earliest = Math.min(earliest, cached.mExpiry);
+        }
+
+        if (earliest == Long.MAX_VALUE || earliest >= mScheduledExpiry) {
+            return;
+        }
+
+        AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
+        am.set(AlarmManager.RTC_WAKEUP, earliest, buildIntent(this));
+        mScheduledExpiry = earliest;
+    }
+
     /**
      * Executed when service is started by intent
      */
@@ -250,9 +381,6 @@ public class PassphraseCacheService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand()");
 
-        // register broadcastreceiver
-        registerReceiver();
-
         if (intent != null && intent.getAction() != null) {
             if (ACTION_PASSPHRASE_CACHE_ADD.equals(intent.getAction())) {
                 long ttl = intent.getLongExtra(EXTRA_TTL, DEFAULT_TTL);
@@ -264,14 +392,11 @@ public class PassphraseCacheService extends Service {
                                 + keyId + ", ttl: " + ttl);
 
                 // add keyId and passphrase to memory
-                mPassphraseCache.put(keyId, passphrase);
+                mPassphraseCache.put(keyId, new CachedPassphrase(passphrase, ttl));
+                // the passphrase may just have been changed, so forget what we knew about it
+                mNoPassphrase.remove(keyId);
 
-                if (ttl > 0) {
-                    // register new alarm with keyId for this passphrase
-                    long triggerTime = new Date().getTime() + (ttl * 1000);
-                    AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
-                    am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, keyId));
-                }
+                scheduleExpiry();
             } else if (ACTION_PASSPHRASE_CACHE_GET.equals(intent.getAction())) {
                 long keyId = intent.getLongExtra(EXTRA_KEY_ID, -1);
                 Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
@@ -296,22 +421,38 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Called when one specific passphrase for keyId timed out
-     *
-     * @param context
-     * @param keyId
+     * Called when the expiry alarm fires, removes all passphrases which timed out
      */
-    private void timeout(Context context, long keyId) {
-        // remove passphrase corresponding to keyId from memory
-        mPassphraseCache.remove(keyId);
+    private void timeout() {
+        long now = System.currentTimeMillis();
+
+        // remove passphrases which timed out from memory
+        ArrayList<Long> expired = new ArrayList<Long>();
+        Iterator<Map.Entry<Long, CachedPassphrase>> it = mPassphraseCache.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, CachedPassphrase> entry = it.next();
+            if (entry.getValue().mExpiry <= now) {
+                Log.d(TAG, "Timeout of keyId " + entry.getKey() + ", removed from memory!");
+                it.remove();
+                expired.add(entry.getKey());
+            }
+        }
 
-        Log.d(TAG, "Timeout of keyId " + keyId + ", removed from memory!");
+        // keys unlocked with these passphrases are cached in other processes
+        if (!expired.isEmpty()) {
+            long[] keyIds = new long[expired.size()];
+            for (int i = 0; i < keyIds.length; i++) {
+                keyIds[i] = expired.get(i);
+            }
+            PrivateKeyCache.broadcastInvalidate(this, keyIds);
+        }
 
-        // stop whole service if no cached passphrases remaining
-        if (mPassphraseCache.size() == 0) {
-            Log.d(TAG, "No passphrases remaining in memory, stopping service!");
-            stopSelf();
+        synchronized (this) {
+            mScheduledExpiry = Long.MAX_VALUE;
         }
+
+        // the service keeps running while other processes are bound to it, anyways
+        scheduleExpiry();
     }
 
     @Override
@@ -319,6 +460,12 @@ public class PassphraseCacheService extends Service {
         super.onCreate();
         mContext = this;
         Log.d(Constants.TAG, "PassphraseCacheService, onCreate()");
+
+        // register broadcastreceiver
+        registerReceiver();
+
+        getContentResolver().registerContentObserver(
+                KeychainContract.KeyRings.CONTENT_URI, true, mKeyRingObserver);
     }
 
     @Override
@@ -327,6 +474,7 @@ public class PassphraseCacheService extends Service {
         Log.d(Constants.TAG, "PassphraseCacheService, onDestroy()");
 
         unregisterReceiver(mIntentReceiver);
+        getContentResolver().unregisterContentObserver(mKeyRingObserver);
     }
 
     @Override
@@ -334,12 +482,11 @@ public class PassphraseCacheService extends Service {
         return mBinder;
     }
 
-    public class PassphraseCacheBinder extends Binder {
-        public PassphraseCacheService getService() {
-            return PassphraseCacheService.this;
+    private final IPassphraseCacheService.Stub mBinder = new IPassphraseCacheService.Stub() {
+        @Override
+        public String getCachedPassphrase(long keyId) {
+            return getCachedPassphraseImpl(keyId);
         }
-    }
-
-    private final IBinder mBinder = new PassphraseCacheBinder();
+    };
 
 }
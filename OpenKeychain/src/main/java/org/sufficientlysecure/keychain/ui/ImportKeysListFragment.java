@@ -33,6 +33,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.helper.Preferences;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.ui.adapter.AsyncTaskResultWrapper;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysAdapter;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
@@ -42,6 +43,7 @@ import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListServerLoader;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.PgpResources;
 
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
@@ -71,6 +73,35 @@ public class ImportKeysListFragment extends ListFragment implements
 
     private LongSparseArray<ParcelableKeyRing> mCachedKeyData;
 
+    /** Shows the progress of reading a key file, until the first entries are delivered */
+    private Progressable mReadProgress = new Progressable() {
+        @Override
+        public void setProgress(String message, int current, int total) {
+            if (!isAdded() || mAdapter.getCount() > 0) {
+                return;
+            }
+            setEmptyText(message + " " + (current * 100 / total) + "%");
+            setListShownNoAnimation(true);
+        }
+
+        @Override
+        public void setProgress(int resourceId, int current, int total) {
+            if (isAdded()) {
+                setProgress(getString(resourceId), current, total);
+            }
+        }
+
+        @Override
+        public void setProgress(Step step, int current, int total) {
+            setProgress(PgpResources.getResourceId(step), current, total);
+        }
+
+        @Override
+        public void setProgress(int current, int total) {
+            setProgress(Step.READING_DATA, current, total);
+        }
+    };
+
     public byte[] getKeyBytes() {
         return mKeyBytes;
     }
@@ -226,7 +257,9 @@ public class ImportKeysListFragment extends ListFragment implements
         switch (id) {
             case LOADER_ID_BYTES: {
                 InputData inputData = getInputData(mKeyBytes, mDataUri);
-                return new ImportKeysListLoader(mActivity, inputData);
+                // keep references into the file rather than the keyrings themselves
+                Uri sourceUri = mKeyBytes == null ? mDataUri : null;
+                return new ImportKeysListLoader(mActivity, inputData, sourceUri, mReadProgress);
             }
             case LOADER_ID_SERVER_QUERY: {
                 return new ImportKeysListServerLoader(getActivity(), mServerQuery, mKeyServer);
@@ -248,6 +281,9 @@ public class ImportKeysListFragment extends ListFragment implements
 
         Log.d(Constants.TAG, "data: " + data.getResult());
 
+        // reset the empty text, it may have been used to show progress
+        setEmptyText(mActivity.getString(R.string.error_nothing_import));
+
         // swap in the real data!
         mAdapter.setData(data.getResult());
         mAdapter.notifyDataSetChanged();
@@ -30,7 +30,6 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.Messenger;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.ActionBarActivity;
@@ -62,6 +61,8 @@ import org.sufficientlysecure.keychain.helper.ExportHelper;
 import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.ui.adapter.KeysetPagingLoader;
 import org.sufficientlysecure.keychain.ui.dialog.DeleteKeyDialogFragment;
 import org.sufficientlysecure.keychain.util.Highlighter;
 import org.sufficientlysecure.keychain.util.Log;
@@ -83,8 +84,21 @@ public class KeyListFragment extends LoaderFragment
     private KeyListAdapter mAdapter;
     private StickyListHeadersListView mStickyList;
 
+    /** Time to wait for further keystrokes before searching, in milliseconds */
+    private static final long SEARCH_DELAY = 250;
+
     private String mQuery;
     private SearchView mSearchView;
+    // whether all rows should be checked, even those loaded later on
+    private boolean mSelectAll = false;
+    private final Handler mSearchHandler = new Handler();
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // restarting abandons a query which may still be running
+            getLoaderManager().restartLoader(0, null, KeyListFragment.this);
+        }
+    };
     // empty list layout
     private BootstrapButton mButtonEmptyCreate;
     private BootstrapButton mButtonEmptyImport;
@@ -137,6 +151,8 @@ public class KeyListFragment extends LoaderFragment
         super.onActivityCreated(savedInstanceState);
 
         mStickyList.setOnItemClickListener(this);
+        mStickyList.setOnScrollListener(
+                new KeysetPagingLoader.PrefetchScrollListener(getLoaderManager(), 0));
         mStickyList.setAreHeadersSticky(true);
         mStickyList.setDrawingListUnderStickyHeader(false);
         mStickyList.setFastScrollEnabled(true);
@@ -187,9 +203,12 @@ public class KeyListFragment extends LoaderFragment
                             break;
                         }
                         case R.id.menu_key_list_multi_select_all: {
-                            // select all
-                            for (int i = 0; i < mStickyList.getCount(); i++) {
-                                mStickyList.setItemChecked(i, true);
+                            // select all, including rows which are not loaded yet
+                            mSelectAll = true;
+                            selectAll();
+                            Loader<Cursor> loader = getLoaderManager().getLoader(0);
+                            if (loader instanceof KeysetPagingLoader) {
+                                ((KeysetPagingLoader) loader).loadAll();
                             }
                             break;
                         }
@@ -199,6 +218,7 @@ public class KeyListFragment extends LoaderFragment
 
                 @Override
                 public void onDestroyActionMode(ActionMode mode) {
+                    mSelectAll = false;
                     mAdapter.clearSelection();
                 }
 
@@ -252,34 +272,30 @@ public class KeyListFragment extends LoaderFragment
     static final int INDEX_VERIFIED = 5;
     static final int INDEX_HAS_ANY_SECRET = 6;
 
-    static final String ORDER =
-            KeyRings.HAS_ANY_SECRET + " DESC, " + KeyRings.USER_ID + " ASC";
+    // secret keys first, then by user id. the master key id makes the order unique for paging
+    static final KeysetPagingLoader.SortKey[] ORDER = new KeysetPagingLoader.SortKey[]{
+            new KeysetPagingLoader.SortKey(Tables.KEY_RING_SUMMARY + "." + KeyRings.HAS_ANY_SECRET,
+                    KeyRings.HAS_ANY_SECRET, true, true),
+            new KeysetPagingLoader.SortKey(Tables.USER_IDS + "." + KeyRings.USER_ID,
+                    KeyRings.USER_ID, false, false),
+            new KeysetPagingLoader.SortKey(Tables.KEYS + "." + KeyRings.MASTER_KEY_ID,
+                    KeyRings.MASTER_KEY_ID, true, false)
+    };
 
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri baseUri = KeyRings.buildUnifiedKeyRingsUri();
-        String where = null;
-        String whereArgs[] = null;
-        if (mQuery != null) {
-            String[] words = mQuery.trim().split("\\s+");
-            whereArgs = new String[words.length];
-            for (int i = 0; i < words.length; ++i) {
-                if (where == null) {
-                    where = "";
-                } else {
-                    where += " AND ";
-                }
-                where += KeyRings.USER_ID + " LIKE ?";
-                whereArgs[i] = "%" + words[i] + "%";
-            }
-        }
-
-        // Now create and return a CursorLoader that will take care of
-        // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, PROJECTION, where, whereArgs, ORDER);
+        // searches go through the full text index, which matches words of all user ids,
+        // key ids and fingerprints by prefix
+        Uri baseUri = mQuery != null
+                ? KeyRings.buildUnifiedKeyRingsFindByTextUri(mQuery)
+                : KeyRings.buildUnifiedKeyRingsUri();
+
+        // Now create and return a loader that will take care of
+        // creating a Cursor for the data being displayed, one page at a time.
+        return new KeysetPagingLoader(getActivity(), baseUri, PROJECTION, null, null, ORDER);
     }
 
     @Override
@@ -288,6 +304,10 @@ public class KeyListFragment extends LoaderFragment
         // old cursor once we return.)
         mAdapter.setSearchQuery(mQuery);
         mAdapter.swapCursor(data);
+        if (mSelectAll) {
+            // further pages of a select all came in
+            selectAll();
+        }
 
         mStickyList.setAdapter(mAdapter);
 
@@ -310,6 +330,12 @@ public class KeyListFragment extends LoaderFragment
         mAdapter.swapCursor(null);
     }
 
+    private void selectAll() {
+        for (int i = 0; i < mStickyList.getCount(); i++) {
+            mStickyList.setItemChecked(i, true);
+        }
+    }
+
     /**
      * On click on item, start key view activity
      */
@@ -390,6 +416,7 @@ public class KeyListFragment extends LoaderFragment
             public boolean onMenuItemActionCollapse(MenuItem item) {
                 mQuery = null;
                 mSearchView.setQuery("", true);
+                mSearchHandler.removeCallbacks(mSearchRunnable);
                 getLoaderManager().restartLoader(0, null, KeyListFragment.this);
                 return true;
             }
@@ -407,12 +434,19 @@ public class KeyListFragment extends LoaderFragment
     public boolean onQueryTextChange(String s) {
         // Called when the action bar search text has changed.  Update
         // the search filter, and restart the loader to do a new query
-        // with this filter.
+        // with this filter once typing pauses.
         mQuery = !TextUtils.isEmpty(s) ? s : null;
-        getLoaderManager().restartLoader(0, null, this);
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        mSearchHandler.postDelayed(mSearchRunnable, SEARCH_DELAY);
         return true;
     }
 
+    @Override
+    public void onDestroyView() {
+        mSearchHandler.removeCallbacks(mSearchRunnable);
+        super.onDestroyView();
+    }
+
     /**
      * Implements StickyListHeadersAdapter from library
      */
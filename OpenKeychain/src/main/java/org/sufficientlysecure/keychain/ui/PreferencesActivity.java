@@ -32,6 +32,7 @@ import org.spongycastle.openpgp.PGPEncryptedData;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.pgp.PrivateKeyCache;
 import org.sufficientlysecure.keychain.ui.widget.IntegerListPreference;
 
 import java.util.List;
@@ -282,6 +283,9 @@ public class PreferencesActivity extends PreferenceActivity {
                         mPassphraseCacheTtl.setValue(newValue.toString());
                         mPassphraseCacheTtl.setSummary(mPassphraseCacheTtl.getEntry());
                         sPreferences.setPassphraseCacheTtl(Integer.parseInt(newValue.toString()));
+                        // unlocked keys are cached in other processes, too
+                        PrivateKeyCache.broadcastTtl(preference.getContext(),
+                                Integer.parseInt(newValue.toString()));
                         return false;
                     }
                 });
@@ -24,7 +24,6 @@ import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.text.Editable;
 import android.text.TextUtils;
@@ -44,6 +43,7 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.compatibility.ListFragmentWorkaround;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.ui.adapter.KeysetPagingLoader;
 import org.sufficientlysecure.keychain.ui.adapter.SelectKeyCursorAdapter;
 
 import java.util.Vector;
@@ -55,6 +55,7 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
     private SelectKeyCursorAdapter mAdapter;
     private EditText mSearchView;
     private long mSelectedMasterKeyIds[];
+    private boolean mPreselected = false;
     private String mQuery;
 
     // copied from ListFragment
@@ -168,6 +169,8 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
         super.onActivityCreated(savedInstanceState);
 
         getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
+        getListView().setOnScrollListener(
+                new KeysetPagingLoader.PrefetchScrollListener(getLoaderManager(), 0));
 
         // Give some text to display if there is no data. In a real
         // application this would come from a resource.
@@ -274,10 +277,31 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
             inMasterKeyList += ")";
         }
 
-        String orderBy = KeyRings.USER_ID + " ASC";
+        // the master key id makes the order unique for paging
+        KeysetPagingLoader.SortKey[] order = new KeysetPagingLoader.SortKey[]{
+                new KeysetPagingLoader.SortKey(Tables.USER_IDS + "." + KeyRings.USER_ID,
+                        KeyRings.USER_ID, false, false),
+                new KeysetPagingLoader.SortKey(Tables.KEYS + "." + KeyRings.MASTER_KEY_ID,
+                        KeyRings.MASTER_KEY_ID, true, false)
+        };
         if (inMasterKeyList != null) {
             // sort by selected master keys
-            orderBy = inMasterKeyList + " DESC, " + orderBy;
+            final long[] selectedMasterKeyIds = mSelectedMasterKeyIds;
+            KeysetPagingLoader.SortKey selected = new KeysetPagingLoader.SortKey(
+                    inMasterKeyList, KeyRings.MASTER_KEY_ID, true, true) {
+                @Override
+                protected String getValue(Cursor cursor) {
+                    long masterKeyId = cursor.getLong(
+                            cursor.getColumnIndexOrThrow(KeyRings.MASTER_KEY_ID));
+                    for (long selectedMasterKeyId : selectedMasterKeyIds) {
+                        if (selectedMasterKeyId == masterKeyId) {
+                            return "1";
+                        }
+                    }
+                    return "0";
+                }
+            };
+            order = new KeysetPagingLoader.SortKey[]{ selected, order[0], order[1] };
         }
         String where = null;
         String whereArgs[] = null;
@@ -295,9 +319,9 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
             }
         }
 
-        // Now create and return a CursorLoader that will take care of
-        // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, projection, where, whereArgs, orderBy);
+        // Now create and return a loader that will take care of
+        // creating a Cursor for the data being displayed, one page at a time.
+        return new KeysetPagingLoader(getActivity(), baseUri, projection, where, whereArgs, order);
     }
 
     @Override
@@ -314,8 +338,11 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
             setListShownNoAnimation(true);
         }
 
-        // preselect given master keys
-        preselectMasterKeyIds(mSelectedMasterKeyIds);
+        // preselect given master keys, only once as further pages come in later
+        if (!mPreselected) {
+            mPreselected = true;
+            preselectMasterKeyIds(mSelectedMasterKeyIds);
+        }
     }
 
     @Override
@@ -24,7 +24,6 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.ListFragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.view.View;
 import android.widget.AdapterView;
@@ -33,6 +32,8 @@ import android.widget.ListView;
 
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.ui.adapter.KeysetPagingLoader;
 import org.sufficientlysecure.keychain.ui.adapter.SelectKeyCursorAdapter;
 
 public class SelectSecretKeyFragment extends ListFragment implements
@@ -90,6 +91,8 @@ public class SelectSecretKeyFragment extends ListFragment implements
                 mActivity.afterListSelection(result);
             }
         });
+        listView.setOnScrollListener(
+                new KeysetPagingLoader.PrefetchScrollListener(getLoaderManager(), 0));
 
         // Give some text to display if there is no data. In a real
         // application this would come from a resource.
@@ -130,9 +133,17 @@ public class SelectSecretKeyFragment extends ListFragment implements
 
         String where = KeyRings.HAS_ANY_SECRET + " = 1";
 
-        // Now create and return a CursorLoader that will take care of
-        // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, projection, where, null, null);
+        // the master key id makes the order unique for paging
+        KeysetPagingLoader.SortKey[] order = new KeysetPagingLoader.SortKey[]{
+                new KeysetPagingLoader.SortKey(Tables.USER_IDS + "." + KeyRings.USER_ID,
+                        KeyRings.USER_ID, false, false),
+                new KeysetPagingLoader.SortKey(Tables.KEYS + "." + KeyRings.MASTER_KEY_ID,
+                        KeyRings.MASTER_KEY_ID, true, false)
+        };
+
+        // Now create and return a loader that will take care of
+        // creating a Cursor for the data being displayed, one page at a time.
+        return new KeysetPagingLoader(getActivity(), baseUri, projection, where, null, order);
     }
 
     @Override
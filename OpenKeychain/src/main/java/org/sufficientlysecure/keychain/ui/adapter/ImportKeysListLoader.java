@@ -18,20 +18,23 @@
 package org.sufficientlysecure.keychain.ui.adapter;
 
 import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.util.LongSparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
 
-import java.io.BufferedInputStream;
 import java.util.ArrayList;
-import java.util.List;
 
 public class ImportKeysListLoader
         extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
@@ -52,17 +55,36 @@ public class ImportKeysListLoader
         }
     }
 
+    /** Number of keyrings after which the entries read so far are delivered to the ui */
+    private static final int PAGE_SIZE = 100;
+
     final Context mContext;
     final InputData mInputData;
+    final Uri mSourceUri;
+    final Progressable mProgressable;
+
+    final Handler mHandler = new Handler(Looper.getMainLooper());
 
     ArrayList<ImportKeysListEntry> mData = new ArrayList<ImportKeysListEntry>();
     LongSparseArray<ParcelableKeyRing> mParcelableRings = new LongSparseArray<ParcelableKeyRing>();
     AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
     public ImportKeysListLoader(Context context, InputData inputData) {
+        this(context, inputData, null, null);
+    }
+
+    /**
+     * @param sourceUri if the input data was read from this uri, only references into it are
+     *                  kept instead of the encoded keyrings. May be null.
+     * @param progressable receives progress updates on the main thread. May be null.
+     */
+    public ImportKeysListLoader(Context context, InputData inputData, Uri sourceUri,
+                                Progressable progressable) {
         super(context);
         this.mContext = context;
         this.mInputData = inputData;
+        this.mSourceUri = sourceUri;
+        this.mProgressable = progressable;
     }
 
     @Override
@@ -73,10 +95,9 @@ public class ImportKeysListLoader
             return mEntryListWrapper;
         }
 
-        mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(mData, null);
-
         if (mInputData == null) {
             Log.e(Constants.TAG, "Input data is null!");
+            mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(mData, null);
             return mEntryListWrapper;
         }
 
@@ -109,49 +130,107 @@ public class ImportKeysListLoader
     }
 
     public LongSparseArray<ParcelableKeyRing> getParcelableRings() {
-        return mParcelableRings;
+        synchronized (mParcelableRings) {
+            return mParcelableRings.clone();
+        }
     }
 
     /**
-     * Reads all PGPKeyRing objects from input
+     * Reads all PGPKeyRing objects from input, one at a time.
+     *
+     * Entries are delivered to the ui in pages of PAGE_SIZE while reading. If the input
+     * comes from a source uri, only the position of each keyring in it is kept, so memory
+     * use is bounded by the list entries rather than the size of the file.
      *
      * @param inputData
-     * @return
      */
     private void generateListOfKeyrings(InputData inputData) {
 
         boolean isEmpty = true;
+        Exception error = null;
 
         PositionAwareInputStream progressIn = new PositionAwareInputStream(
                 inputData.getInputStream());
+        long size = inputData.getSize();
+        int lastPercent = -1;
 
-        // need to have access to the bufferedInput, so we can reuse it for the possible
-        // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
-        // armor blocks
-        BufferedInputStream bufferedInput = new BufferedInputStream(progressIn);
         try {
+            UncachedKeyRing.KeyRingReader reader = UncachedKeyRing.fromStream(progressIn);
+            while (true) {
+                int index = reader.getPosition();
+                UncachedKeyRing key = reader.next();
+                if (key == null) {
+                    break;
+                }
 
-            // read all available blocks... (asc files can contain many blocks with BEGIN END)
-            while (bufferedInput.available() > 0) {
-                // todo deal with non-keyring objects?
-                List<UncachedKeyRing> rings = UncachedKeyRing.fromStream(bufferedInput);
-                for(UncachedKeyRing key : rings) {
-                    ImportKeysListEntry item = new ImportKeysListEntry(getContext(), key);
+                ImportKeysListEntry item = new ImportKeysListEntry(getContext(), key);
+                ParcelableKeyRing ring = mSourceUri != null
+                        ? new ParcelableKeyRing(mSourceUri, index)
+                        : new ParcelableKeyRing(key.getEncoded());
+                synchronized (mParcelableRings) {
                     mData.add(item);
-                    mParcelableRings.put(key.getMasterKeyId(), new ParcelableKeyRing(key.getEncoded()));
-                    isEmpty = false;
+                    mParcelableRings.put(key.getMasterKeyId(), ring);
+                }
+                isEmpty = false;
+
+                if (mData.size() % PAGE_SIZE == 0) {
+                    deliverPage();
+                }
+                if (size > 0) {
+                    int percent = (int) (progressIn.position() * 100 / size);
+                    if (percent != lastPercent) {
+                        lastPercent = percent;
+                        postProgress(percent);
+                    }
                 }
             }
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception on parsing key file!", e);
-            mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(mData, e);
+            error = e;
         }
 
-        if (isEmpty) {
+        if (isEmpty && error == null) {
             Log.e(Constants.TAG, "File has no content!", new FileHasNoContent());
-            mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>
-                    (mData, new FileHasNoContent());
+            error = new FileHasNoContent();
         }
+
+        mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(
+                snapshot(), error);
+    }
+
+    private ArrayList<ImportKeysListEntry> snapshot() {
+        synchronized (mParcelableRings) {
+            return new ArrayList<ImportKeysListEntry>(mData);
+        }
+    }
+
+    /** Delivers the entries read so far, while reading continues in the background. */
+    private void deliverPage() {
+        final AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> page =
+                new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(snapshot(), null);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // the final result is posted after all pages, so it can't be overwritten here
+                if (isStarted() && !isAbandoned()) {
+                    deliverResult(page);
+                }
+            }
+        });
+    }
+
+    private void postProgress(final int percent) {
+        if (mProgressable == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStarted() && !isAbandoned()) {
+                    mProgressable.setProgress(R.string.progress_reading_data, percent, 100);
+                }
+            }
+        });
     }
 
 }
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.ui.adapter;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.MergeCursor;
+import android.net.Uri;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.content.Loader;
+import android.widget.AbsListView;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A cursor loader which loads its rows one page at a time.
+ *
+ * The first page is delivered as soon as it is loaded, further pages are loaded when the
+ * list is scrolled close to the end of the loaded rows, see PrefetchScrollListener. Each
+ * page continues right after the last row of the previous one, by seeking on the sort
+ * key instead of using an offset, so loading a page doesn't get slower the further down
+ * it is. The sort key must therefore be unique, i.e. end with a unique column.
+ *
+ * The delivered cursor contains all rows loaded so far, one small cursor per page. When
+ * the data changes, as many pages as were loaded before are loaded again.
+ */
+public class KeysetPagingLoader extends AsyncTaskLoader<Cursor> {
+
+    public static final int PAGE_SIZE = 100;
+
+    /**
+     * A part of the sort key, sorting by an sql expression. Its value is read from a column,
+     * or computed from the row by overriding getValue.
+     */
+    public static class SortKey {
+        final String mExpression;
+        final String mColumn;
+        final boolean mNumeric;
+        final boolean mDescending;
+
+        /**
+         * @param expression sql expression to sort by, qualified where necessary
+         * @param column     name of the column in the projection holding its value
+         * @param numeric    whether the value is an integer, it is a string otherwise
+         * @param descending whether to sort in descending order
+         */
+        public SortKey(String expression, String column, boolean numeric, boolean descending) {
+            mExpression = expression;
+            mColumn = column;
+            mNumeric = numeric;
+            mDescending = descending;
+        }
+
+        /** Returns the value of the current row as an sql literal. */
+        protected String getValue(Cursor cursor) {
+            int index = cursor.getColumnIndexOrThrow(mColumn);
+            return mNumeric
+                    ? Long.toString(cursor.getLong(index))
+                    : DatabaseUtils.sqlEscapeString(cursor.getString(index));
+        }
+    }
+
+    /** The delivered cursor, which remembers its pages. Closing it leaves them open. */
+    private static class PagedCursor extends MergeCursor {
+        final ArrayList<Cursor> mPages;
+        final boolean mComplete;
+        // selection of the rows after the last loaded one
+        final String mNextSelection;
+
+        PagedCursor(ArrayList<Cursor> pages, boolean complete, String nextSelection) {
+            super(wrap(pages));
+            mPages = pages;
+            mComplete = complete;
+            mNextSelection = nextSelection;
+        }
+
+        private static Cursor[] wrap(List<Cursor> pages) {
+            Cursor[] cursors = new Cursor[pages.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                // pages are shared with later cursors, only the loader closes them
+                cursors[i] = new CursorWrapper(pages.get(i)) {
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+            return cursors;
+        }
+    }
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final SortKey[] mSortKeys;
+    private final String mOrderBy;
+
+    private volatile PagedCursor mCursor;
+    // set when the data changed, so the pages have to be loaded again
+    private volatile boolean mReload = true;
+    private volatile int mWantedPages = 1;
+
+    public KeysetPagingLoader(Context context, Uri uri, String[] projection, String selection,
+                              String[] selectionArgs, SortKey[] sortKeys) {
+        super(context);
+        mUri = uri.buildUpon()
+                .appendQueryParameter(KeychainContract.PARAM_LIMIT, Integer.toString(PAGE_SIZE))
+                .build();
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortKeys = sortKeys;
+
+        String orderBy = "";
+        for (SortKey key : sortKeys) {
+            if (orderBy.length() != 0) {
+                orderBy += ", ";
+            }
+            orderBy += key.mExpression + (key.mDescending ? " DESC" : " ASC");
+        }
+        mOrderBy = orderBy;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        PagedCursor previous = mCursor;
+        ArrayList<Cursor> pages;
+        String next;
+        int wanted;
+        if (mReload || previous == null) {
+            mReload = false;
+            pages = new ArrayList<Cursor>();
+            next = null;
+            // keep the rows which were visible so far
+            wanted = Math.max(mWantedPages, previous != null ? previous.mPages.size() : 1);
+        } else {
+            if (previous.mComplete) {
+                return previous;
+            }
+            pages = new ArrayList<Cursor>(previous.mPages);
+            next = previous.mNextSelection;
+            wanted = mWantedPages;
+        }
+
+        boolean complete = false;
+        while (pages.size() < wanted && !complete) {
+            String selection = mSelection;
+            if (next != null) {
+                selection = selection != null ? "(" + selection + ") AND (" + next + ")" : next;
+            }
+            Cursor page = getContext().getContentResolver().query(
+                    mUri, mProjection, selection, mSelectionArgs, mOrderBy);
+            if (page == null) {
+                break;
+            }
+            // the page is not shared yet, so it may be moved around here
+            complete = page.getCount() < PAGE_SIZE;
+            if (page.moveToLast()) {
+                next = buildSeekSelection(mSortKeys, page);
+            }
+            page.moveToPosition(-1);
+            page.registerContentObserver(mObserver);
+            pages.add(page);
+        }
+        if (pages.isEmpty()) {
+            return null;
+        }
+        return new PagedCursor(pages, complete, next);
+    }
+
+    /**
+     * Builds a selection for all rows after the current row of the cursor, in the order
+     * given by the sort keys. Values are inlined, so the selection arguments stay those of
+     * the base selection.
+     */
+    public static String buildSeekSelection(SortKey[] sortKeys, Cursor cursor) {
+        return buildSeekSelection(sortKeys, cursor, 0);
+    }
+
+    private static String buildSeekSelection(SortKey[] sortKeys, Cursor cursor, int i) {
+        SortKey key = sortKeys[i];
+        String value = key.getValue(cursor);
+        String after = key.mExpression + (key.mDescending ? " < " : " > ") + value;
+        if (i == sortKeys.length - 1) {
+            return after;
+        }
+        return after + " OR (" + key.mExpression + " = " + value + " AND ("
+                + buildSeekSelection(sortKeys, cursor, i + 1) + "))";
+    }
+
+    /**
+     * Loads the next page if the given position is less than a page away from the end of
+     * the loaded rows. Calls while a page is loading are ignored.
+     */
+    public void prefetch(int position) {
+        PagedCursor cursor = mCursor;
+        if (cursor == null || cursor.mComplete || isReset()) {
+            return;
+        }
+        int wanted = cursor.mPages.size() + 1;
+        if (position + PAGE_SIZE >= cursor.getCount() && mWantedPages < wanted) {
+            Log.d(Constants.TAG, "Loading page " + wanted + " of " + mUri);
+            mWantedPages = wanted;
+            forceLoad();
+        }
+    }
+
+    /** Loads all remaining pages, e.g. to select all rows. */
+    public void loadAll() {
+        PagedCursor cursor = mCursor;
+        if (cursor == null || cursor.mComplete || isReset()) {
+            return;
+        }
+        mWantedPages = Integer.MAX_VALUE;
+        forceLoad();
+    }
+
+    @Override
+    public void onContentChanged() {
+        mReload = true;
+        super.onContentChanged();
+    }
+
+    /* Runs on the UI thread */
+    @Override
+    public void deliverResult(Cursor cursor) {
+        PagedCursor paged = (PagedCursor) cursor;
+        if (isReset()) {
+            // An async query came in while the loader is stopped
+            closePages(paged, null);
+            return;
+        }
+        PagedCursor old = mCursor;
+        mCursor = paged;
+        if (paged != null && !paged.mComplete && paged.mPages.size() < mWantedPages) {
+            // the wanted pages couldn't be loaded, allow asking for them again
+            mWantedPages = paged.mPages.size();
+        }
+
+        if (isStarted()) {
+            super.deliverResult(paged);
+        }
+
+        if (old != null && old != paged) {
+            closePages(old, paged);
+        }
+    }
+
+    /** Closes all pages of a cursor which aren't part of the one still in use. */
+    private static void closePages(PagedCursor cursor, PagedCursor inUse) {
+        if (cursor == null) {
+            return;
+        }
+        for (Cursor page : cursor.mPages) {
+            if (inUse == null || !inUse.mPages.contains(page)) {
+                page.close();
+            }
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null) {
+            mReload = true;
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        // Attempt to cancel the current load task if possible.
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        closePages((PagedCursor) cursor, mCursor);
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        // Ensure the loader is stopped
+        onStopLoading();
+
+        closePages(mCursor, null);
+        mCursor = null;
+        mReload = true;
+        mWantedPages = 1;
+    }
+
+    /**
+     * Loads further pages of a KeysetPagingLoader as a list is scrolled towards the end
+     * of its loaded rows.
+     */
+    public static class PrefetchScrollListener implements AbsListView.OnScrollListener {
+        private final LoaderManager mLoaderManager;
+        private final int mLoaderId;
+
+        public PrefetchScrollListener(LoaderManager loaderManager, int loaderId) {
+            mLoaderManager = loaderManager;
+            mLoaderId = loaderId;
+        }
+
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                             int totalItemCount) {
+            Loader<Cursor> loader = mLoaderManager.getLoader(mLoaderId);
+            if (loader instanceof KeysetPagingLoader) {
+                ((KeysetPagingLoader) loader).prefetch(firstVisibleItem + visibleItemCount);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * A small pool of reusable I/O buffers, confined to the calling thread.
+ *
+ * Buffers should be released once they are not used anymore, which includes any stream
+ * they were passed to. A buffer which is never released, e.g. because an exception was
+ * thrown, is simply garbage collected. Released buffers are cleared, so no plaintext
+ * lingers in the pool.
+ */
+public class BufferPool {
+
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    /** Maximum number of buffers kept per thread, sign and encrypt uses up to three at once */
+    private static final int MAX_POOLED = 4;
+
+    private static final ThreadLocal<LinkedList<byte[]>> sPool =
+            new ThreadLocal<LinkedList<byte[]>>() {
+                @Override
+                protected LinkedList<byte[]> initialValue() {
+                    return new LinkedList<byte[]>();
+                }
+            };
+
+    /** Returns a buffer of BUFFER_SIZE bytes, from the pool if possible. */
+    public static byte[] acquire() {
+        byte[] buffer = sPool.get().poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    /** Returns a buffer to the pool of the calling thread. */
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        LinkedList<byte[]> pool = sPool.get();
+        for (byte[] pooled : pool) {
+            if (pooled == buffer) {
+                // released twice, handing it out twice would be fatal
+                return;
+            }
+        }
+        if (pool.size() < MAX_POOLED) {
+            Arrays.fill(buffer, (byte) 0);
+            pool.add(buffer);
+        }
+    }
+
+}
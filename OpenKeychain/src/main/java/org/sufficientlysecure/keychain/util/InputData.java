@@ -23,6 +23,9 @@ import java.io.InputStream;
  * Wrapper to include size besides an InputStream
  */
 public class InputData {
+    /** Size of streams whose length is not known in advance, e.g. pipes */
+    public static final long SIZE_UNKNOWN = -1;
+
     private PositionAwareInputStream mInputStream;
     private long mSize;
 
@@ -31,6 +34,15 @@ public class InputData {
         mSize = size;
     }
 
+    /** Creates InputData of unknown size, which is read until the end of the stream. */
+    public InputData(InputStream inputStream) {
+        this(inputStream, SIZE_UNKNOWN);
+    }
+
+    public boolean isSizeKnown() {
+        return mSize != SIZE_UNKNOWN;
+    }
+
     public InputStream getInputStream() {
         return mInputStream;
     }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012-2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralMsgIdException;
+
+/**
+ * Maps the progress steps and failure reasons of the pgp package to string resources.
+ */
+public class PgpResources {
+
+    public static int getResourceId(Progressable.Step step) {
+        switch (step) {
+            case EXTRACTING_SIGNATURE_KEY:
+                return R.string.progress_extracting_signature_key;
+            case PREPARING_STREAMS:
+                return R.string.progress_preparing_streams;
+            case PREPARING_SIGNATURE:
+                return R.string.progress_preparing_signature;
+            case ENCRYPTING:
+                return R.string.progress_encrypting;
+            case SIGNING:
+                return R.string.progress_signing;
+            case GENERATING_SIGNATURE:
+                return R.string.progress_generating_signature;
+            case READING_DATA:
+                return R.string.progress_reading_data;
+            case FINDING_KEY:
+                return R.string.progress_finding_key;
+            case EXTRACTING_KEY:
+                return R.string.progress_extracting_key;
+            case DECOMPRESSING_DATA:
+                return R.string.progress_decompressing_data;
+            case PROCESSING_SIGNATURE:
+                return R.string.progress_processing_signature;
+            case DECRYPTING:
+                return R.string.progress_decrypting;
+            case VERIFYING_SIGNATURE:
+                return R.string.progress_verifying_signature;
+            case VERIFYING_INTEGRITY:
+                return R.string.progress_verifying_integrity;
+            case BUILDING_KEY:
+                return R.string.progress_building_key;
+            case BUILDING_MASTER_KEY:
+                return R.string.progress_building_master_key;
+            case CERTIFYING_MASTER_KEY:
+                return R.string.progress_certifying_master_key;
+            case ADDING_SUB_KEYS:
+                return R.string.progress_adding_sub_keys;
+            case DONE:
+                return R.string.progress_done;
+        }
+        throw new IllegalArgumentException("Unknown step " + step);
+    }
+
+    public static int getResourceId(PgpGeneralMsgIdException.Reason reason) {
+        switch (reason) {
+            case KEY_SIZE_MINIMUM512BIT:
+                return R.string.error_key_size_minimum512bit;
+            case MASTER_KEY_MUST_NOT_BE_EL_GAMAL:
+                return R.string.error_master_key_must_not_be_el_gamal;
+            case UNKNOWN_ALGORITHM_CHOICE:
+                return R.string.error_unknown_algorithm_choice;
+            case ENCODING:
+                return R.string.error_encoding;
+            case EXPIRY_MUST_COME_AFTER_CREATION:
+                return R.string.error_expiry_must_come_after_creation;
+            case NO_SIGNATURE_KEY:
+                return R.string.error_no_signature_key;
+            case COULD_NOT_EXTRACT_PRIVATE_KEY:
+                return R.string.error_could_not_extract_private_key;
+        }
+        throw new IllegalArgumentException("Unknown reason " + reason);
+    }
+
+}
@@ -46,6 +46,10 @@ public class ProgressScaler implements Progressable {
         mWrapped.setProgress(resourceId, progress, mMax);
     }
 
+    public void setProgress(Step step, int progress, int max) {
+        mWrapped.setProgress(step, mFrom + progress * (mTo - mFrom) / max, mMax);
+    }
+
     public void setProgress(int progress, int max) {
         mWrapped.setProgress(progress, max);
     }